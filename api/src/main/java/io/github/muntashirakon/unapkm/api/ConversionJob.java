@@ -0,0 +1,205 @@
+/*
+ * Copyright 2020 Muntashir Al-Islam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.muntashirakon.unapkm.api;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A conversion started with {@link UnApkm#decryptFileAsync}. It runs in the service while the caller goes on, and
+ * can be cancelled at any time: the service stops decrypting and writing the ZIP and closes its descriptors, and the
+ * transfer writing the output in this process is stopped.
+ */
+public class ConversionJob {
+    private static final String TAG = "ConversionJob";
+
+    /**
+     * Receives the outcome of a job, once. Its methods run on a binder thread of this process.
+     */
+    public interface Callback {
+        void onCompleted(@NonNull ConversionJob job);
+
+        void onFailed(@NonNull ConversionJob job, @NonNull IOException e);
+
+        void onCancelled(@NonNull ConversionJob job);
+    }
+
+    private final int mPipeId;
+    @Nullable
+    private final Callback mCallback;
+    @Nullable
+    private final TransferEngine.Transfer mTransfer;
+    @Nullable
+    private final Closeable mOutput;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    @Nullable
+    private volatile IUnApkmJob mRemote;
+    private volatile boolean mCancelled;
+    @Nullable
+    private volatile IOException mError;
+
+    final IUnApkmJobCallback.Stub mRemoteCallback = new IUnApkmJobCallback.Stub() {
+        @Override
+        public void onCompleted(int pipeId) {
+            IOException error = null;
+            if (mTransfer != null) {
+                // The service closed its end of the pipe, the rest of the output is still in flight
+                try {
+                    mTransfer.join();
+                    if (mTransfer.isCancelled()) {
+                        // Cancelled here after the service was done
+                        finish(null, true);
+                        return;
+                    }
+                    if (mTransfer.getError() != null) {
+                        error = new IOException("Error decrypting APKM.", mTransfer.getError());
+                    }
+                } catch (InterruptedException e) {
+                    error = new InterruptedIOException("Interrupted while writing the output");
+                }
+            }
+            finish(error, false);
+        }
+
+        @Override
+        public void onFailed(int pipeId, String message) {
+            finish(new IOException("Error decrypting APKM: " + message), false);
+        }
+
+        @Override
+        public void onCancelled(int pipeId) {
+            finish(null, true);
+        }
+    };
+
+    private final IBinder.DeathRecipient mDeathRecipient = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            // No callback is coming anymore
+            if (mTransfer != null) mTransfer.cancel();
+            finish(new IOException("UnApkmService died."), false);
+        }
+    };
+
+    /**
+     * @param transfer Transfer writing the output, if it goes through a pipe
+     * @param output   Closed once the job is done, if the output is written by the service directly
+     */
+    ConversionJob(int pipeId, @Nullable Callback callback, @Nullable TransferEngine.Transfer transfer,
+                  @Nullable Closeable output) {
+        mPipeId = pipeId;
+        mCallback = callback;
+        mTransfer = transfer;
+        mOutput = output;
+    }
+
+    /**
+     * Follow the remote job, the job fails if the service dies before calling back.
+     */
+    void attach(@NonNull IUnApkmJob remote) {
+        mRemote = remote;
+        try {
+            remote.asBinder().linkToDeath(mDeathRecipient, 0);
+        } catch (RemoteException e) {
+            mDeathRecipient.binderDied();
+            return;
+        }
+        // The job may have finished before it was attached
+        if (isDone()) remote.asBinder().unlinkToDeath(mDeathRecipient, 0);
+    }
+
+    /**
+     * Stop the conversion, the output is left incomplete. Does nothing if the job is done.
+     */
+    public void cancel() {
+        if (isDone()) return;
+        IUnApkmJob remote = mRemote;
+        if (remote != null) {
+            try {
+                remote.cancel();
+            } catch (RemoteException e) {
+                // The service is gone, and the job with it
+                finish(new IOException("UnApkmService died.", e), true);
+            }
+        }
+        if (mTransfer != null) mTransfer.cancel();
+    }
+
+    /**
+     * Wait for the job to be done.
+     *
+     * @throws IOException If the conversion failed or was cancelled
+     */
+    public void await() throws IOException {
+        try {
+            mDone.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for conversion " + mPipeId);
+        }
+        if (mError != null) throw mError;
+        if (mCancelled) throw new InterruptedIOException("Conversion " + mPipeId + " cancelled");
+    }
+
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public int getPipeId() {
+        return mPipeId;
+    }
+
+    private void finish(@Nullable IOException error, boolean cancelled) {
+        synchronized (this) {
+            if (isDone()) return;
+            if (mOutput != null) {
+                try {
+                    mOutput.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "IOException when closing the output!", e);
+                }
+            }
+            if (cancelled) {
+                mCancelled = true;
+                if (mTransfer != null) mTransfer.cancel();
+            }
+            mError = error;
+            mDone.countDown();
+            IUnApkmJob remote = mRemote;
+            if (remote != null) remote.asBinder().unlinkToDeath(mDeathRecipient, 0);
+        }
+        if (mCallback == null) return;
+        if (mError != null) {
+            mCallback.onFailed(this, mError);
+        } else if (mCancelled) {
+            mCallback.onCancelled(this);
+        } else mCallback.onCompleted(this);
+    }
+}
@@ -19,12 +19,14 @@
 package io.github.muntashirakon.unapkm.api;
 
 import android.os.ParcelFileDescriptor;
-import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+/**
+ * Connects streams to pipes, the data is pumped by the shared {@link TransferEngine}.
+ */
 public class ParcelFileDescriptorUtil {
 
     public static ParcelFileDescriptor pipeFrom(InputStream inputStream)
@@ -33,17 +35,19 @@ public class ParcelFileDescriptorUtil {
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        new TransferThread(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(writeSide))
-                .start();
+        TransferEngine.getDefault().submit(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(writeSide),
+                "pipeFrom");
 
         return readSide;
     }
 
 
-    public static TransferThread pipeTo(OutputStream outputStream, ParcelFileDescriptor output) {
-        TransferThread t = new TransferThread(new ParcelFileDescriptor.AutoCloseInputStream(output), outputStream);
-        t.start();
-        return t;
+    /**
+     * @return The transfer, {@link TransferEngine.Transfer#join()} waits for the output to be written
+     */
+    public static TransferEngine.Transfer pipeTo(OutputStream outputStream, ParcelFileDescriptor output) {
+        return TransferEngine.getDefault().submit(new ParcelFileDescriptor.AutoCloseInputStream(output),
+                outputStream, "pipeTo");
     }
 
     public static ParcelFileDescriptor pipeTo(OutputStream outputStream)
@@ -52,46 +56,10 @@ public class ParcelFileDescriptorUtil {
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        new TransferThread(new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream)
-                .start();
+        TransferEngine.getDefault().submit(new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream,
+                "pipeTo");
 
         return writeSide;
     }
 
-
-    static class TransferThread extends Thread {
-        final InputStream mIn;
-        final OutputStream mOut;
-
-        TransferThread(InputStream in, OutputStream out) {
-            super("IPC Transfer Thread");
-            mIn = in;
-            mOut = out;
-            setDaemon(true);
-        }
-
-        @Override
-        public void run() {
-            byte[] buf = new byte[4096];
-            int len;
-
-            try {
-                while ((len = mIn.read(buf)) > 0) {
-                    mOut.write(buf, 0, len);
-                }
-            } catch (IOException e) {
-                Log.e("FD", "IOException when writing to out", e);
-            } finally {
-                try {
-                    mIn.close();
-                } catch (IOException ignored) {
-                }
-                try {
-                    mOut.close();
-                } catch (IOException ignored) {
-                }
-            }
-        }
-    }
-
 }
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2020 Muntashir Al-Islam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.muntashirakon.unapkm.api;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+/**
+ * A one-way channel carrying bulk data through a ring of slots in {@link SharedMemory}. Only small messages cross the
+ * pipes: the writer sends the length of each slot it filled on the signal pipe, and the reader hands the slot back on
+ * the ack pipe once it is drained. A slot of 256 KiB thus costs two tiny pipe writes instead of 64 pages copied through
+ * the kernel, each one waking the other side. The system calls on the pipes also order the accesses to the slots.
+ * <p>
+ * The reading process creates the channel and passes the writer's side in a {@link Bundle}, e.g. with
+ * {@link IUnApkmService#setSharedMemoryOutput}. Either side sees the other one closing its pipes, so neither blocks
+ * forever if the other process dies.
+ */
+@RequiresApi(Build.VERSION_CODES.O_MR1)
+public class SharedMemoryPipe {
+    public static final int DEFAULT_SLOT_SIZE = 256 * 1024;
+    public static final int DEFAULT_SLOT_COUNT = 4;
+
+    private static final String KEY_MEMORY = "memory";
+    private static final String KEY_SIGNAL = "signal";
+    private static final String KEY_ACK = "ack";
+    private static final String KEY_SLOT_SIZE = "slot_size";
+    private static final String KEY_SLOT_COUNT = "slot_count";
+    /**
+     * Length sent after the last slot
+     */
+    private static final int END_OF_STREAM = 0;
+
+    private SharedMemoryPipe() {
+    }
+
+    /**
+     * Reads the channel, in the process that created it. Slots are read in place, the mapping is released by the
+     * garbage collector so that closing the stream from another thread, e.g. to cancel a transfer, is safe.
+     */
+    public static class Reader extends InputStream {
+        private final SharedMemory mSharedMemory;
+        private final ByteBuffer mMemory;
+        private final DataInputStream mSignal;
+        private final FileOutputStream mAck;
+        private final int mSlotSize;
+        private final int mSlotCount;
+        @Nullable
+        private ParcelFileDescriptor mWriterSignal;
+        @Nullable
+        private ParcelFileDescriptor mWriterAck;
+        @Nullable
+        private ByteBuffer mSlot;
+        private int mNextSlot;
+        private boolean mEnded;
+        private volatile boolean mClosed;
+
+        /**
+         * @param name Name of the shared memory, for debugging
+         */
+        @NonNull
+        public static Reader create(@NonNull String name, int slotSize, int slotCount) throws IOException {
+            if (slotSize <= 0 || slotCount <= 0) {
+                throw new IllegalArgumentException("Invalid slots: " + slotCount + " x " + slotSize);
+            }
+            SharedMemory sharedMemory;
+            ByteBuffer memory;
+            try {
+                sharedMemory = SharedMemory.create(name, slotSize * slotCount);
+            } catch (ErrnoException e) {
+                throw new IOException("Could not create shared memory: " + e.getMessage(), e);
+            }
+            try {
+                memory = sharedMemory.mapReadOnly();
+            } catch (ErrnoException e) {
+                sharedMemory.close();
+                throw new IOException("Could not map shared memory: " + e.getMessage(), e);
+            }
+            ParcelFileDescriptor[] signal = ParcelFileDescriptor.createPipe();
+            ParcelFileDescriptor[] ack = ParcelFileDescriptor.createPipe();
+            return new Reader(sharedMemory, memory, signal, ack, slotSize, slotCount);
+        }
+
+        private Reader(@NonNull SharedMemory sharedMemory, @NonNull ByteBuffer memory,
+                       @NonNull ParcelFileDescriptor[] signal, @NonNull ParcelFileDescriptor[] ack, int slotSize,
+                       int slotCount) {
+            mSharedMemory = sharedMemory;
+            mMemory = memory;
+            // A signal is 4 bytes, those already sent are read at once
+            mSignal = new DataInputStream(new BufferedInputStream(
+                    new ParcelFileDescriptor.AutoCloseInputStream(signal[0]), 64));
+            mAck = new ParcelFileDescriptor.AutoCloseOutputStream(ack[1]);
+            mWriterSignal = signal[1];
+            mWriterAck = ack[0];
+            mSlotSize = slotSize;
+            mSlotCount = slotCount;
+        }
+
+        /**
+         * @return The writer's side, to be opened with {@link Writer#open(Bundle)} in the other process
+         */
+        @NonNull
+        public Bundle getWriterBundle() {
+            if (mWriterSignal == null || mWriterAck == null) {
+                throw new IllegalStateException("The writer's side was closed");
+            }
+            Bundle bundle = new Bundle();
+            bundle.putParcelable(KEY_MEMORY, mSharedMemory);
+            bundle.putParcelable(KEY_SIGNAL, mWriterSignal);
+            bundle.putParcelable(KEY_ACK, mWriterAck);
+            bundle.putInt(KEY_SLOT_SIZE, mSlotSize);
+            bundle.putInt(KEY_SLOT_COUNT, mSlotCount);
+            return bundle;
+        }
+
+        /**
+         * Close the descriptors of the writer's side once they were sent, the reader could not see the writer going
+         * away otherwise.
+         */
+        public void closeWriterSide() {
+            closeQuietly(mWriterSignal);
+            closeQuietly(mWriterAck);
+            mWriterSignal = null;
+            mWriterAck = null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureAvailable()) return -1;
+            //noinspection ConstantConditions
+            return mSlot.get() & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len == 0) return 0;
+            if (!ensureAvailable()) return -1;
+            //noinspection ConstantConditions
+            int n = Math.min(len, mSlot.remaining());
+            mSlot.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (mClosed) throw new IOException("Stream closed");
+            return mSlot != null ? mSlot.remaining() : 0;
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) return;
+            mClosed = true;
+            closeWriterSide();
+            closeQuietly(mSignal);
+            closeQuietly(mAck);
+            // Mappings remain valid
+            mSharedMemory.close();
+        }
+
+        private boolean ensureAvailable() throws IOException {
+            if (mClosed) throw new IOException("Stream closed");
+            while (mSlot == null || !mSlot.hasRemaining()) {
+                if (mEnded) return false;
+                if (mSlot != null) {
+                    // Drained, the writer may fill it again
+                    try {
+                        mAck.write(1);
+                    } catch (IOException ignore) {
+                        // The writer is done or gone, its next signal tells which
+                    }
+                    mSlot = null;
+                }
+                int length;
+                try {
+                    length = mSignal.readInt();
+                } catch (EOFException e) {
+                    throw new IOException("The writer went away before the end of the stream");
+                }
+                if (length == END_OF_STREAM) {
+                    mEnded = true;
+                    return false;
+                }
+                if (length < 0 || length > mSlotSize) throw new IOException("Invalid slot length " + length);
+                int start = mNextSlot * mSlotSize;
+                ByteBuffer slot = mMemory.duplicate();
+                slot.position(start);
+                slot.limit(start + length);
+                mSlot = slot;
+                mNextSlot = (mNextSlot + 1) % mSlotCount;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes the channel, in the other process. Data is published when a slot is full and on {@link #close()}, the
+     * writer blocks while every slot is waiting to be read.
+     */
+    public static class Writer extends OutputStream {
+        private final SharedMemory mSharedMemory;
+        private final ByteBuffer mMemory;
+        private final FileOutputStream mSignal;
+        private final FileInputStream mAck;
+        private final int mSlotSize;
+        private final int mSlotCount;
+        private final byte[] mSignalBuffer = new byte[4];
+        private final byte[] mAckBuffer;
+        private final byte[] mSingleByte = new byte[1];
+        private int mFreeSlots;
+        private int mNextSlot;
+        @Nullable
+        private ByteBuffer mSlot;
+        private boolean mClosed;
+        private volatile boolean mAborted;
+
+        /**
+         * @param bundle Returned by {@link Reader#getWriterBundle()}
+         */
+        @NonNull
+        public static Writer open(@NonNull Bundle bundle) throws IOException {
+            SharedMemory sharedMemory = bundle.getParcelable(KEY_MEMORY);
+            ParcelFileDescriptor signal = bundle.getParcelable(KEY_SIGNAL);
+            ParcelFileDescriptor ack = bundle.getParcelable(KEY_ACK);
+            int slotSize = bundle.getInt(KEY_SLOT_SIZE);
+            int slotCount = bundle.getInt(KEY_SLOT_COUNT);
+            if (sharedMemory == null || signal == null || ack == null || slotSize <= 0 || slotCount <= 0
+                    || (long) slotSize * slotCount > sharedMemory.getSize()) {
+                if (sharedMemory != null) sharedMemory.close();
+                closeQuietly(signal);
+                closeQuietly(ack);
+                throw new IOException("Invalid shared memory transport");
+            }
+            ByteBuffer memory;
+            try {
+                memory = sharedMemory.mapReadWrite();
+            } catch (ErrnoException e) {
+                sharedMemory.close();
+                closeQuietly(signal);
+                closeQuietly(ack);
+                throw new IOException("Could not map shared memory: " + e.getMessage(), e);
+            }
+            return new Writer(sharedMemory, memory, signal, ack, slotSize, slotCount);
+        }
+
+        private Writer(@NonNull SharedMemory sharedMemory, @NonNull ByteBuffer memory,
+                       @NonNull ParcelFileDescriptor signal, @NonNull ParcelFileDescriptor ack, int slotSize,
+                       int slotCount) {
+            mSharedMemory = sharedMemory;
+            mMemory = memory;
+            mSignal = new ParcelFileDescriptor.AutoCloseOutputStream(signal);
+            mAck = new ParcelFileDescriptor.AutoCloseInputStream(ack);
+            mSlotSize = slotSize;
+            mSlotCount = slotCount;
+            mAckBuffer = new byte[slotCount];
+            mFreeSlots = slotCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mSingleByte[0] = (byte) b;
+            write(mSingleByte, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (mClosed || mAborted) throw new IOException("Stream closed");
+            while (len > 0) {
+                if (mSlot == null) acquireSlot();
+                //noinspection ConstantConditions
+                int n = Math.min(len, mSlot.remaining());
+                mSlot.put(b, off, n);
+                off += n;
+                len -= n;
+                if (!mSlot.hasRemaining()) publishSlot();
+            }
+        }
+
+        /**
+         * Send what was written and the end of the stream.
+         */
+        @Override
+        public void close() throws IOException {
+            if (mClosed) return;
+            mClosed = true;
+            try {
+                if (!mAborted) {
+                    if (mSlot != null && mSlot.position() > mNextSlot * mSlotSize) publishSlot();
+                    signal(END_OF_STREAM);
+                }
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Close the channel without ending the stream, the reader fails as if this process died. Unlike
+         * {@link #close()}, it may be called while another thread is writing.
+         */
+        public void abort() {
+            mAborted = true;
+            release();
+        }
+
+        private void acquireSlot() throws IOException {
+            while (mFreeSlots == 0) {
+                int n = mAck.read(mAckBuffer);
+                if (n == -1) throw new IOException("The reader went away");
+                mFreeSlots += n;
+            }
+            --mFreeSlots;
+            int start = mNextSlot * mSlotSize;
+            ByteBuffer slot = mMemory.duplicate();
+            slot.position(start);
+            slot.limit(start + mSlotSize);
+            mSlot = slot;
+        }
+
+        private void publishSlot() throws IOException {
+            //noinspection ConstantConditions
+            signal(mSlot.position() - mNextSlot * mSlotSize);
+            mSlot = null;
+            mNextSlot = (mNextSlot + 1) % mSlotCount;
+        }
+
+        private void signal(int value) throws IOException {
+            mSignalBuffer[0] = (byte) (value >>> 24);
+            mSignalBuffer[1] = (byte) (value >>> 16);
+            mSignalBuffer[2] = (byte) (value >>> 8);
+            mSignalBuffer[3] = (byte) value;
+            mSignal.write(mSignalBuffer);
+        }
+
+        private void release() {
+            closeQuietly(mSignal);
+            closeQuietly(mAck);
+            // Mappings remain valid, they are released by the garbage collector
+            mSharedMemory.close();
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2020 Muntashir Al-Islam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.muntashirakon.unapkm.api;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Pumps data between streams and pipes for every conversion of the process. Transfers run on a shared pool of daemon
+ * threads, which exit once idle, and copy through pooled buffers that grow while reads keep filling them.
+ * <p>
+ * A transfer never waits in a queue: the two pumps of a conversion depend on each other, so queuing one behind busy
+ * threads could stall both. Beyond {@code maxThreads}, transfers run on a thread of their own instead.
+ * <p>
+ * A transfer ends when either side reaches its end or fails, which also happens when the service dies, as the kernel
+ * closes its ends of the pipes. {@link #shutdown()} cancels the transfers left.
+ */
+public class TransferEngine {
+    private static final String TAG = "TransferEngine";
+    static final int MIN_BUFFER_SIZE = 16 * 1024;
+    static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    /**
+     * Number of reads filling the buffer after which a transfer switches to a buffer twice as large
+     */
+    private static final int GROW_AFTER_FULL_READS = 4;
+    private static final int POOLED_BUFFERS_PER_SIZE = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    @Nullable
+    private static TransferEngine sDefault;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Set<Transfer> mActiveTransfers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final BufferPool mBufferPool = new BufferPool();
+    private final AtomicInteger mThreadId = new AtomicInteger();
+    private volatile boolean mShutdown;
+
+    /**
+     * @return The engine shared by {@link ParcelFileDescriptorUtil}
+     */
+    @NonNull
+    public static synchronized TransferEngine getDefault() {
+        if (sDefault == null || sDefault.mShutdown) {
+            sDefault = new TransferEngine(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param maxThreads Number of pooled threads, transfers beyond it get a thread of their own
+     */
+    public TransferEngine(int maxThreads) {
+        mExecutor = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread thread = new Thread(r, "IPC Transfer Thread-" + mThreadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Start copying {@code in} to {@code out}. Both streams are closed once done.
+     *
+     * @param name Name of the transfer in the logs
+     */
+    @NonNull
+    public Transfer submit(@NonNull InputStream in, @NonNull OutputStream out, @NonNull String name) {
+        Transfer transfer = new Transfer(in, out, name);
+        if (mShutdown) {
+            // Never handed to a thread, so it ends here
+            transfer.cancel();
+            transfer.run();
+            return transfer;
+        }
+        mActiveTransfers.add(transfer);
+        try {
+            mExecutor.execute(transfer);
+        } catch (RejectedExecutionException e) {
+            Thread thread = new Thread(transfer, "IPC Transfer Thread-" + mThreadId.incrementAndGet());
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return transfer;
+    }
+
+    /**
+     * @return Transfers started and not done yet
+     */
+    @NonNull
+    public List<Transfer> getActiveTransfers() {
+        return new ArrayList<>(mActiveTransfers);
+    }
+
+    /**
+     * Cancel every transfer left and let the threads exit. Transfers submitted afterwards are cancelled right away.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        for (Transfer transfer : mActiveTransfers) {
+            transfer.cancel();
+        }
+        mExecutor.shutdown();
+    }
+
+    /**
+     * A single copy between two streams, with its throughput.
+     */
+    public class Transfer implements Runnable {
+        private final InputStream mIn;
+        private final OutputStream mOut;
+        private final String mName;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile long mBytesTransferred;
+        private volatile long mStartMillis = -1;
+        private volatile long mEndMillis = -1;
+        @Nullable
+        private volatile IOException mError;
+        private volatile boolean mCancelled;
+
+        private Transfer(@NonNull InputStream in, @NonNull OutputStream out, @NonNull String name) {
+            mIn = in;
+            mOut = out;
+            mName = name;
+        }
+
+        @Override
+        public void run() {
+            mStartMillis = SystemClock.elapsedRealtime();
+            byte[] buffer = mBufferPool.acquire(MIN_BUFFER_SIZE);
+            int fullReads = 0;
+            try {
+                int len;
+                // Cancelled before it got a thread, the streams are closed already
+                while (!mCancelled && (len = mIn.read(buffer)) > 0) {
+                    mOut.write(buffer, 0, len);
+                    mBytesTransferred += len;
+                    if (len < buffer.length || buffer.length >= MAX_BUFFER_SIZE) {
+                        fullReads = 0;
+                    } else if (++fullReads == GROW_AFTER_FULL_READS) {
+                        // The source has more to give than fits in one read, fewer and larger calls pay off
+                        int size = buffer.length * 2;
+                        mBufferPool.release(buffer);
+                        buffer = mBufferPool.acquire(size);
+                        fullReads = 0;
+                    }
+                }
+            } catch (IOException e) {
+                if (!mCancelled) {
+                    Log.e(TAG, "IOException when writing to out", e);
+                    mError = e;
+                }
+            } finally {
+                mBufferPool.release(buffer);
+                closeQuietly();
+                mEndMillis = SystemClock.elapsedRealtime();
+                mActiveTransfers.remove(this);
+                mDone.countDown();
+                Log.d(TAG, this.toString());
+            }
+        }
+
+        /**
+         * Wait for the transfer to end.
+         */
+        public void join() throws InterruptedException {
+            mDone.await();
+        }
+
+        /**
+         * Close both streams, ending the transfer even if it is blocked reading or writing a pipe. The transfer is done
+         * once {@link #run()} returns, which then skips copying if it had not started yet.
+         */
+        public void cancel() {
+            mCancelled = true;
+            closeQuietly();
+        }
+
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * @return The error that ended the transfer, null if it reached the end of the input or was cancelled
+         */
+        @Nullable
+        public IOException getError() {
+            return mError;
+        }
+
+        public long getBytesTransferred() {
+            return mBytesTransferred;
+        }
+
+        /**
+         * @return Time spent so far, or in total once done
+         */
+        public long getElapsedMillis() {
+            long start = mStartMillis;
+            if (start == -1) return 0;
+            long end = mEndMillis;
+            return (end != -1 ? end : SystemClock.elapsedRealtime()) - start;
+        }
+
+        /**
+         * @return Average throughput in bytes per second
+         */
+        public long getThroughput() {
+            long elapsed = getElapsedMillis();
+            return elapsed == 0 ? 0 : mBytesTransferred * 1000 / elapsed;
+        }
+
+        private void closeQuietly() {
+            try {
+                mIn.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return mName + ": " + mBytesTransferred + " bytes in " + getElapsedMillis() + " ms ("
+                    + getThroughput() / 1024 + " KiB/s)" + (mCancelled ? ", cancelled" : "")
+                    + (mError != null ? ", failed" : "");
+        }
+    }
+
+    /**
+     * Buffers by power-of-two size, a few of each are kept for the next transfers
+     */
+    private static class BufferPool {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final ArrayDeque<byte[]>[] mBuffers = new ArrayDeque[sizeClass(MAX_BUFFER_SIZE) + 1];
+
+        BufferPool() {
+            for (int i = 0; i < mBuffers.length; ++i) {
+                mBuffers[i] = new ArrayDeque<>(POOLED_BUFFERS_PER_SIZE);
+            }
+        }
+
+        @NonNull
+        byte[] acquire(int size) {
+            ArrayDeque<byte[]> buffers = mBuffers[sizeClass(size)];
+            synchronized (buffers) {
+                byte[] buffer = buffers.pollFirst();
+                if (buffer != null) return buffer;
+            }
+            return new byte[size];
+        }
+
+        void release(@NonNull byte[] buffer) {
+            ArrayDeque<byte[]> buffers = mBuffers[sizeClass(buffer.length)];
+            synchronized (buffers) {
+                if (buffers.size() < POOLED_BUFFERS_PER_SIZE) buffers.addFirst(buffer);
+            }
+        }
+
+        private static int sizeClass(int size) {
+            return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+        }
+    }
+}
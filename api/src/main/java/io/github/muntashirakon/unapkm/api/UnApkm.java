@@ -16,119 +16,371 @@
 
 package io.github.muntashirakon.unapkm.api;
 
-import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
-import android.content.ServiceConnection;
-import android.os.Handler;
-import android.os.IBinder;
-import android.os.Looper;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 @WorkerThread
 public class UnApkm {
     private static final String TAG = "UnApkm";
-    private static final String UN_APKM_SERVICE_ACTION = "io.github.muntashirakon.unapkm.UN_APKM";
-
-    private IUnApkmService unApkmService;
-    private CountDownLatch serviceWatcher;
-    private final AtomicInteger mPipeIdGen = new AtomicInteger();
-    private final ServiceConnection unApkmServiceConn = new ServiceConnection() {
-        @Override
-        public void onServiceConnected(ComponentName name, IBinder service) {
-            Log.i(TAG, "UnApkmService connected");
-            unApkmService = IUnApkmService.Stub.asInterface(service);
-            if (serviceWatcher != null) serviceWatcher.countDown();
-        }
 
-        @Override
-        public void onServiceDisconnected(ComponentName name) {
-            Log.d(TAG, "UnApkmService connected");
-            unApkmService = null;
-        }
-    };
+    private volatile UnApkmConnection mConnection;
 
+    /**
+     * Use the connection to the service shared by this process, binding it if this is the first use.
+     */
     public UnApkm(Context context, String targetPackageName) throws RemoteException {
         initApkmService(context, targetPackageName);
     }
 
     public void initApkmService(@NonNull Context context, @NonNull String targetPackageName)
             throws RemoteException {
-        serviceWatcher = new CountDownLatch(1);
-        Intent intent = new Intent(UN_APKM_SERVICE_ACTION);
-        intent.setPackage(targetPackageName);
-        Log.e(TAG, "Launching UnApkmService");
-        new Handler(Looper.getMainLooper()).post(() -> {
-            if (!context.bindService(intent, unApkmServiceConn, Context.BIND_AUTO_CREATE)) {
-                serviceWatcher.countDown();
-            }
-        });
+        mConnection = UnApkmConnection.get(context, targetPackageName);
+        mConnection.getService();
+    }
+
+    /**
+     * @return The connection shared by every instance for the same package
+     */
+    @NonNull
+    public UnApkmConnection getConnection() {
+        return mConnection;
+    }
+
+    public void decryptFile(@NonNull InputStream inputStream, @NonNull OutputStream outputStream, boolean cacheInput)
+            throws IOException {
+        decryptFile(inputStream, outputStream, cacheInput, null);
+    }
+
+    /**
+     * @param listener Receives the progress of the conversion. Its calls are oneway, they run on a binder thread of
+     *                 this process.
+     */
+    public void decryptFile(@NonNull InputStream inputStream, @NonNull OutputStream outputStream, boolean cacheInput,
+                            @Nullable IUnApkmProgressListener listener)
+            throws IOException {
+        decrypt(ParcelFileDescriptorUtil.pipeFrom(inputStream), outputStream, cacheInput, null, listener);
+    }
+
+    /**
+     * Convert only some entries of the bundle, the others are neither written nor recompressed.
+     *
+     * @param entryPatterns Names or globs of the entries to write, see {@link IUnApkmService#setEntryFilter}
+     * @param listener      Receives the progress of the conversion
+     */
+    public void decryptEntries(@NonNull InputStream inputStream, @NonNull OutputStream outputStream,
+                               boolean cacheInput, @NonNull String[] entryPatterns,
+                               @Nullable IUnApkmProgressListener listener)
+            throws IOException {
+        decrypt(ParcelFileDescriptorUtil.pipeFrom(inputStream), outputStream, cacheInput,
+                (service, pipeId) -> service.setEntryFilter(pipeId, entryPatterns), listener);
+    }
+
+    public void decryptFile(@NonNull ParcelFileDescriptor descriptor, @NonNull OutputStream outputStream)
+            throws IOException {
+        decryptFile(descriptor, outputStream, null);
+    }
+
+    /**
+     * @param listener Receives the progress of the conversion. Its calls are oneway, they run on a binder thread of
+     *                 this process.
+     */
+    public void decryptFile(@NonNull ParcelFileDescriptor descriptor, @NonNull OutputStream outputStream,
+                            @Nullable IUnApkmProgressListener listener)
+            throws IOException {
+        decrypt(descriptor, outputStream, false, null, listener);
+    }
+
+    /**
+     * Convert straight into a writable descriptor, e.g. a file opened with mode "w". A regular file is written by the
+     * service itself, without going through a pipe and a transfer thread in this process. The output descriptor is
+     * closed afterwards.
+     *
+     * @param listener Receives the progress of the conversion
+     * @see IUnApkmService#unApkmToDescriptor
+     */
+    public void decryptFile(@NonNull ParcelFileDescriptor descriptor, @NonNull ParcelFileDescriptor output,
+                            @Nullable IUnApkmProgressListener listener)
+            throws IOException {
+        boolean converted;
         try {
-            serviceWatcher.await();
-        } catch (InterruptedException e) {
-            throw new RemoteException(e.getMessage());
+            converted = decryptTo(descriptor, output, false, null, listener);
+        } catch (IOException e) {
+            closeQuietly(output);
+            throw e;
         }
-        if (unApkmService == null) throw new RemoteException("UnApkmService couldn't be bound.");
+        if (converted) {
+            closeQuietly(output);
+        } else decryptPiped(descriptor, new ParcelFileDescriptor.AutoCloseOutputStream(output), false, null, listener);
     }
 
-    public void decryptFile(@NonNull InputStream inputStream, @NonNull OutputStream outputStream, boolean cacheInput)
+    /**
+     * Convert only some entries of the bundle, the others are neither written nor recompressed.
+     *
+     * @param entryPatterns Names or globs of the entries to write, see {@link IUnApkmService#setEntryFilter}
+     * @param listener      Receives the progress of the conversion
+     */
+    public void decryptEntries(@NonNull ParcelFileDescriptor descriptor, @NonNull OutputStream outputStream,
+                               @NonNull String[] entryPatterns, @Nullable IUnApkmProgressListener listener)
+            throws IOException {
+        decrypt(descriptor, outputStream, false,
+                (service, pipeId) -> service.setEntryFilter(pipeId, entryPatterns), listener);
+    }
+
+    /**
+     * Convert only the splits a device with this configuration would install, the splits for other ABIs, densities
+     * and languages are neither written nor recompressed.
+     *
+     * @param abis       Supported ABIs, the preferred first, e.g. {@code Build.SUPPORTED_ABIS}
+     * @param densityDpi Screen density, e.g. {@code DisplayMetrics.densityDpi}, or 0 to keep every density
+     * @param locales    Locales such as {@code en-US}
+     * @param listener   Receives the progress of the conversion
+     * @see IUnApkmService#setDeviceProfile
+     */
+    public void decryptForDevice(@NonNull ParcelFileDescriptor descriptor, @NonNull OutputStream outputStream,
+                                 @NonNull String[] abis, int densityDpi, @NonNull String[] locales,
+                                 @Nullable IUnApkmProgressListener listener)
+            throws IOException {
+        decrypt(descriptor, outputStream, false,
+                (service, pipeId) -> service.setDeviceProfile(pipeId, abis, densityDpi, locales), listener);
+    }
+
+    /**
+     * Applies options to a pipe before its conversion starts.
+     */
+    private interface PipeSetup {
+        void apply(@NonNull IUnApkmService service, int pipeId) throws RemoteException;
+    }
+
+    private void decrypt(@NonNull ParcelFileDescriptor input, @NonNull OutputStream outputStream, boolean cacheInput,
+                         @Nullable PipeSetup setup, @Nullable IUnApkmProgressListener listener)
+            throws IOException {
+        ParcelFileDescriptor file = dupRegularFile(outputStream);
+        if (file != null) {
+            boolean converted;
+            try {
+                converted = decryptTo(input, file, cacheInput, setup, listener);
+            } catch (IOException e) {
+                outputStream.close();
+                throw e;
+            } finally {
+                // The service received a copy of the descriptor
+                closeQuietly(file);
+            }
+            if (converted) {
+                // The service wrote the file itself, the stream is closed as the transfer thread would have
+                outputStream.close();
+                return;
+            }
+            // An older service, the file is written through a pipe
+        }
+        decryptPiped(input, outputStream, cacheInput, setup, listener);
+    }
+
+    private void decryptPiped(@NonNull ParcelFileDescriptor input, @NonNull OutputStream outputStream,
+                              boolean cacheInput, @Nullable PipeSetup setup,
+                              @Nullable IUnApkmProgressListener listener)
             throws IOException {
-        ParcelFileDescriptor output = null;
+        TransferEngine.Transfer pump = null;
         try {
-            if (unApkmService == null)
-                throw new RemoteException("UnApkmService couldn't be bound.");
-            int outputPipeId = mPipeIdGen.incrementAndGet();
-            output = unApkmService.createOutputPipe(outputPipeId);
-            Thread pumpThread = ParcelFileDescriptorUtil.pipeTo(outputStream, output);
-            unApkmService.unApkm(ParcelFileDescriptorUtil.pipeFrom(inputStream), outputPipeId, cacheInput);
-            pumpThread.join();
+            // The same binder is used for the whole conversion, its session is lost if the service restarts
+            IUnApkmService service = mConnection.getService();
+            int outputPipeId = mConnection.nextPipeId();
+            pump = openOutput(service, outputPipeId, outputStream);
+            if (listener != null) service.setProgressListener(outputPipeId, listener);
+            if (setup != null) setup.apply(service, outputPipeId);
+            service.unApkm(input, outputPipeId, cacheInput);
+            pump.join();
+            if (pump.getError() != null) throw pump.getError();
         } catch (Exception e) {
             throw new IOException("Error decrypting APKM.", e);
         } finally {
-            // close() is required to halt the TransferThread
-            if (output != null) {
+            // Required to halt the transfer if the conversion failed
+            if (pump != null && !pump.isDone()) pump.cancel();
+        }
+    }
+
+    /**
+     * Create the output of a pipe id and start writing it to {@code outputStream}. Shared memory is used if both this
+     * process and the service support it, a pipe otherwise.
+     */
+    @NonNull
+    private static TransferEngine.Transfer openOutput(@NonNull IUnApkmService service, int pipeId,
+                                                      @NonNull OutputStream outputStream)
+            throws IOException, RemoteException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            SharedMemoryPipe.Reader reader = null;
+            try {
+                reader = SharedMemoryPipe.Reader.create("unapkm-" + pipeId, SharedMemoryPipe.DEFAULT_SLOT_SIZE,
+                        SharedMemoryPipe.DEFAULT_SLOT_COUNT);
+            } catch (IOException e) {
+                Log.w(TAG, "Shared memory unavailable, using a pipe", e);
+            }
+            if (reader != null) {
+                boolean accepted = false;
                 try {
-                    output.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "IOException when closing ParcelFileDescriptor!", e);
+                    accepted = service.setSharedMemoryOutput(pipeId, reader.getWriterBundle());
+                } finally {
+                    // The service received copies of the descriptors
+                    reader.closeWriterSide();
+                    if (!accepted) reader.close();
                 }
+                if (accepted) return TransferEngine.getDefault().submit(reader, outputStream, "sharedMemory");
             }
         }
+        ParcelFileDescriptor output = service.createOutputPipe(pipeId);
+        return ParcelFileDescriptorUtil.pipeTo(outputStream, output);
     }
 
-    public void decryptFile(@NonNull ParcelFileDescriptor descriptor, @NonNull OutputStream outputStream)
+    /**
+     * The output descriptor isn't closed, the service receives a copy of it.
+     *
+     * @return Whether the service wrote the output, false if it is too old to write descriptors
+     */
+    private boolean decryptTo(@NonNull ParcelFileDescriptor input, @NonNull ParcelFileDescriptor output,
+                              boolean cacheInput, @Nullable PipeSetup setup,
+                              @Nullable IUnApkmProgressListener listener)
             throws IOException {
-        ParcelFileDescriptor output = null;
         try {
-            if (unApkmService == null)
-                throw new RemoteException("UnApkmService couldn't be bound.");
-            int outputPipeId = mPipeIdGen.incrementAndGet();
-            output = unApkmService.createOutputPipe(outputPipeId);
-            Thread pumpThread = ParcelFileDescriptorUtil.pipeTo(outputStream, output);
-            unApkmService.unApkm(descriptor, outputPipeId, false);
-            pumpThread.join();
+            IUnApkmService service = mConnection.getService();
+            int pipeId = mConnection.nextPipeId();
+            if (listener != null) service.setProgressListener(pipeId, listener);
+            if (setup != null) setup.apply(service, pipeId);
+            return service.unApkmToDescriptor(input, output, pipeId, cacheInput);
         } catch (Exception e) {
             throw new IOException("Error decrypting APKM.", e);
+        }
+    }
+
+    private static void closeQuietly(@NonNull ParcelFileDescriptor descriptor) {
+        try {
+            descriptor.close();
+        } catch (IOException e) {
+            Log.e(TAG, "IOException when closing ParcelFileDescriptor!", e);
+        }
+    }
+
+    /**
+     * Start a conversion and return at once. The output stream is closed once the job is done, a regular file is
+     * written by the service itself as in {@link #decryptFile(ParcelFileDescriptor, ParcelFileDescriptor,
+     * IUnApkmProgressListener)}.
+     *
+     * @param listener Receives the progress of the conversion
+     * @param callback Receives the outcome of the conversion, or null to wait for it with {@link ConversionJob#await()}
+     * @return The job, which can be cancelled
+     * @throws IOException If the conversion couldn't start, e.g. the service is too old to run it asynchronously
+     * @see IUnApkmService#startUnApkm
+     */
+    @NonNull
+    public ConversionJob decryptFileAsync(@NonNull ParcelFileDescriptor descriptor,
+                                          @NonNull OutputStream outputStream,
+                                          @Nullable IUnApkmProgressListener listener,
+                                          @Nullable ConversionJob.Callback callback)
+            throws IOException {
+        ParcelFileDescriptor file = dupRegularFile(outputStream);
+        TransferEngine.Transfer pump = null;
+        try {
+            IUnApkmService service = mConnection.getService();
+            int pipeId = mConnection.nextPipeId();
+            ConversionJob job;
+            if (file != null) {
+                job = new ConversionJob(pipeId, callback, null, outputStream);
+            } else {
+                pump = openOutput(service, pipeId, outputStream);
+                job = new ConversionJob(pipeId, callback, pump, null);
+            }
+            if (listener != null) service.setProgressListener(pipeId, listener);
+            IUnApkmJob remote = service.startUnApkm(descriptor, file, pipeId, false, job.mRemoteCallback);
+            if (remote == null) {
+                // An older service doesn't know the transaction, no callback would ever come
+                throw new IOException("UnApkmService is too old to run conversions asynchronously");
+            }
+            job.attach(remote);
+            return job;
+        } catch (Exception e) {
+            if (pump != null) pump.cancel();
+            else outputStream.close();
+            if (e instanceof IOException) throw (IOException) e;
+            throw new IOException("Error decrypting APKM.", e);
         } finally {
-            // close() is required to halt the TransferThread
-            if (output != null) {
+            // The service received a copy of the descriptor
+            if (file != null) {
                 try {
-                    output.close();
+                    file.close();
                 } catch (IOException e) {
                     Log.e(TAG, "IOException when closing ParcelFileDescriptor!", e);
                 }
             }
         }
     }
+
+    /**
+     * @return A copy of the descriptor of {@code outputStream} if it writes to a regular file, null otherwise
+     */
+    @Nullable
+    private static ParcelFileDescriptor dupRegularFile(@NonNull OutputStream outputStream) throws IOException {
+        if (!(outputStream instanceof FileOutputStream)) return null;
+        ParcelFileDescriptor descriptor = ParcelFileDescriptor.dup(((FileOutputStream) outputStream).getFD());
+        // getStatSize() is -1 unless the descriptor is a regular file
+        if (descriptor.getStatSize() >= 0) return descriptor;
+        descriptor.close();
+        return null;
+    }
+
+    /**
+     * Convert several files at once. The service runs them on a worker pool of bounded size, so a single call can
+     * keep the device busy. The descriptors are not closed.
+     *
+     * @param inputs  APKM files
+     * @param outputs Writable descriptors, e.g. files opened with mode "w", receiving the converted files
+     * @return Status of each item, one of the {@code IUnApkmService.STATUS_*} constants
+     */
+    @NonNull
+    public int[] decryptFiles(@NonNull ParcelFileDescriptor[] inputs, @NonNull ParcelFileDescriptor[] outputs,
+                              boolean cacheInput)
+            throws IOException {
+        if (inputs.length != outputs.length) {
+            throw new IllegalArgumentException("Inputs and outputs differ in length");
+        }
+        try {
+            return mConnection.getService().unApkmBatch(inputs, outputs, cacheInput);
+        } catch (RemoteException e) {
+            throw new IOException("Error decrypting APKM files.", e);
+        }
+    }
+
+    /**
+     * Read info.json and the icon of an APKM file without converting it. Only the first chunks of the file are
+     * decrypted, making it cheap enough to index many files. The descriptor is closed afterwards.
+     *
+     * @return Values keyed by the {@code IUnApkmService.METADATA_*} constants
+     */
+    @NonNull
+    public Bundle getMetadata(@NonNull ParcelFileDescriptor descriptor) throws IOException {
+        try {
+            return mConnection.getService().getMetadata(descriptor);
+        } catch (RemoteException e) {
+            throw new IOException("Error reading APKM metadata.", e);
+        }
+    }
+
+    /**
+     * @return Aggregate metrics of the service, see {@link IUnApkmService#getMetrics()}
+     */
+    @NonNull
+    public Bundle getMetrics() throws RemoteException {
+        return mConnection.getService().getMetrics();
+    }
 }
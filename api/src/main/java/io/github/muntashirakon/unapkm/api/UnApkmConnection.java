@@ -0,0 +1,190 @@
+/*
+ * Copyright 2020 Muntashir Al-Islam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.muntashirakon.unapkm.api;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A connection to UnApkmService shared by the whole process, one per target package. It binds on first use and stays
+ * bound, so later conversions don't wait for the service. If the service dies, the system starts it again and the
+ * next calls wait for the new binder; conversions running at that time fail. Any number of threads may use it, but
+ * not the main thread while the service is not connected, since the connection is delivered there.
+ */
+public class UnApkmConnection {
+    private static final String TAG = "UnApkmConnection";
+    private static final String UN_APKM_SERVICE_ACTION = "io.github.muntashirakon.unapkm.UN_APKM";
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    private static final Map<String, UnApkmConnection> sConnections = new HashMap<>();
+
+    /**
+     * @return The connection to the service of {@code targetPackageName}, bound when first used
+     */
+    @NonNull
+    public static UnApkmConnection get(@NonNull Context context, @NonNull String targetPackageName) {
+        synchronized (sConnections) {
+            UnApkmConnection connection = sConnections.get(targetPackageName);
+            if (connection == null) {
+                // Outlives the caller's activity
+                Context appContext = context.getApplicationContext();
+                connection = new UnApkmConnection(appContext != null ? appContext : context, targetPackageName);
+                sConnections.put(targetPackageName, connection);
+            }
+            return connection;
+        }
+    }
+
+    private final Context mContext;
+    private final String mPackageName;
+    /**
+     * Pipe ids are keyed by process in the service, they must be unique across threads and instances of
+     * {@link UnApkm}
+     */
+    private final AtomicInteger mPipeIdGen = new AtomicInteger();
+    @Nullable
+    private IUnApkmService mService;
+    private boolean mBound;
+
+    private final ServiceConnection mServiceConn = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            Log.i(TAG, "UnApkmService connected");
+            synchronized (UnApkmConnection.this) {
+                mService = IUnApkmService.Stub.asInterface(service);
+                UnApkmConnection.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // Still bound, onServiceConnected() follows once the service is restarted
+            Log.w(TAG, "UnApkmService disconnected");
+            synchronized (UnApkmConnection.this) {
+                mService = null;
+            }
+        }
+
+        @Override
+        public void onBindingDied(ComponentName name) {
+            // E.g. the package was updated, the binding must be renewed
+            Log.w(TAG, "UnApkmService binding died");
+            synchronized (UnApkmConnection.this) {
+                unbind();
+                UnApkmConnection.this.notifyAll();
+            }
+        }
+    };
+
+    private UnApkmConnection(@NonNull Context context, @NonNull String packageName) {
+        mContext = context;
+        mPackageName = packageName;
+    }
+
+    /**
+     * Same as {@link #getService(long)} with {@link #DEFAULT_TIMEOUT_MILLIS}.
+     */
+    @NonNull
+    public IUnApkmService getService() throws RemoteException {
+        return getService(DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @return The service, bound first if needed
+     * @throws RemoteException If the service can't be bound or isn't connected in time
+     */
+    @NonNull
+    public synchronized IUnApkmService getService(long timeoutMillis) throws RemoteException {
+        if (mService != null) return mService;
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new RemoteException("UnApkmService can't be awaited on the main thread.");
+        }
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        while (mService == null) {
+            if (!mBound) bind();
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) throw new RemoteException("Timed out waiting for UnApkmService.");
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException(e.getMessage());
+            }
+        }
+        return mService;
+    }
+
+    /**
+     * @return Whether the service is connected now, i.e. {@link #getService()} won't wait
+     */
+    public synchronized boolean isConnected() {
+        return mService != null;
+    }
+
+    /**
+     * Unbind the service, e.g. when no more conversions are expected. The next call binds it again.
+     */
+    public synchronized void disconnect() {
+        unbind();
+        notifyAll();
+    }
+
+    int nextPipeId() {
+        return mPipeIdGen.incrementAndGet();
+    }
+
+    /**
+     * Must be called while holding this.
+     */
+    private void bind() throws RemoteException {
+        Intent intent = new Intent(UN_APKM_SERVICE_ACTION);
+        intent.setPackage(mPackageName);
+        Log.i(TAG, "Binding UnApkmService");
+        if (!mContext.bindService(intent, mServiceConn, Context.BIND_AUTO_CREATE)) {
+            // Required even though the binding failed
+            mContext.unbindService(mServiceConn);
+            throw new RemoteException("UnApkmService couldn't be bound.");
+        }
+        mBound = true;
+    }
+
+    /**
+     * Must be called while holding this.
+     */
+    private void unbind() {
+        if (mBound) {
+            mContext.unbindService(mServiceConn);
+            mBound = false;
+        }
+        mService = null;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.muntashirakon.unapkm;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+import com.goterl.lazycode.lazysodium.LazySodiumAndroid;
+import com.goterl.lazycode.lazysodium.SodiumAndroid;
+import com.souramoo.unapkm.CryptoProvider;
+
+import androidx.annotation.NonNull;
+
+class AndroidCryptoProvider implements CryptoProvider {
+    private final LazySodium mLazySodium = new LazySodiumAndroid(new SodiumAndroid());
+
+    @NonNull
+    @Override
+    public LazySodium getLazySodium() {
+        return mLazySodium;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.muntashirakon.unapkm;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.souramoo.unapkm.ProgressListener;
+
+import androidx.annotation.NonNull;
+import io.github.muntashirakon.unapkm.api.IUnApkmProgressListener;
+
+/**
+ * Forwards the progress of a conversion to a client. Calls are oneway, so a slow client doesn't hold the conversion
+ * back; once the client is gone, updates are dropped.
+ */
+class BinderProgressListener implements ProgressListener {
+    private static final String TAG = "BinderProgressListener";
+
+    private final IUnApkmProgressListener mListener;
+    private final int mPipeId;
+    private final long mBytesTotal;
+    private boolean mDead;
+
+    BinderProgressListener(@NonNull IUnApkmProgressListener listener, int pipeId, long bytesTotal) {
+        mListener = listener;
+        mPipeId = pipeId;
+        mBytesTotal = bytesTotal;
+    }
+
+    @Override
+    public void onPhaseStarted(int phase) {
+        if (mDead) return;
+        try {
+            mListener.onPhaseStarted(mPipeId, phase);
+        } catch (RemoteException e) {
+            onDead(e);
+        }
+    }
+
+    @Override
+    public void onProgress(long bytesRead, long bytesWritten, long chunksDecrypted) {
+        if (mDead) return;
+        try {
+            mListener.onProgress(mPipeId, bytesRead, mBytesTotal, bytesWritten, chunksDecrypted);
+        } catch (RemoteException e) {
+            onDead(e);
+        }
+    }
+
+    @Override
+    public void onFinished(@NonNull long[] phaseNanos) {
+        if (mDead) return;
+        try {
+            mListener.onFinished(mPipeId, phaseNanos);
+        } catch (RemoteException e) {
+            onDead(e);
+        }
+    }
+
+    private void onDead(@NonNull RemoteException e) {
+        Log.w(TAG, "Progress listener of " + mPipeId + " is gone, dropping updates", e);
+        mDead = true;
+    }
+}
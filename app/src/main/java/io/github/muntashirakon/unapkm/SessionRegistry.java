@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.muntashirakon.unapkm;
+
+import android.annotation.SuppressLint;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.souramoo.unapkm.ConversionOptions;
+import com.souramoo.unapkm.DeviceProfile;
+import com.souramoo.unapkm.EntryFilter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import io.github.muntashirakon.unapkm.api.IUnApkmProgressListener;
+import io.github.muntashirakon.unapkm.api.SharedMemoryPipe;
+
+/**
+ * What a client set up for a pipe before running its conversion: the output pipe or shared memory, the progress
+ * listener and the options. Binder calls arrive on several threads, every method is thread-safe. Sessions are keyed
+ * by the calling process and the pipe id it chose, and dropped if the conversion doesn't start within
+ * {@link #STALE_MILLIS}, e.g. because the client died.
+ */
+class SessionRegistry {
+    private static final String TAG = "SessionRegistry";
+    static final long STALE_MILLIS = 5 * 60 * 1000;
+
+    static class Session {
+        private final long mCreatedMillis = SystemClock.elapsedRealtime();
+        @Nullable
+        private ParcelFileDescriptor mOutput;
+        @Nullable
+        private SharedMemoryPipe.Writer mSharedOutput;
+        @Nullable
+        private IUnApkmProgressListener mListener;
+        @Nullable
+        private ConversionOptions mOptions;
+
+        @Nullable
+        ParcelFileDescriptor getOutput() {
+            return mOutput;
+        }
+
+        @Nullable
+        SharedMemoryPipe.Writer getSharedOutput() {
+            return mSharedOutput;
+        }
+
+        @Nullable
+        IUnApkmProgressListener getListener() {
+            return mListener;
+        }
+
+        @NonNull
+        ConversionOptions getOptions() {
+            return mOptions != null ? mOptions : new ConversionOptions();
+        }
+
+        @NonNull
+        private ConversionOptions editOptions() {
+            if (mOptions == null) mOptions = new ConversionOptions();
+            return mOptions;
+        }
+    }
+
+    private final Map<Long, Session> mSessions = new HashMap<>();
+
+    static long createKey(int callingPid, int pipeId) {
+        return ((long) callingPid << 32) | ((long) pipeId & 0xFFFFFFFFL);
+    }
+
+    synchronized void setOutput(long key, @NonNull ParcelFileDescriptor output) {
+        Session session = get(key);
+        closeOutputs(session);
+        session.mOutput = output;
+    }
+
+    synchronized void setSharedOutput(long key, @NonNull SharedMemoryPipe.Writer output) {
+        Session session = get(key);
+        closeOutputs(session);
+        session.mSharedOutput = output;
+    }
+
+    synchronized void setListener(long key, @Nullable IUnApkmProgressListener listener) {
+        get(key).mListener = listener;
+    }
+
+    synchronized void setEntryFilter(long key, @Nullable EntryFilter entryFilter) {
+        get(key).editOptions().setEntryFilter(entryFilter);
+    }
+
+    synchronized void setDeviceProfile(long key, @Nullable DeviceProfile deviceProfile) {
+        get(key).editOptions().setDeviceProfile(deviceProfile);
+    }
+
+    /**
+     * Take the session to run its conversion.
+     *
+     * @return The session, or null if nothing was set up for the key
+     */
+    @Nullable
+    synchronized Session remove(long key) {
+        return mSessions.remove(key);
+    }
+
+    synchronized int size() {
+        return mSessions.size();
+    }
+
+    /**
+     * Must be called while holding this.
+     */
+    @NonNull
+    private Session get(long key) {
+        Session session = mSessions.get(key);
+        if (session == null) {
+            removeStale();
+            session = new Session();
+            mSessions.put(key, session);
+        }
+        return session;
+    }
+
+    private void removeStale() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Session> it = mSessions.values().iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            if (now - session.mCreatedMillis > STALE_MILLIS) {
+                Log.w(TAG, "Dropping a session never converted");
+                closeOutputs(session);
+                it.remove();
+            }
+        }
+    }
+
+    @SuppressLint("NewApi")  // Shared memory outputs only exist on API 27 and later
+    private static void closeOutputs(@NonNull Session session) {
+        closeQuietly(session.mOutput);
+        session.mOutput = null;
+        if (session.mSharedOutput != null) session.mSharedOutput.abort();
+        session.mSharedOutput = null;
+    }
+
+    private static void closeQuietly(@Nullable ParcelFileDescriptor descriptor) {
+        if (descriptor == null) return;
+        try {
+            descriptor.close();
+        } catch (IOException e) {
+            Log.e(TAG, "IOException when closing ParcelFileDescriptor", e);
+        }
+    }
+}
@@ -17,41 +17,120 @@
 
 package io.github.muntashirakon.unapkm;
 
+import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
 import android.util.Log;
 
+import com.goterl.lazycode.lazysodium.interfaces.SecretBox;
+import com.souramoo.unapkm.AdmissionController;
+import com.souramoo.unapkm.ApkmInfo;
+import com.souramoo.unapkm.ApkmMetadata;
+import com.souramoo.unapkm.CancellationToken;
+import com.souramoo.unapkm.ConversionMetrics;
+import com.souramoo.unapkm.ConversionOptions;
+import com.souramoo.unapkm.ConversionPipeline;
+import com.souramoo.unapkm.DerivedKeyCache;
+import com.souramoo.unapkm.DeviceProfile;
+import com.souramoo.unapkm.EntryFilters;
+import com.souramoo.unapkm.FileChannelInputStream;
+import com.souramoo.unapkm.FileChannelOutputStream;
+import com.souramoo.unapkm.ResultCache;
+import com.souramoo.unapkm.SpoolCache;
+import com.souramoo.unapkm.TeeOutputStream;
 import com.souramoo.unapkm.UnApkm;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import io.github.muntashirakon.unapkm.api.IUnApkmJob;
+import io.github.muntashirakon.unapkm.api.IUnApkmJobCallback;
+import io.github.muntashirakon.unapkm.api.IUnApkmProgressListener;
 import io.github.muntashirakon.unapkm.api.IUnApkmService;
+import io.github.muntashirakon.unapkm.api.SharedMemoryPipe;
 
 public class UnApkmService extends Service {
     private static final String TAG = "UnApkmService";
+    private static final String KEY_CACHE_DIR = "kdf";
+    private static final String KEY_CACHE_SECRET = "kdf_cache.key";
+    /**
+     * Piped inputs were copied there with cacheInput, they were never read again
+     */
+    private static final String LEGACY_SPOOL_DIR = "spool";
+    private static final String RESULT_CACHE_DIR = "results";
+    /**
+     * Lower bound of the memory budget of the conversions, a conversion needing more runs alone
+     */
+    private static final long MIN_MEMORY_BUDGET = 64 * 1024 * 1024;
+    /**
+     * Lower bound of the threads running jobs, a job mostly waits on its descriptors or its admission
+     */
+    private static final int MIN_JOB_THREADS = 2;
+    private static final long JOB_THREAD_KEEP_ALIVE_SECONDS = 30;
 
-    private final Map<Long, ParcelFileDescriptor> mOutputPipeMap = new HashMap<>();
+    // Binder calls arrive on several threads, the registry is thread-safe
+    private final SessionRegistry mSessions = new SessionRegistry();
+    /**
+     * Runs the items of batch conversions, shared by every client so that the concurrency stays bounded
+     */
+    private ExecutorService mWorkerPool;
+    /**
+     * Runs the jobs started with startUnApkm(), the others wait in its queue before taking a thread. Those running
+     * are further bounded by the admission control.
+     */
+    private ExecutorService mJobPool;
+    private ResultCache mResultCache;
+    /**
+     * Admits conversions by the memory they need, those that don't fit wait in turns per calling app
+     */
+    private AdmissionController mAdmission;
+    private final ConversionMetrics mMetrics = new ConversionMetrics();
 
     private final Binder binder = new IUnApkmService.Stub() {
         @Override
         public ParcelFileDescriptor createOutputPipe(int pipeId) throws RemoteException {
             try {
                 ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
-                mOutputPipeMap.put(createKey(pipeId), pipe[1]);
+                mSessions.setOutput(createKey(pipeId), pipe[1]);
                 return pipe[0];
             } catch (IOException e) {
                 Log.e(TAG, "IOException in during pipe creation.", e);
@@ -61,48 +140,597 @@ public class UnApkmService extends Service {
 
         @Override
         public void unApkm(ParcelFileDescriptor input, int pipeId, boolean cacheInput) throws RemoteException {
-            long key = createKey(pipeId);
-            ParcelFileDescriptor output = mOutputPipeMap.get(key);
-            mOutputPipeMap.remove(key);
-            if (output == null) {
+            SessionRegistry.Session session = mSessions.remove(createKey(pipeId));
+            ParcelFileDescriptor output = session != null ? session.getOutput() : null;
+            SharedMemoryPipe.Writer sharedOutput = session != null ? session.getSharedOutput() : null;
+            if (output == null && sharedOutput == null) {
                 throw new RemoteException("Output pipe doesn't exist for " + pipeId);
             }
             if (input == null) {
+                abortOutput(output, sharedOutput);
                 throw new RemoteException("Input is null for id " + pipeId);
             }
-            OutputStream outputStream = new ParcelFileDescriptor.AutoCloseOutputStream(output);
-            InputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(input);
             try {
-                long startTime = SystemClock.elapsedRealtime();
-                if (cacheInput) {
-                    // Useful if the supplied input is piped
-                    File file = File.createTempFile("apkm", ".apkm", getExternalCacheDir());
-                    try (FileOutputStream fos = new FileOutputStream(file)) {
-                        copy(inputStream, fos);
+                if (sharedOutput != null) {
+                    convert(input, sharedOutput, true, session.getOptions(), session.getListener(),
+                            pipeId, Binder.getCallingUid());
+                } else {
+                    convert(input, output, true, session.getOptions(), session.getListener(), pipeId,
+                            Binder.getCallingUid());
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "IOException in during conversion.", e);
+                throw new RemoteException(e.getMessage());
+            }
+        }
+
+        @Override
+        public int[] unApkmBatch(ParcelFileDescriptor[] inputs, ParcelFileDescriptor[] outputs, boolean cacheInput)
+                throws RemoteException {
+            if (inputs == null || outputs == null || inputs.length != outputs.length) {
+                throw new RemoteException("Inputs and outputs must have the same length");
+            }
+            final int[] statuses = new int[inputs.length];
+            // The workers don't run on a binder thread, the caller is only known here
+            final int callerUid = Binder.getCallingUid();
+            List<Future<?>> futures = new ArrayList<>(inputs.length);
+            // Index of the item each future converts
+            List<Integer> indexes = new ArrayList<>(inputs.length);
+            for (int i = 0; i < inputs.length; ++i) {
+                final int index = i;
+                final ParcelFileDescriptor input = inputs[i];
+                final ParcelFileDescriptor output = outputs[i];
+                if (input == null || output == null) {
+                    statuses[i] = IUnApkmService.STATUS_INVALID_ARGUMENT;
+                    closeQuietly(input);
+                    closeQuietly(output);
+                    continue;
+                }
+                indexes.add(index);
+                futures.add(mWorkerPool.submit(() -> {
+                    try {
+                        // Files already run in parallel, don't split each of them across threads as well
+                        convert(input, output, false, new ConversionOptions(), null, index, callerUid);
+                        statuses[index] = IUnApkmService.STATUS_OK;
+                    } catch (IOException e) {
+                        Log.e(TAG, "IOException in during conversion of item " + index, e);
+                        statuses[index] = IUnApkmService.STATUS_IO_ERROR;
+                    } catch (Exception e) {
+                        Log.e(TAG, "Conversion of item " + index + " failed", e);
+                        statuses[index] = IUnApkmService.STATUS_FAILED;
                     }
-                    try (FileInputStream fis = new FileInputStream(file)) {
-                        UnApkm.decryptFile(fis, outputStream);
+                }));
+            }
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                for (int i = 0; i < futures.size(); ++i) {
+                    // A task that never started won't close its descriptors, the client would wait for them forever
+                    if (futures.get(i).cancel(true)) {
+                        int index = indexes.get(i);
+                        closeQuietly(inputs[index]);
+                        closeQuietly(outputs[index]);
                     }
-                } else UnApkm.decryptFile(inputStream, outputStream);
-                long elapsedTime = SystemClock.elapsedRealtime() - startTime;
-                Log.i(TAG, "Elapsed time: " + elapsedTime);
+                }
+                throw new RemoteException(e.getMessage());
+            }
+            // Statuses are written by the workers, Future#get() makes them visible here
+            return statuses;
+        }
+
+        @Override
+        public void setProgressListener(int pipeId, IUnApkmProgressListener listener) {
+            mSessions.setListener(createKey(pipeId), listener);
+        }
+
+        @Override
+        public void setEntryFilter(int pipeId, String[] entryPatterns) {
+            mSessions.setEntryFilter(createKey(pipeId),
+                    entryPatterns != null ? EntryFilters.globs(entryPatterns) : null);
+        }
+
+        @Override
+        public void setDeviceProfile(int pipeId, String[] abis, int densityDpi, String[] locales)
+                throws RemoteException {
+            DeviceProfile profile = new DeviceProfile();
+            try {
+                if (abis != null) profile.setAbis(abis);
+                if (locales != null) profile.setLocales(locales);
+                profile.setDensityDpi(densityDpi);
+            } catch (IllegalArgumentException e) {
+                throw new RemoteException(e.getMessage());
+            }
+            mSessions.setDeviceProfile(createKey(pipeId), profile);
+        }
+
+        @Override
+        public Bundle getMetadata(ParcelFileDescriptor input) throws RemoteException {
+            if (input == null) throw new RemoteException("Input is null");
+            ApkmMetadata metadata;
+            try {
+                metadata = UnApkm.readMetadata(openInput(input));
+            } catch (Exception e) {
+                Log.e(TAG, "Could not read metadata.", e);
+                throw new RemoteException(e.getMessage());
+            }
+            Log.i(TAG, metadata.toString());
+            Bundle bundle = new Bundle();
+            ApkmInfo info = metadata.getInfo();
+            if (info != null) {
+                bundle.putString(IUnApkmService.METADATA_PACKAGE_NAME, info.getPackageName());
+                bundle.putString(IUnApkmService.METADATA_APP_NAME, info.getAppName());
+                bundle.putString(IUnApkmService.METADATA_VERSION_NAME, info.getVersionName());
+                if (info.getVersionCode() >= 0) {
+                    bundle.putLong(IUnApkmService.METADATA_VERSION_CODE, info.getVersionCode());
+                }
+                if (info.getMinApi() >= 0) bundle.putLong(IUnApkmService.METADATA_MIN_API, info.getMinApi());
+            }
+            if (metadata.getInfoJson() != null) {
+                bundle.putString(IUnApkmService.METADATA_INFO_JSON,
+                        new String(metadata.getInfoJson(), StandardCharsets.UTF_8));
+            }
+            if (metadata.getIcon() != null) bundle.putByteArray(IUnApkmService.METADATA_ICON, metadata.getIcon());
+            return bundle;
+        }
+
+        @Override
+        public boolean unApkmToDescriptor(ParcelFileDescriptor input, ParcelFileDescriptor output, int pipeId,
+                                          boolean cacheInput) throws RemoteException {
+            SessionRegistry.Session session = mSessions.remove(createKey(pipeId));
+            if (input == null || output == null) {
+                closeQuietly(input);
+                closeQuietly(output);
+                throw new RemoteException("Input or output is null for id " + pipeId);
+            }
+            try {
+                convert(input, output, true,
+                        session != null ? session.getOptions() : new ConversionOptions(),
+                        session != null ? session.getListener() : null, pipeId, Binder.getCallingUid());
             } catch (Exception e) {
                 Log.e(TAG, "IOException in during conversion.", e);
                 throw new RemoteException(e.getMessage());
-            } finally {
+            }
+            return true;
+        }
+
+        @Override
+        public IUnApkmJob startUnApkm(ParcelFileDescriptor input, ParcelFileDescriptor output, int pipeId,
+                                      boolean cacheInput, IUnApkmJobCallback callback) throws RemoteException {
+            SessionRegistry.Session session = mSessions.remove(createKey(pipeId));
+            ParcelFileDescriptor pipe = session != null ? session.getOutput() : null;
+            SharedMemoryPipe.Writer sharedOutput = session != null ? session.getSharedOutput() : null;
+            if (output == null) {
+                output = pipe;
+            } else {
+                abortOutput(pipe, sharedOutput);
+                sharedOutput = null;
+            }
+            if (input == null || (output == null && sharedOutput == null) || callback == null) {
+                closeQuietly(input);
+                abortOutput(output, sharedOutput);
+                throw new RemoteException("Input, output or callback is null for id " + pipeId);
+            }
+            Job job = new Job(input, output, sharedOutput,
+                    session != null ? session.getOptions() : new ConversionOptions(),
+                    session != null ? session.getListener() : null, pipeId, Binder.getCallingUid(), callback);
+            job.start();
+            return job;
+        }
+
+        @Override
+        public boolean setSharedMemoryOutput(int pipeId, Bundle transport) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1 || transport == null) return false;
+            try {
+                mSessions.setSharedOutput(createKey(pipeId), SharedMemoryPipe.Writer.open(transport));
+                return true;
+            } catch (IOException | RuntimeException e) {
+                // The client falls back to a pipe
+                Log.w(TAG, "Shared memory output unavailable for " + pipeId, e);
+                return false;
+            }
+        }
+
+        @Override
+        public Bundle getMetrics() {
+            Bundle metrics = new Bundle();
+            for (Map.Entry<String, Long> metric : mMetrics.snapshot().entrySet()) {
+                metrics.putLong(metric.getKey(), metric.getValue());
+            }
+            return metrics;
+        }
+    };
+
+    /**
+     * A conversion started with startUnApkm(). Cancelling it stops the conversion through its token and closes both
+     * descriptors, which also wakes it up if it is blocked on a pipe; the thread is interrupted in case it waits for
+     * memory. The output is either a descriptor or shared memory.
+     */
+    private class Job extends IUnApkmJob.Stub implements Runnable, IBinder.DeathRecipient {
+        private final ParcelFileDescriptor mInput;
+        @Nullable
+        private final ParcelFileDescriptor mOutput;
+        @Nullable
+        private final SharedMemoryPipe.Writer mSharedOutput;
+        private final ConversionOptions mOptions;
+        @Nullable
+        private final IUnApkmProgressListener mListener;
+        private final int mPipeId;
+        private final int mCallerUid;
+        private final IUnApkmJobCallback mCallback;
+        private final CancellationToken mToken = new CancellationToken();
+        /**
+         * Guards {@link #mThread}, so that cancel() can't interrupt the thread once it has moved on to another job
+         */
+        private final Object mLock = new Object();
+        @Nullable
+        private Thread mThread;
+        private volatile boolean mDone;
+
+        Job(@NonNull ParcelFileDescriptor input, @Nullable ParcelFileDescriptor output,
+            @Nullable SharedMemoryPipe.Writer sharedOutput, @NonNull ConversionOptions options,
+            @Nullable IUnApkmProgressListener listener, int pipeId, int callerUid,
+            @NonNull IUnApkmJobCallback callback) {
+            mInput = input;
+            mOutput = output;
+            mSharedOutput = sharedOutput;
+            mOptions = options;
+            mListener = listener;
+            mPipeId = pipeId;
+            mCallerUid = callerUid;
+            mCallback = callback;
+        }
+
+        void start() throws RemoteException {
+            try {
+                // Nobody would read the output of a dead client
+                mCallback.asBinder().linkToDeath(this, 0);
+            } catch (RemoteException e) {
+                closeQuietly(mInput);
+                abortOutput(mOutput, mSharedOutput);
+                throw e;
+            }
+            mOptions.setCancellationToken(mToken);
+            mJobPool.execute(this);
+        }
+
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mThread = Thread.currentThread();
+            }
+            try {
+                // Cancelled while queued, the descriptors are closed already
+                if (mToken.isCancelled()) throw new InterruptedIOException("Cancelled before starting");
+                if (mSharedOutput != null) {
+                    convert(mInput, mSharedOutput, true, mOptions, mListener, mPipeId, mCallerUid);
+                } else {
+                    //noinspection ConstantConditions
+                    convert(mInput, mOutput, true, mOptions, mListener, mPipeId, mCallerUid);
+                }
+                mDone = true;
+                mCallback.onCompleted(mPipeId);
+            } catch (Exception e) {
+                mDone = true;
                 try {
-                    inputStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "IOException when closing input ParcelFileDescriptor", e);
+                    if (mToken.isCancelled()) {
+                        Log.i(TAG, "Conversion " + mPipeId + " cancelled");
+                        mCallback.onCancelled(mPipeId);
+                    } else {
+                        Log.e(TAG, "Conversion " + mPipeId + " failed", e);
+                        mCallback.onFailed(mPipeId, e.getMessage());
+                    }
+                } catch (RemoteException ignore) {
+                }
+            } finally {
+                synchronized (mLock) {
+                    mThread = null;
+                    // The thread goes back to the pool, a late cancel() must not reach the next job
+                    //noinspection ResultOfMethodCallIgnored
+                    Thread.interrupted();
+                }
+                mCallback.asBinder().unlinkToDeath(this, 0);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (mLock) {
+                if (mDone || mToken.isCancelled()) return;
+                mToken.cancel();
+                if (mThread != null) mThread.interrupt();
+            }
+            closeQuietly(mInput);
+            abortOutput(mOutput, mSharedOutput);
+        }
+
+        @Override
+        public void binderDied() {
+            Log.w(TAG, "Client of conversion " + mPipeId + " died, cancelling it");
+            cancel();
+        }
+    }
+
+    /**
+     * Convert a file, both descriptors are closed afterwards.
+     *
+     * @param allowPipelined Whether the conversion may use several threads
+     * @param options        Options of this conversion, its progress listener is replaced
+     * @param listener       Listener receiving the progress, reported with {@code pipeId}
+     */
+    private void convert(@NonNull ParcelFileDescriptor input, @NonNull ParcelFileDescriptor output,
+                         boolean allowPipelined, @NonNull ConversionOptions options,
+                         @Nullable IUnApkmProgressListener listener, int pipeId, int callerUid)
+            throws IOException {
+        // The converted file is about as large as the input unless entries are skipped, the rest is truncated
+        convert(input, openOutput(output, input.getStatSize()), allowPipelined, options, listener, pipeId,
+                callerUid);
+    }
+
+    /**
+     * Convert a file into a stream, e.g. shared memory. The descriptor and the stream are closed afterwards.
+     */
+    private void convert(@NonNull ParcelFileDescriptor input, @NonNull OutputStream outputStream,
+                         boolean allowPipelined, @NonNull ConversionOptions options,
+                         @Nullable IUnApkmProgressListener listener, int pipeId, int callerUid)
+            throws IOException {
+        // The session also collects the phase timings, the listener of the client is attached to it when present
+        ConversionMetrics.Session session = mMetrics.begin();
+        options.setProgressListener(session);
+        // -1 unless the descriptor is a regular file
+        long inputSize = input.getStatSize();
+        InputStream inputStream = openInput(input);
+        SpoolCache.Spool result = null;
+        try {
+            long startTime = SystemClock.elapsedRealtime();
+            long startGcCount = getGcCount();
+            if (listener != null) {
+                session.setDelegate(new BinderProgressListener(listener, pipeId, inputSize));
+            }
+            StructStat inputStat = null;
+            String fileId = null;
+            // The times of a file have a resolution of a second, see ResultCache#putDigest(String, byte[])
+            long startSeconds = System.currentTimeMillis() / 1000;
+            if (inputStream instanceof FileChannelInputStream && mResultCache.isEnabled()) {
+                // A regular file converted before is known by its identity: on a hit the KDF, the decryption and the
+                // ZIP rewrite are skipped without reading the file
+                inputStat = stat(input);
+                fileId = inputStat != null ? getFileId(inputStat) : null;
+                byte[] inputDigest = fileId != null ? mResultCache.getDigest(fileId) : null;
+                if (inputDigest != null && serveCachedResult(ResultCache.getKey(inputDigest, options), outputStream,
+                        inputSize, session)) {
+                    session.succeeded();
+                    Log.i(TAG, "Served from the result cache in " + (SystemClock.elapsedRealtime() - startTime)
+                            + " ms");
+                    return;
                 }
+                mMetrics.recordResultCacheMiss();
+            }
+            // Only the header is parsed, without the KDF, to know how much memory the conversion needs
+            InputStream source = inputStream;
+            UnApkm.Header header;
+            if (inputStream instanceof FileChannelInputStream) {
+                try (InputStream headerStream = ((FileChannelInputStream) inputStream).duplicate()) {
+                    header = UnApkm.readHeader(headerStream);
+                }
+            } else {
+                byte[] headerBytes = new byte[UnApkm.HEADER_SIZE];
+                new DataInputStream(inputStream).readFully(headerBytes);
+                header = UnApkm.readHeader(new ByteArrayInputStream(headerBytes));
+                source = new SequenceInputStream(new ByteArrayInputStream(headerBytes), inputStream);
+            }
+            // A regular file is hashed while it is converted rather than in a pass of its own. Piped input isn't
+            // cached at all, it has no identity its result could be looked up by.
+            DigestInputStream digesting = null;
+            if (fileId != null) {
+                digesting = new DigestInputStream(source, ResultCache.newDigest());
+                source = digesting;
+                result = mResultCache.create();
+            }
+            long waitStart = SystemClock.elapsedRealtime();
+            long waitTime = 0;
+            mAdmission.setBudgetBytes(computeMemoryBudget());
+            long kdfMemory = UnApkm.estimateKdfMemory(header);
+            if (kdfMemory > 0) {
+                // The KDF memory is freed once the key is derived, it is admitted on its own rather than for the
+                // whole conversion. The conversion then gets the key from the cache.
+                AdmissionController.Ticket kdfTicket = mAdmission.acquire(callerUid, kdfMemory);
                 try {
-                    outputStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG,"IOException when closing output ParcelFileDescriptor", e);
+                    waitTime = SystemClock.elapsedRealtime() - waitStart;
+                    UnApkm.deriveKey(header);
+                } finally {
+                    kdfTicket.close();
+                }
+                waitStart = SystemClock.elapsedRealtime();
+            }
+            // Includes the KDF again should its key have been evicted in between
+            AdmissionController.Ticket ticket = mAdmission.acquire(callerUid, UnApkm.estimateMemory(header));
+            try {
+                mMetrics.recordAdmissionWait(waitTime + SystemClock.elapsedRealtime() - waitStart);
+                decryptFile(source, result != null ? new TeeOutputStream(outputStream, result) : outputStream,
+                        options, allowPipelined);
+            } finally {
+                ticket.close();
+            }
+            // The conversion reads the input to its end and fails if the final chunk is missing, so the digest covers
+            // the whole file and both copies are complete
+            if (digesting != null) {
+                byte[] inputDigest = digesting.getMessageDigest().digest();
+                if (result.commit(ResultCache.getKey(inputDigest, options)) == null) {
+                    Log.i(TAG, "Result not cached");
+                } else if (inputStat.st_ctime < startSeconds) {
+                    // Neither modified within the second the conversion started in nor since
+                    StructStat stat = stat(input);
+                    if (stat != null && fileId.equals(getFileId(stat))) mResultCache.putDigest(fileId, inputDigest);
                 }
             }
+            session.succeeded();
+            long elapsedTime = SystemClock.elapsedRealtime() - startTime;
+            Log.i(TAG, "Elapsed time: " + elapsedTime);
+            Log.i(TAG, UnApkm.getKeyCache().toString());
+            Log.i(TAG, UnApkm.getBufferPool().toString() + ", GC count: "
+                    + (startGcCount >= 0 ? getGcCount() - startGcCount : "unavailable"));
+        } catch (Throwable th) {
+            session.failed(th);
+            throw th;
+        } finally {
+            if (result != null) result.abort();
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                Log.e(TAG, "IOException when closing input ParcelFileDescriptor", e);
+            }
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                Log.e(TAG,"IOException when closing output ParcelFileDescriptor", e);
+            }
         }
-    };
+    }
+
+    /**
+     * Copy the cached result of a conversion to the output, if there is one.
+     *
+     * @return Whether the result was cached
+     */
+    private boolean serveCachedResult(@NonNull String resultKey, @NonNull OutputStream outputStream, long inputSize,
+                                      @NonNull ConversionMetrics.Session session) throws IOException {
+        FileInputStream cached = mResultCache.open(resultKey);
+        if (cached == null) return false;
+        long length;
+        try {
+            if (outputStream instanceof FileChannelOutputStream) {
+                // File to file, the kernel copies it
+                length = ((FileChannelOutputStream) outputStream).transferFrom(cached.getChannel());
+            } else length = copy(cached, outputStream);
+        } finally {
+            cached.close();
+        }
+        session.onProgress(inputSize, length, 0);
+        mMetrics.recordResultCacheHit(inputSize);
+        return true;
+    }
+
+    @Nullable
+    private static StructStat stat(@NonNull ParcelFileDescriptor descriptor) {
+        try {
+            return Os.fstat(descriptor.getFileDescriptor());
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Could not stat the input", e);
+            return null;
+        }
+    }
+
+    /**
+     * @see ResultCache#getFileId(long, long, long, long, long)
+     */
+    @NonNull
+    private static String getFileId(@NonNull StructStat stat) {
+        return ResultCache.getFileId(stat.st_dev, stat.st_ino, stat.st_size, stat.st_mtime, stat.st_ctime);
+    }
+
+    /**
+     * Open a descriptor closed along with the returned stream. Regular files are read through their channel,
+     * only pipes and sockets are streamed.
+     */
+    @NonNull
+    private static InputStream openInput(@NonNull ParcelFileDescriptor input) throws IOException {
+        FileInputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(input);
+        // getStatSize() is -1 unless the descriptor is a regular file
+        if (input.getStatSize() < 0) return inputStream;
+        // Closing the channel closes the descriptor as well
+        return new FileChannelInputStream(inputStream.getChannel(), true);
+    }
+
+    /**
+     * Open a descriptor closed along with the returned stream. Regular files are written through their channel with
+     * space preallocated for {@code estimatedSize} bytes, only pipes and sockets are streamed.
+     *
+     * @param estimatedSize Expected size of the output, or -1 if unknown
+     */
+    @NonNull
+    private static OutputStream openOutput(@NonNull ParcelFileDescriptor output, long estimatedSize)
+            throws IOException {
+        FileOutputStream outputStream = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+        // getStatSize() is -1 unless the descriptor is a regular file
+        if (output.getStatSize() < 0) return outputStream;
+        FileChannel channel = outputStream.getChannel();
+        if (estimatedSize > 0) {
+            try {
+                Os.posix_fallocate(output.getFileDescriptor(), channel.position(), estimatedSize);
+            } catch (ErrnoException e) {
+                // Not every file system supports it, the file then grows as it is written
+                Log.d(TAG, "Could not preallocate " + estimatedSize + " bytes: " + e.getMessage());
+            }
+        }
+        // Closing the channel closes the descriptor as well
+        return new FileChannelOutputStream(channel, true);
+    }
+
+    private static void decryptFile(@NonNull InputStream inputStream, @NonNull OutputStream outputStream,
+                                    @NonNull ConversionOptions options, boolean allowPipelined)
+            throws IOException {
+        if (allowPipelined && Runtime.getRuntime().availableProcessors() > 1) {
+            ConversionPipeline.Stats stats = UnApkm.decryptFilePipelined(inputStream, outputStream, options);
+            Log.i(TAG, stats.toString());
+        } else UnApkm.decryptFile(inputStream, outputStream, options);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        final AtomicInteger threadId = new AtomicInteger();
+        mAdmission = new AdmissionController(computeMemoryBudget());
+        int jobThreads = Math.max(MIN_JOB_THREADS, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor jobPool = new ThreadPoolExecutor(jobThreads, jobThreads, JOB_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "UnApkmJob-" + threadId.incrementAndGet()));
+        // Idle threads aren't kept for a service that is mostly idle
+        jobPool.allowCoreThreadTimeOut(true);
+        mJobPool = jobPool;
+        mWorkerPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                r -> new Thread(r, "UnApkmWorker-" + threadId.incrementAndGet()));
+        File cacheDir = getExternalCacheDir() != null ? getExternalCacheDir() : getCacheDir();
+        deleteLegacySpoolFiles(cacheDir);
+        mResultCache = new ResultCache(new File(cacheDir, RESULT_CACHE_DIR),
+                getResources().getInteger(R.integer.result_cache_budget_mib) * 1024L * 1024L);
+        // Nothing is cached yet, partial files can only be left by a previous process
+        mResultCache.cleanUp();
+        try {
+            byte[] diskKey = getKeyCacheSecret();
+            UnApkm.setKeyCache(new DerivedKeyCache(DerivedKeyCache.DEFAULT_MAX_ENTRIES,
+                    new File(getCacheDir(), KEY_CACHE_DIR), diskKey, DerivedKeyCache.DEFAULT_MAX_DISK_ENTRIES));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load key cache secret, using memory only cache.", e);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            // Waiting conversions are only admitted within what the system can spare now
+            mAdmission.setBudgetBytes(computeMemoryBudget());
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        mWorkerPool.shutdownNow();
+        mJobPool.shutdownNow();
+        super.onDestroy();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("UnApkmService");
+        mMetrics.dump(writer);
+        writer.println("Admission: " + mAdmission);
+        writer.println("Pending sessions: " + mSessions.size());
+        writer.println("Key cache: " + UnApkm.getKeyCache());
+        writer.println("Buffer pool: " + UnApkm.getBufferPool());
+    }
 
     @Nullable
     @Override
@@ -111,8 +739,93 @@ public class UnApkmService extends Service {
     }
 
     private long createKey(int id) {
-        int callingPid = Binder.getCallingPid();
-        return ((long) callingPid << 32) | ((long) id & 0xFFFFFFFL);
+        return SessionRegistry.createKey(Binder.getCallingPid(), id);
+    }
+
+    /**
+     * @return Memory conversions may take: what they hold already plus half of what the system can spare before it
+     * starts killing processes
+     */
+    private long computeMemoryBudget() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        long spare = Math.max(0, memoryInfo.availMem - memoryInfo.threshold) / 2;
+        long inUse = mAdmission != null ? mAdmission.getBytesInUse() : 0;
+        return Math.max(MIN_MEMORY_BUDGET, inUse + spare);
+    }
+
+    @NonNull
+    private byte[] getKeyCacheSecret() throws IOException {
+        File secretFile = new File(getNoBackupFilesDir(), KEY_CACHE_SECRET);
+        byte[] secret = new byte[SecretBox.KEYBYTES];
+        if (secretFile.length() == secret.length) {
+            try (FileInputStream fis = new FileInputStream(secretFile)) {
+                if (fis.read(secret) == secret.length) return secret;
+            }
+        }
+        new SecureRandom().nextBytes(secret);
+        try (FileOutputStream fos = new FileOutputStream(secretFile)) {
+            fos.write(secret);
+        }
+        return secret;
+    }
+
+    /**
+     * Delete the input copies older versions left in the root of the cache directory and in its spool directory.
+     */
+    private static void deleteLegacySpoolFiles(@NonNull File cacheDir) {
+        File[] files = cacheDir.listFiles((dir, name) -> name.startsWith("apkm") && name.endsWith(".apkm"));
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        File spoolDir = new File(cacheDir, LEGACY_SPOOL_DIR);
+        files = spoolDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        spoolDir.delete();
+    }
+
+    /**
+     * @return Number of garbage collections run by the runtime so far, or -1 if unavailable
+     */
+    private static long getGcCount() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            String gcCount = Debug.getRuntimeStat("art.gc.gc-count");
+            if (gcCount != null) {
+                try {
+                    return Long.parseLong(gcCount);
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Close the output of a conversion that won't run or is cancelled, a reader of shared memory sees it fail.
+     */
+    @SuppressLint("NewApi")  // Shared memory outputs only exist on API 27 and later
+    private static void abortOutput(@Nullable ParcelFileDescriptor output,
+                                    @Nullable SharedMemoryPipe.Writer sharedOutput) {
+        closeQuietly(output);
+        if (sharedOutput != null) sharedOutput.abort();
+    }
+
+    private static void closeQuietly(@Nullable ParcelFileDescriptor descriptor) {
+        if (descriptor == null) return;
+        try {
+            descriptor.close();
+        } catch (IOException e) {
+            Log.e(TAG, "IOException when closing ParcelFileDescriptor", e);
+        }
     }
 
     private static final int DEFAULT_BUFFER_SIZE = 1024 * 4;
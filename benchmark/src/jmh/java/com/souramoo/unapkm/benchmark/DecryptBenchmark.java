@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm.benchmark;
+
+import com.goterl.lazycode.lazysodium.interfaces.PwHash;
+import com.souramoo.unapkm.SecretStreamDecryptor;
+import com.souramoo.unapkm.UnApkm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Secretstream decryption of a 16 MiB payload at several chunk sizes, the key derivation excluded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DecryptBenchmark {
+    static final int PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    @Param({"4096", "65536", "1048576"})
+    public int chunkSize;
+
+    private byte[] apkm;
+    private int headerLength;
+    private UnApkm.Header header;
+
+    @Setup
+    public void setUp() throws IOException {
+        apkm = SyntheticApkm.encrypt(SyntheticApkm.zip(8, PAYLOAD_SIZE / 8, 1), chunkSize,
+                PwHash.Alg.PWHASH_ALG_ARGON2ID13, SyntheticApkm.OPS_LIMIT_MIN, SyntheticApkm.MEM_LIMIT_MIN);
+        ByteArrayInputStream is = new ByteArrayInputStream(apkm);
+        header = UnApkm.processHeader(is, SyntheticApkm.LAZY_SODIUM);
+        headerLength = apkm.length - is.available();
+    }
+
+    @Benchmark
+    public long decryptChunks(Blackhole blackhole) throws IOException {
+        ByteArrayInputStream is = new ByteArrayInputStream(apkm, headerLength, apkm.length - headerLength);
+        try (SecretStreamDecryptor decryptor = new SecretStreamDecryptor(header, SyntheticApkm.LAZY_SODIUM,
+                UnApkm.getBufferPool())) {
+            int length;
+            while ((length = decryptor.decryptChunk(is)) != -1) {
+                blackhole.consume(length);
+            }
+            blackhole.consume(decryptor.getBuffer());
+            return decryptor.getChunkCount();
+        }
+    }
+}
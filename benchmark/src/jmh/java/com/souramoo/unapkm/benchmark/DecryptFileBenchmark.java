@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm.benchmark;
+
+import com.goterl.lazycode.lazysodium.interfaces.PwHash;
+import com.souramoo.unapkm.ConversionOptions;
+import com.souramoo.unapkm.UnApkm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end conversion of a 16 MiB APKM file. The derived key is cached after the first call, as it is for repeated
+ * conversions in the app.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DecryptFileBenchmark {
+    @Param({"sequential", "pipelined"})
+    public String engine;
+
+    /**
+     * {@link ConversionOptions#COMPRESSION_COPY}, or a level to recompress at
+     */
+    @Param({"-2", "1"})
+    public int compressionLevel;
+
+    private byte[] apkm;
+    private ConversionOptions options;
+
+    @Setup
+    public void setUp() throws IOException {
+        apkm = SyntheticApkm.encrypt(SyntheticApkm.zip(8, DecryptBenchmark.PAYLOAD_SIZE / 8, 1), 65536,
+                PwHash.Alg.PWHASH_ALG_ARGON2ID13, SyntheticApkm.OPS_LIMIT, SyntheticApkm.MEM_LIMIT);
+        options = new ConversionOptions().setCompressionLevel(compressionLevel);
+    }
+
+    @Benchmark
+    public void decryptFile() throws IOException {
+        ByteArrayInputStream is = new ByteArrayInputStream(apkm);
+        ZipRewriteBenchmark.NullOutputStream os = new ZipRewriteBenchmark.NullOutputStream();
+        if ("pipelined".equals(engine)) {
+            UnApkm.decryptFilePipelined(is, os, options);
+        } else {
+            UnApkm.decryptFile(is, os, options);
+        }
+    }
+}
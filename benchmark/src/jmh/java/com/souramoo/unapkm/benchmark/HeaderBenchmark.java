@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm.benchmark;
+
+import com.goterl.lazycode.lazysodium.interfaces.PwHash;
+import com.souramoo.unapkm.DerivedKeyCache;
+import com.souramoo.unapkm.UnApkm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link UnApkm#processHeader(java.io.InputStream, com.goterl.lazycode.lazysodium.LazySodium, boolean)}, with and
+ * without the key derivation. With {@code keyCache} off every call derives the key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HeaderBenchmark {
+    @Param({"true", "false"})
+    public boolean expensiveOps;
+
+    @Param({"true", "false"})
+    public boolean keyCache;
+
+    private byte[] apkm;
+
+    @Setup
+    public void setUp() throws IOException {
+        apkm = SyntheticApkm.encrypt(new byte[1024], 1024, PwHash.Alg.PWHASH_ALG_ARGON2ID13,
+                SyntheticApkm.OPS_LIMIT, SyntheticApkm.MEM_LIMIT);
+        UnApkm.setKeyCache(new DerivedKeyCache(keyCache ? DerivedKeyCache.DEFAULT_MAX_ENTRIES : 0));
+    }
+
+    @Benchmark
+    public UnApkm.Header processHeader() throws IOException {
+        return UnApkm.processHeader(new ByteArrayInputStream(apkm), SyntheticApkm.LAZY_SODIUM, expensiveOps);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm.benchmark;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+import com.goterl.lazycode.lazysodium.interfaces.PwHash;
+import com.souramoo.unapkm.ApkmEncoder;
+import com.souramoo.unapkm.UnApkm;
+import com.souramoo.unapkm.cli.JavaCryptoProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * In-memory inputs for the benchmarks, see {@link SyntheticZip} and {@link ApkmEncoder}.
+ */
+final class SyntheticApkm {
+    static final LazySodium LAZY_SODIUM;
+
+    static {
+        UnApkm.setCryptoProvider(new JavaCryptoProvider());
+        LAZY_SODIUM = UnApkm.getCryptoProvider().getLazySodium();
+    }
+
+    /**
+     * Argon2 parameters of libsodium's interactive preset, in the range seen in real APKM files
+     */
+    static final long OPS_LIMIT = 2;
+    static final int MEM_LIMIT = 64 * 1024 * 1024;
+    /**
+     * Cheapest parameters accepted by Argon2id, for benchmarks which don't measure the key derivation
+     */
+    static final long OPS_LIMIT_MIN = 1;
+    static final int MEM_LIMIT_MIN = 8192;
+
+    private SyntheticApkm() {
+    }
+
+    static byte[] zip(int splitCount, int splitSize, long seed) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        SyntheticZip.write(bos, (long) splitCount * splitSize, splitCount, 0.5f, seed);
+        return bos.toByteArray();
+    }
+
+    static byte[] encrypt(byte[] plain, int chunkSize, PwHash.Alg algo, long opsLimit, int memLimit)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(plain.length + plain.length / chunkSize * 17 + 128);
+        new ApkmEncoder(LAZY_SODIUM)
+                .setChunkSize(chunkSize)
+                .setAlgorithm(algo)
+                .setOpsLimit(opsLimit)
+                .setMemLimit(memLimit)
+                .encode(new ByteArrayInputStream(plain), bos);
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm.benchmark;
+
+import com.souramoo.unapkm.ZipRawReader;
+import com.souramoo.unapkm.ZipRawWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ZIP re-framing of already decrypted data: entries copied raw and a central directory appended.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ZipRewriteBenchmark {
+    @Param({"8", "64"})
+    public int entryCount;
+
+    private byte[] zip;
+
+    @Setup
+    public void setUp() throws IOException {
+        zip = SyntheticApkm.zip(entryCount, DecryptBenchmark.PAYLOAD_SIZE / entryCount, 1);
+    }
+
+    @Benchmark
+    public long rewrite() throws IOException {
+        try (ZipRawReader zipIn = new ZipRawReader(new ByteArrayInputStream(zip));
+             ZipRawWriter zipOut = new ZipRawWriter(new NullOutputStream())) {
+            ZipRawReader.LocalEntry entry;
+            while ((entry = zipIn.getNextEntry()) != null) {
+                zipOut.putRawEntry(entry, zipIn.getRawInputStream());
+            }
+            zipOut.finish();
+            return zipOut.getBytesWritten();
+        }
+    }
+
+    static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
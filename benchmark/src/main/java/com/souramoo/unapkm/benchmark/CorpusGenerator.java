@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm.benchmark;
+
+import com.goterl.lazycode.lazysodium.interfaces.PwHash;
+import com.souramoo.unapkm.ApkmEncoder;
+import com.souramoo.unapkm.UnApkm;
+import com.souramoo.unapkm.cli.JavaCryptoProvider;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Generates a corpus of synthetic APKM files for load and round-trip testing. With {@code --verify}, every file is
+ * decrypted again and compared with the ZIP file it was made from.
+ */
+public final class CorpusGenerator {
+    private static final String USAGE = "Usage: CorpusGenerator [options] <output directory>\n"
+            + "  --count N              Number of files (default: 1)\n"
+            + "  --size SIZE            Uncompressed size of the splits of a file, e.g. 512K, 64M, 2G (default: 16M)\n"
+            + "  --splits N             Number of splits per file (default: 8)\n"
+            + "  --compressibility F    Fraction of the data that compresses well, 0 to 1 (default: 0.5)\n"
+            + "  --chunk-size SIZE      Secretstream chunk size (default: 64K)\n"
+            + "  --algorithm ALG        argon2i or argon2id (default: argon2id)\n"
+            + "  --ops-limit N          Argon2 iterations (default: 2)\n"
+            + "  --mem-limit SIZE       Argon2 memory (default: 64M)\n"
+            + "  --seed N               Seed of the first file, incremented for each file (default: 0)\n"
+            + "  --verify               Decrypt every file and compare it with its source\n";
+
+    private CorpusGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = 1;
+        long size = 16 << 20;
+        int splits = 8;
+        float compressibility = 0.5f;
+        long seed = 0;
+        boolean verify = false;
+        File outDir = null;
+        UnApkm.setCryptoProvider(new JavaCryptoProvider());
+        ApkmEncoder encoder = new ApkmEncoder(UnApkm.getCryptoProvider().getLazySodium());
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "--count":
+                        count = Integer.parseInt(args[++i]);
+                        break;
+                    case "--size":
+                        size = parseSize(args[++i]);
+                        break;
+                    case "--splits":
+                        splits = Integer.parseInt(args[++i]);
+                        break;
+                    case "--compressibility":
+                        compressibility = Float.parseFloat(args[++i]);
+                        break;
+                    case "--chunk-size":
+                        encoder.setChunkSize((int) parseSize(args[++i]));
+                        break;
+                    case "--algorithm":
+                        encoder.setAlgorithm(parseAlgorithm(args[++i]));
+                        break;
+                    case "--ops-limit":
+                        encoder.setOpsLimit(Long.parseLong(args[++i]));
+                        break;
+                    case "--mem-limit":
+                        encoder.setMemLimit((int) parseSize(args[++i]));
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "--verify":
+                        verify = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || outDir != null) {
+                            throw new IllegalArgumentException("Unknown argument " + args[i]);
+                        }
+                        outDir = new File(args[i]);
+                }
+            }
+            if (outDir == null) throw new IllegalArgumentException("No output directory");
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(e instanceof ArrayIndexOutOfBoundsException ? "Missing value" : e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Could not create " + outDir);
+        }
+        long totalBytes = 0;
+        long totalNanos = 0;
+        int failures = 0;
+        for (int i = 0; i < count; ++i) {
+            File file = new File(outDir, String.format(Locale.ROOT, "synthetic-%04d.apkm", i));
+            long start = System.nanoTime();
+            byte[] digest = generate(encoder, file, size, splits, compressibility, seed + i);
+            long nanos = System.nanoTime() - start;
+            totalBytes += file.length();
+            totalNanos += nanos;
+            String line = String.format(Locale.ROOT, "%s %d bytes %.1f MB/s", file, file.length(),
+                    file.length() * 1e3 / nanos);
+            if (verify) {
+                boolean ok = Arrays.equals(digest, decryptedDigest(file));
+                if (!ok) ++failures;
+                line += ok ? " verified" : " MISMATCH";
+            }
+            System.out.println(line);
+        }
+        System.out.println(String.format(Locale.ROOT, "%d files, %d bytes, %.1f MB/s", count, totalBytes,
+                totalNanos == 0 ? 0 : totalBytes * 1e3 / totalNanos));
+        if (failures > 0) {
+            System.err.println(failures + " files failed verification");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return SHA-256 of the ZIP file encrypted into {@code file}
+     */
+    private static byte[] generate(ApkmEncoder encoder, File file, long size, int splits, float compressibility,
+                                   long seed) throws IOException {
+        MessageDigest md = sha256();
+        try (OutputStream os = new DigestOutputStream(encoder.newOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 20)), md)) {
+            SyntheticZip.write(os, size, splits, compressibility, seed);
+        }
+        return md.digest();
+    }
+
+    private static byte[] decryptedDigest(File file) throws IOException {
+        MessageDigest md = sha256();
+        try (InputStream is = UnApkm.decryptStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        }
+        return md.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static PwHash.Alg parseAlgorithm(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "argon2i":
+                return PwHash.Alg.PWHASH_ALG_ARGON2I13;
+            case "argon2id":
+                return PwHash.Alg.PWHASH_ALG_ARGON2ID13;
+            default:
+                throw new IllegalArgumentException("Unknown algorithm " + name);
+        }
+    }
+
+    static long parseSize(String size) {
+        long multiplier = 1;
+        switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K':
+                multiplier = 1L << 10;
+                break;
+            case 'M':
+                multiplier = 1L << 20;
+                break;
+            case 'G':
+                multiplier = 1L << 30;
+                break;
+        }
+        if (multiplier != 1) size = size.substring(0, size.length() - 1);
+        return Long.parseLong(size) * multiplier;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes ZIP files laid out like the content of an APKM file: info.json and an icon followed by the splits. The data
+ * is pseudo-random and derived from a seed, so the same arguments always produce the same file.
+ */
+public final class SyntheticZip {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final String[] SPLIT_NAMES = {
+            "base.apk",
+            "split_config.arm64_v8a.apk",
+            "split_config.armeabi_v7a.apk",
+            "split_config.x86_64.apk",
+            "split_config.xxhdpi.apk",
+            "split_config.mdpi.apk",
+            "split_config.en.apk",
+            "split_config.de.apk",
+    };
+
+    private SyntheticZip() {
+    }
+
+    /**
+     * @param totalSize       Uncompressed size of the splits together
+     * @param splitCount      Number of splits, every other one is deflated and the rest stored
+     * @param compressibility Fraction of each block filled with easily compressed data, between 0 and 1
+     */
+    public static void write(OutputStream os, long totalSize, int splitCount, float compressibility, long seed)
+            throws IOException {
+        if (splitCount < 1) throw new IllegalArgumentException("Invalid split count " + splitCount);
+        if (compressibility < 0 || compressibility > 1) {
+            throw new IllegalArgumentException("Invalid compressibility " + compressibility);
+        }
+        ZipOutputStream zos = new ZipOutputStream(os);
+        // Keep generating gigabytes practical, the ratio matters less than the deflate stream being there
+        zos.setLevel(Deflater.BEST_SPEED);
+        byte[] infoJson = ("{\"pname\":\"com.example.synthetic\",\"versioncode\":\"" + seed + "\",\"release_version\":"
+                + "\"1.0\",\"arches\":[\"arm64-v8a\",\"armeabi-v7a\",\"x86_64\"],\"dpis\":[\"mdpi\",\"xxhdpi\"],"
+                + "\"locales\":[\"en\",\"de\"]}").getBytes(StandardCharsets.UTF_8);
+        zos.putNextEntry(new ZipEntry("info.json"));
+        zos.write(infoJson);
+        zos.closeEntry();
+        writeEntry(zos, "icon.png", 16 * 1024, 0, seed, true);
+        long splitSize = totalSize / splitCount;
+        for (int i = 0; i < splitCount; ++i) {
+            String name = i < SPLIT_NAMES.length ? SPLIT_NAMES[i] : "split_config.extra" + i + ".apk";
+            long size = i == splitCount - 1 ? totalSize - splitSize * (splitCount - 1) : splitSize;
+            writeEntry(zos, name, size, compressibility, seed * 31 + i, i % 2 == 0);
+        }
+        zos.finish();
+    }
+
+    private static void writeEntry(ZipOutputStream zos, String name, long size, float compressibility, long seed,
+                                   boolean stored) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            // Stored entries need their CRC up front, generate the data twice instead of holding it
+            CRC32 crc = new CRC32();
+            Generator generator = new Generator(seed, compressibility);
+            for (long remaining = size; remaining > 0; ) {
+                int n = (int) Math.min(remaining, BLOCK_SIZE);
+                crc.update(generator.next(), 0, n);
+                remaining -= n;
+            }
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc.getValue());
+        }
+        zos.putNextEntry(entry);
+        Generator generator = new Generator(seed, compressibility);
+        for (long remaining = size; remaining > 0; ) {
+            int n = (int) Math.min(remaining, BLOCK_SIZE);
+            zos.write(generator.next(), 0, n);
+            remaining -= n;
+        }
+        zos.closeEntry();
+    }
+
+    private static class Generator {
+        private final Random random;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final int randomLength;
+
+        Generator(long seed, float compressibility) {
+            random = new Random(seed);
+            randomLength = (int) (BLOCK_SIZE * (1 - compressibility));
+        }
+
+        byte[] next() {
+            random.nextBytes(block);
+            for (int i = randomLength; i < BLOCK_SIZE; ++i) {
+                block[i] = (byte) ('a' + (block[i] & 3));
+            }
+            return block;
+        }
+    }
+}
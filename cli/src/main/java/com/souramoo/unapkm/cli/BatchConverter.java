@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm.cli;
+
+import com.souramoo.unapkm.ConversionOptions;
+import com.souramoo.unapkm.DeviceProfile;
+import com.souramoo.unapkm.EntryFilters;
+import com.souramoo.unapkm.UnApkm;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts every APKM file below a directory into an APKS file at the same relative path below another directory,
+ * several files at a time.
+ */
+public final class BatchConverter {
+    private static final String USAGE = "Usage: BatchConverter [options] <input directory> <output directory>\n"
+            + "  --jobs N               Files converted concurrently (default: number of CPUs)\n"
+            + "  --kdf-memory SIZE      Memory allowed for concurrent key derivations, e.g. 512M, 2G (default: 1G)\n"
+            + "  --compression-level N  Recompress the entries at this deflate level instead of copying them\n"
+            + "  --pipelined            Run the stages of each conversion on separate threads\n"
+            + "  --include GLOB         Only write the entries matching GLOB, may be repeated\n"
+            + "  --abis LIST            Keep only the splits for the first of these ABIs in the bundle,\n"
+            + "                         e.g. arm64-v8a\n"
+            + "  --density DPI          Keep only the density split best matching DPI\n"
+            + "  --locales LIST         Keep only the language splits for these locales, e.g. en-US,de\n";
+    private static final String INPUT_EXTENSION = ".apkm";
+    private static final String OUTPUT_EXTENSION = ".apks";
+
+    private final File inputDir;
+    private final File outputDir;
+    private final ConversionOptions options;
+    private final boolean pipelined;
+
+    private BatchConverter(File inputDir, File outputDir, ConversionOptions options, boolean pipelined) {
+        this.inputDir = inputDir;
+        this.outputDir = outputDir;
+        this.options = options;
+        this.pipelined = pipelined;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int jobs = Runtime.getRuntime().availableProcessors();
+        long kdfMemory = 1L << 30;
+        boolean pipelined = false;
+        ConversionOptions options = new ConversionOptions();
+        List<String> paths = new ArrayList<>();
+        List<String> includes = new ArrayList<>();
+        DeviceProfile profile = null;
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "--jobs":
+                        jobs = Integer.parseInt(args[++i]);
+                        if (jobs < 1) throw new IllegalArgumentException("Invalid number of jobs " + jobs);
+                        break;
+                    case "--kdf-memory":
+                        kdfMemory = parseSize(args[++i]);
+                        break;
+                    case "--compression-level":
+                        options.setCompressionLevel(Integer.parseInt(args[++i]));
+                        break;
+                    case "--pipelined":
+                        pipelined = true;
+                        break;
+                    case "--include":
+                        includes.add(args[++i]);
+                        break;
+                    case "--abis":
+                        if (profile == null) profile = new DeviceProfile();
+                        profile.setAbis(args[++i].split(","));
+                        break;
+                    case "--density":
+                        if (profile == null) profile = new DeviceProfile();
+                        profile.setDensityDpi(Integer.parseInt(args[++i]));
+                        break;
+                    case "--locales":
+                        if (profile == null) profile = new DeviceProfile();
+                        profile.setLocales(args[++i].split(","));
+                        break;
+                    default:
+                        if (args[i].startsWith("--")) throw new IllegalArgumentException("Unknown argument " + args[i]);
+                        paths.add(args[i]);
+                }
+            }
+            if (paths.size() != 2) throw new IllegalArgumentException("Expected an input and an output directory");
+            if (!includes.isEmpty()) {
+                options.setEntryFilter(EntryFilters.globs(includes.toArray(new String[0])));
+            }
+            options.setDeviceProfile(profile);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(e instanceof ArrayIndexOutOfBoundsException ? "Missing value" : e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        File inputDir = new File(paths.get(0));
+        if (!inputDir.isDirectory()) {
+            System.err.println("Not a directory: " + inputDir);
+            System.exit(2);
+            return;
+        }
+        UnApkm.setCryptoProvider(new JavaCryptoProvider());
+        UnApkm.getKeyCache().setKdfMemoryBudget(kdfMemory);
+        // Files are already converted in parallel, recompressing each of them on every core would oversubscribe
+        options.setThreadCount(Math.max(1, options.getThreadCount() / jobs));
+        BatchConverter converter = new BatchConverter(inputDir, new File(paths.get(1)), options, pipelined);
+        System.exit(converter.run(jobs) ? 0 : 1);
+    }
+
+    /**
+     * @return Whether every file was converted
+     */
+    private boolean run(int jobs) throws InterruptedException {
+        List<File> inputs = new ArrayList<>();
+        collect(inputDir, inputs);
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        List<Future<Long>> results = new ArrayList<>(inputs.size());
+        long start = System.nanoTime();
+        for (final File input : inputs) {
+            results.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return convert(input);
+                }
+            }));
+        }
+        executor.shutdown();
+        long inputBytes = 0;
+        long outputBytes = 0;
+        int failures = 0;
+        for (int i = 0; i < inputs.size(); ++i) {
+            try {
+                outputBytes += results.get(i).get();
+                inputBytes += inputs.get(i).length();
+            } catch (ExecutionException e) {
+                ++failures;
+                System.err.println("Failed " + inputs.get(i) + ": " + e.getCause());
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int converted = inputs.size() - failures;
+        System.out.println(String.format(Locale.ROOT, "Converted %d of %d files in %.2f s with %d jobs",
+                converted, inputs.size(), seconds, jobs));
+        System.out.println(String.format(Locale.ROOT, "Read %d bytes, wrote %d bytes, %.1f MB/s, %.2f files/s",
+                inputBytes, outputBytes, seconds == 0 ? 0 : inputBytes / 1e6 / seconds,
+                seconds == 0 ? 0 : converted / seconds));
+        System.out.println(UnApkm.getKeyCache() + ", " + UnApkm.getBufferPool());
+        return failures == 0;
+    }
+
+    /**
+     * @return Size of the output file
+     */
+    private long convert(File input) throws IOException {
+        String relativePath = input.getPath().substring(inputDir.getPath().length() + 1);
+        File output = new File(outputDir, relativePath.substring(0, relativePath.length()
+                - INPUT_EXTENSION.length()) + OUTPUT_EXTENSION);
+        File parent = output.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Could not create " + parent);
+        }
+        // Write to a temporary file so that an interrupted run doesn't leave truncated files behind
+        File partial = new File(parent, output.getName() + ".part");
+        try (FileInputStream is = new FileInputStream(input);
+             FileOutputStream os = new FileOutputStream(partial)) {
+            if (pipelined) {
+                UnApkm.decryptFilePipelined(is, os, options);
+            } else {
+                UnApkm.decryptFile(new BufferedInputStream(is, 1 << 16), os, options);
+            }
+            if (!partial.renameTo(output)) {
+                throw new IOException("Could not rename " + partial + " to " + output);
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            partial.delete();
+        }
+        return output.length();
+    }
+
+    private static void collect(File dir, List<File> inputs) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collect(file, inputs);
+            } else if (file.getName().toLowerCase(Locale.ROOT).endsWith(INPUT_EXTENSION)) {
+                inputs.add(file);
+            }
+        }
+    }
+
+    private static long parseSize(String size) {
+        if (size.isEmpty()) throw new IllegalArgumentException("Invalid size \"\"");
+        long multiplier = 1;
+        switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K':
+                multiplier = 1L << 10;
+                break;
+            case 'M':
+                multiplier = 1L << 20;
+                break;
+            case 'G':
+                multiplier = 1L << 30;
+                break;
+        }
+        long value = Long.parseLong(multiplier != 1 ? size.substring(0, size.length() - 1) : size);
+        if (value < 0 || value > Long.MAX_VALUE / multiplier) {
+            throw new IllegalArgumentException("Invalid size " + size);
+        }
+        return value * multiplier;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Admits concurrent jobs within a memory budget, e.g. conversions sized with {@link UnApkm#estimateMemory}. Jobs
+ * that don't fit wait in a queue per caller, and the callers take turns: a caller submitting many jobs can't hold
+ * back the others. Within the turns, jobs are admitted in order, so a large job isn't starved by smaller ones. A job
+ * larger than the whole budget runs once nothing else does.
+ */
+public class AdmissionController {
+    private final Object lock = new Object();
+    /**
+     * Queues of the waiting jobs, the caller whose turn is next first
+     */
+    private final LinkedHashMap<Object, ArrayDeque<Ticket>> queues = new LinkedHashMap<>();
+    private long budgetBytes;
+    private long bytesInUse;
+    private int running;
+    private int waiting;
+    private long admittedCount;
+    private long queuedCount;
+
+    public AdmissionController(long budgetBytes) {
+        setBudgetBytes(budgetBytes);
+    }
+
+    /**
+     * Change the budget, e.g. once the system reports low memory. Running jobs aren't affected.
+     */
+    public void setBudgetBytes(long budgetBytes) {
+        if (budgetBytes <= 0) throw new IllegalArgumentException("Invalid budget " + budgetBytes);
+        synchronized (lock) {
+            this.budgetBytes = budgetBytes;
+            admitWaiting();
+        }
+    }
+
+    public long getBudgetBytes() {
+        synchronized (lock) {
+            return budgetBytes;
+        }
+    }
+
+    /**
+     * Wait until the job fits in the budget. The returned ticket must be closed once the job is done.
+     *
+     * @param caller Identifies the caller for fairness, e.g. its uid
+     * @param bytes  Memory the job needs
+     * @throws InterruptedIOException If the thread was interrupted while waiting
+     */
+    @NonNull
+    public Ticket acquire(@NonNull Object caller, long bytes) throws InterruptedIOException {
+        if (bytes < 0) throw new IllegalArgumentException("Invalid size " + bytes);
+        Ticket ticket = new Ticket(bytes);
+        synchronized (lock) {
+            if (waiting == 0 && fits(bytes)) {
+                admit(ticket);
+                return ticket;
+            }
+            ArrayDeque<Ticket> queue = queues.get(caller);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(caller, queue);
+            }
+            queue.addLast(ticket);
+            ++waiting;
+            ++queuedCount;
+            try {
+                while (!ticket.admitted) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                if (ticket.admitted) {
+                    ticket.close();
+                } else {
+                    queue.remove(ticket);
+                    --waiting;
+                    if (queue.isEmpty()) queues.remove(caller);
+                    // The ticket may have held back the others
+                    admitWaiting();
+                }
+                throw new InterruptedIOException("Interrupted while waiting for memory");
+            }
+        }
+        return ticket;
+    }
+
+    public int getRunningCount() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+
+    public int getWaitingCount() {
+        synchronized (lock) {
+            return waiting;
+        }
+    }
+
+    public long getBytesInUse() {
+        synchronized (lock) {
+            return bytesInUse;
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "AdmissionController{budget=" + budgetBytes + ", inUse=" + bytesInUse + ", running=" + running
+                    + ", waiting=" + waiting + ", admitted=" + admittedCount + ", queued=" + queuedCount + '}';
+        }
+    }
+
+    private boolean fits(long bytes) {
+        return running == 0 || bytesInUse + bytes <= budgetBytes;
+    }
+
+    private void admit(@NonNull Ticket ticket) {
+        ticket.admitted = true;
+        bytesInUse += ticket.bytes;
+        ++running;
+        ++admittedCount;
+    }
+
+    /**
+     * Admit the jobs at the head of the queues in turn while they fit. Must be called while holding the lock.
+     */
+    private void admitWaiting() {
+        boolean admitted = false;
+        while (!queues.isEmpty()) {
+            Iterator<Map.Entry<Object, ArrayDeque<Ticket>>> it = queues.entrySet().iterator();
+            Map.Entry<Object, ArrayDeque<Ticket>> next = it.next();
+            ArrayDeque<Ticket> queue = next.getValue();
+            //noinspection ConstantConditions
+            if (!fits(queue.peekFirst().bytes)) break;
+            admit(queue.pollFirst());
+            --waiting;
+            admitted = true;
+            // Move the caller to the end of the turns
+            it.remove();
+            if (!queue.isEmpty()) queues.put(next.getKey(), queue);
+        }
+        if (admitted) lock.notifyAll();
+    }
+
+    /**
+     * Memory held by an admitted job
+     */
+    public class Ticket implements AutoCloseable {
+        private final long bytes;
+        private boolean admitted;
+        private boolean closed;
+
+        private Ticket(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Release the memory and admit the jobs waiting for it.
+         */
+        @Override
+        public void close() {
+            synchronized (lock) {
+                if (closed || !admitted) return;
+                closed = true;
+                bytesInUse -= bytes;
+                --running;
+                admitWaiting();
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+import com.goterl.lazycode.lazysodium.interfaces.PwHash;
+import com.goterl.lazycode.lazysodium.interfaces.SecretStream;
+import com.sun.jna.NativeLong;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Encrypts a ZIP file of splits into an APKM file, the reverse of {@link UnApkm#processHeader(InputStream,
+ * LazySodium)} and {@link UnApkm#decryptStream(InputStream)}. Used to build inputs for tests and benchmarks, since
+ * real APKM files can't be shared.
+ */
+public class ApkmEncoder {
+    public static final int DEFAULT_CHUNK_SIZE = 0x10000;
+    public static final long DEFAULT_OPS_LIMIT = 2;
+    public static final int DEFAULT_MEM_LIMIT = 0x4000000;
+
+    private static final int SALT_SIZE = 16;
+    private static final int KEY_SIZE = 32;
+
+    private final LazySodium lazySodium;
+    private PwHash.Alg algo = PwHash.Alg.PWHASH_ALG_ARGON2ID13;
+    private long opsLimit = DEFAULT_OPS_LIMIT;
+    private int memLimit = DEFAULT_MEM_LIMIT;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    @Nullable
+    private byte[] salt;
+
+    public ApkmEncoder(@NonNull LazySodium lazySodium) {
+        this.lazySodium = lazySodium;
+    }
+
+    @NonNull
+    public ApkmEncoder setAlgorithm(@NonNull PwHash.Alg algo) {
+        this.algo = algo;
+        return this;
+    }
+
+    /**
+     * @param opsLimit Argon2 iterations. The header is read back as a 32-bit value, so larger values are refused.
+     */
+    @NonNull
+    public ApkmEncoder setOpsLimit(long opsLimit) {
+        if (opsLimit < 1 || opsLimit > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid ops limit " + opsLimit);
+        }
+        this.opsLimit = opsLimit;
+        return this;
+    }
+
+    /**
+     * @param memLimit Argon2 memory in bytes, at most {@link UnApkm#MEM_LIMIT} to be accepted by the decoder
+     */
+    @NonNull
+    public ApkmEncoder setMemLimit(int memLimit) {
+        if (memLimit < 0) throw new IllegalArgumentException("Invalid mem limit " + memLimit);
+        this.memLimit = memLimit;
+        return this;
+    }
+
+    @NonNull
+    public ApkmEncoder setChunkSize(int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > SecretStreamDecryptor.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * @param salt Salt to use for every file instead of a random one, so that the derived key can be cached
+     */
+    @NonNull
+    public ApkmEncoder setSalt(@Nullable byte[] salt) {
+        if (salt != null && salt.length != SALT_SIZE) throw new IllegalArgumentException("Invalid salt");
+        this.salt = salt;
+        return this;
+    }
+
+    /**
+     * Write the header and return a stream encrypting the ZIP file written to it. Closing the returned stream ends
+     * the APKM file and closes {@code os}.
+     */
+    @NonNull
+    public EncryptingOutputStream newOutputStream(@NonNull OutputStream os) throws IOException {
+        byte[] salt = this.salt != null ? this.salt : lazySodium.randomBytesBuf(SALT_SIZE);
+        byte[] key = new byte[KEY_SIZE];
+        if (!lazySodium.cryptoPwHash(key, KEY_SIZE, UnApkm.PASSWORD, UnApkm.PASSWORD.length, salt, opsLimit,
+                new NativeLong(memLimit), algo)) {
+            throw new IOException("pwhash failed");
+        }
+        byte[] header = new byte[SecretStream.HEADERBYTES];
+        EncryptingOutputStream eos = new EncryptingOutputStream(os, key, header, chunkSize, lazySodium,
+                UnApkm.getBufferPool());
+        ByteBuffer apkmHeader = ByteBuffer.allocate(UnApkm.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        apkmHeader.put((byte) 0); // skipped
+        apkmHeader.put((byte) algo.getValue());
+        apkmHeader.putLong(opsLimit);
+        apkmHeader.putLong(memLimit);
+        apkmHeader.putLong(chunkSize);
+        apkmHeader.put(salt);
+        apkmHeader.put(header);
+        os.write(apkmHeader.array());
+        return eos;
+    }
+
+    /**
+     * Encrypt a ZIP file. Both streams are closed afterwards.
+     *
+     * @return Number of chunks written
+     */
+    public long encode(@NonNull InputStream zip, @NonNull OutputStream os) throws IOException {
+        EncryptingOutputStream eos;
+        try (InputStream is = zip;
+             EncryptingOutputStream out = newOutputStream(os)) {
+            eos = out;
+            byte[] buffer = new byte[DEFAULT_CHUNK_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        // Only counted once closed, which writes the final chunk
+        return eos.getChunkCount();
+    }
+}
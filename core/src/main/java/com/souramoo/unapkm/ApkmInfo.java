@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * The info.json entry of a bundle, describing the app and the configurations its splits cover.
+ */
+public class ApkmInfo {
+    public static final String ENTRY_NAME = "info.json";
+
+    @NonNull
+    private final Map<String, Object> json;
+
+    private ApkmInfo(@NonNull Map<String, Object> json) {
+        this.json = json;
+    }
+
+    @NonNull
+    public static ApkmInfo parse(@NonNull byte[] data) throws IOException {
+        Object json = JsonParser.parse(new String(data, StandardCharsets.UTF_8));
+        if (!(json instanceof Map)) throw new IOException(ENTRY_NAME + " is not an object");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> object = (Map<String, Object>) json;
+        return new ApkmInfo(object);
+    }
+
+    @Nullable
+    public String getPackageName() {
+        return getString("pname");
+    }
+
+    @Nullable
+    public String getAppName() {
+        return getString("app_name");
+    }
+
+    @Nullable
+    public String getVersionName() {
+        return getString("release_version");
+    }
+
+    /**
+     * @return The version code, or -1 if missing
+     */
+    public long getVersionCode() {
+        return getLong("versioncode");
+    }
+
+    /**
+     * @return The minimum API level, or -1 if missing
+     */
+    public long getMinApi() {
+        return getLong("min_api");
+    }
+
+    /**
+     * @return ABIs with a split in the bundle, e.g. {@code arm64-v8a}
+     */
+    @NonNull
+    public List<String> getAbis() {
+        return getStrings("arches");
+    }
+
+    /**
+     * @return Densities with a split in the bundle, e.g. {@code xxhdpi}
+     */
+    @NonNull
+    public List<String> getDensities() {
+        return getStrings("dpis");
+    }
+
+    /**
+     * @return Languages with a split in the bundle
+     */
+    @NonNull
+    public List<String> getLocales() {
+        return getStrings("locales");
+    }
+
+    /**
+     * @return The raw value of {@code key}: a {@link String}, {@link Number}, {@link Boolean}, {@link List} or
+     * {@link Map}, or null if missing
+     */
+    @Nullable
+    public Object get(@NonNull String key) {
+        return json.get(key);
+    }
+
+    @Nullable
+    private String getString(@NonNull String key) {
+        Object value = json.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    private long getLong(@NonNull String key) {
+        Object value = json.get(key);
+        if (value instanceof Number) return ((Number) value).longValue();
+        if (value instanceof String) {
+            // Versions are quoted in the files seen so far
+            try {
+                return Long.parseLong((String) value);
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return -1;
+    }
+
+    @NonNull
+    private List<String> getStrings(@NonNull String key) {
+        Object value = json.get(key);
+        if (!(value instanceof List)) return Collections.emptyList();
+        List<String> strings = new ArrayList<>();
+        for (Object item : (List<?>) value) {
+            if (item != null) strings.add(item.toString());
+        }
+        return strings;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "ApkmInfo{packageName=" + getPackageName() + ", versionCode=" + getVersionCode() + ", versionName="
+                + getVersionName() + "}";
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * The metadata of a bundle, read by {@link UnApkm#readMetadata(java.io.InputStream)} without decrypting the splits.
+ */
+public class ApkmMetadata {
+    public static final String ICON_ENTRY_NAME = "icon.png";
+
+    @Nullable
+    private final byte[] infoJson;
+    @Nullable
+    private final ApkmInfo info;
+    @Nullable
+    private final byte[] icon;
+    private final long chunksDecrypted;
+
+    ApkmMetadata(@Nullable byte[] infoJson, @Nullable ApkmInfo info, @Nullable byte[] icon, long chunksDecrypted) {
+        this.infoJson = infoJson;
+        this.info = info;
+        this.icon = icon;
+        this.chunksDecrypted = chunksDecrypted;
+    }
+
+    /**
+     * @return The content of info.json, or null if the bundle has none
+     */
+    @Nullable
+    public byte[] getInfoJson() {
+        return infoJson;
+    }
+
+    /**
+     * @return The parsed info.json, or null if the bundle has none or it is malformed
+     */
+    @Nullable
+    public ApkmInfo getInfo() {
+        return info;
+    }
+
+    /**
+     * @return The PNG icon, or null if the bundle has none
+     */
+    @Nullable
+    public byte[] getIcon() {
+        return icon;
+    }
+
+    /**
+     * @return Secretstream chunks decrypted to find the metadata
+     */
+    public long getChunksDecrypted() {
+        return chunksDecrypted;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "ApkmMetadata{info=" + info + ", iconSize=" + (icon != null ? icon.length : -1)
+                + ", chunksDecrypted=" + chunksDecrypted + "}";
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Cancels a conversion, see {@link ConversionOptions#setCancellationToken(CancellationToken)}. The conversion checks
+ * the token each time it reads the APKM file or writes the output, so it stops within a chunk and its buffers are
+ * released as it unwinds. A stream blocked on a pipe only notices once it returns, close it to stop it right away.
+ */
+public class CancellationToken {
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws InterruptedIOException If the token was cancelled
+     */
+    public void throwIfCancelled() throws InterruptedIOException {
+        if (cancelled) throw new InterruptedIOException("Conversion cancelled");
+    }
+
+    /**
+     * @return Stream failing once the token is cancelled
+     */
+    @NonNull
+    InputStream wrap(@NonNull InputStream is) {
+        return new FilterInputStream(is) {
+            @Override
+            public int read() throws IOException {
+                throwIfCancelled();
+                return in.read();
+            }
+
+            @Override
+            public int read(@NonNull byte[] b, int off, int len) throws IOException {
+                throwIfCancelled();
+                return in.read(b, off, len);
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                throwIfCancelled();
+                return in.skip(n);
+            }
+        };
+    }
+
+    /**
+     * @return Stream failing once the token is cancelled
+     */
+    @NonNull
+    OutputStream wrap(@NonNull OutputStream os) {
+        return new FilterOutputStream(os) {
+            @Override
+            public void write(int b) throws IOException {
+                throwIfCancelled();
+                out.write(b);
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                throwIfCancelled();
+                out.write(b, off, len);
+            }
+        };
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+import com.goterl.lazycode.lazysodium.interfaces.SecretStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Random access to the entries of an APKM file. The secretstream can only be decrypted sequentially, so the index
+ * records its state every {@code interval} chunks along with the offset of every entry in the decrypted ZIP. Reading
+ * an entry resumes decrypting at the checkpoint preceding it, skipping both the key derivation and the chunks before.
+ * <p>
+ * The index is built by decrypting the file once, {@link #getOrBuild(File)} stores it next to the file. The saved
+ * states hold the key of the stream, which is no secret since anybody can derive it from the file.
+ */
+public class CheckpointIndex {
+    public static final int DEFAULT_INTERVAL = 16;
+    public static final String FILE_SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x554e4b49;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static class Entry {
+        private final String name;
+        private final long headerOffset;
+        private final int method;
+        private final long compressedSize;
+        private final long size;
+        private final long crc;
+
+        Entry(@NonNull String name, long headerOffset, int method, long compressedSize, long size, long crc) {
+            this.name = name;
+            this.headerOffset = headerOffset;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Offset of the local file header in the decrypted ZIP
+         */
+        public long getHeaderOffset() {
+            return headerOffset;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final long fileLength;
+    /**
+     * The header of the file, telling an index apart from the index of another file of the same length
+     */
+    private final byte[] header;
+    private final int chunkSize;
+    private final int interval;
+    private final long[] checkpointChunks;
+    private final byte[][] checkpointStates;
+    private final Map<String, Entry> entries;
+
+    private CheckpointIndex(long fileLength, @NonNull byte[] header, int chunkSize, int interval,
+                            @NonNull long[] checkpointChunks, @NonNull byte[][] checkpointStates,
+                            @NonNull Map<String, Entry> entries) {
+        this.fileLength = fileLength;
+        this.header = header;
+        this.chunkSize = chunkSize;
+        this.interval = interval;
+        this.checkpointChunks = checkpointChunks;
+        this.checkpointStates = checkpointStates;
+        this.entries = entries;
+    }
+
+    /**
+     * Load the index stored next to {@code apkm}, or build and store it if it is missing or doesn't match the file.
+     * The index is still returned if it can't be stored.
+     */
+    @NonNull
+    public static CheckpointIndex getOrBuild(@NonNull File apkm) throws IOException {
+        File indexFile = new File(apkm.getPath() + FILE_SUFFIX);
+        if (indexFile.isFile()) {
+            try {
+                CheckpointIndex index = load(indexFile);
+                if (index.matches(apkm)) return index;
+            } catch (IOException ignore) {
+                // Corrupt, rebuilt below
+            }
+        }
+        CheckpointIndex index = build(apkm, DEFAULT_INTERVAL);
+        try {
+            index.save(indexFile);
+        } catch (IOException ignore) {
+            // E.g. a read-only directory, the index works from memory all the same
+        }
+        return index;
+    }
+
+    /**
+     * Decrypt {@code apkm} once to build its index.
+     *
+     * @param interval Number of chunks between two checkpoints. Reading an entry decrypts at most this many chunks
+     *                 before reaching it.
+     */
+    @NonNull
+    public static CheckpointIndex build(@NonNull File apkm, final int interval) throws IOException {
+        if (interval < 1) throw new IllegalArgumentException("Invalid interval " + interval);
+        LazySodium lazySodium = UnApkm.getCryptoProvider().getLazySodium();
+        try (InputStream is = new BufferedInputStream(new FileInputStream(apkm), BUFFER_SIZE)) {
+            byte[] header = new byte[UnApkm.HEADER_SIZE];
+            new DataInputStream(is).readFully(header);
+            UnApkm.Header h = UnApkm.processHeader(new ByteArrayInputStream(header), lazySodium);
+            final int chunkSize = (int) h.chunkSize;
+            final List<Long> chunks = new ArrayList<>();
+            final List<byte[]> states = new ArrayList<>();
+            List<ZipRawReader.LocalEntry> localEntries = new ArrayList<>();
+            try (DecryptingInputStream plain = UnApkm.decryptStream(is, h, lazySodium);
+                 ZipRawReader zipIn = new ZipRawReader(plain)) {
+                plain.setChunkObserver(new DecryptingInputStream.ChunkObserver() {
+                    @Override
+                    public void beforeChunk(@NonNull SecretStreamDecryptor decryptor, long plainOffset)
+                            throws IOException {
+                        long chunk = decryptor.getChunkCount();
+                        if (plainOffset != chunk * chunkSize) {
+                            throw new IOException("Chunks of varying size can't be indexed");
+                        }
+                        if (chunk % interval == 0) {
+                            chunks.add(chunk);
+                            states.add(decryptor.saveState());
+                        }
+                    }
+                });
+                ZipRawReader.LocalEntry entry;
+                while ((entry = zipIn.getNextEntry()) != null) {
+                    localEntries.add(entry);
+                }
+            }
+            // Sizes of entries with a data descriptor are only known once their data was read
+            Map<String, Entry> entries = new LinkedHashMap<>();
+            for (ZipRawReader.LocalEntry entry : localEntries) {
+                entries.put(entry.getName(), new Entry(entry.getName(), entry.getHeaderOffset(), entry.getMethod(),
+                        entry.getCompressedSize(), entry.getSize(), entry.getCrc()));
+            }
+            long[] checkpointChunks = new long[chunks.size()];
+            for (int i = 0; i < checkpointChunks.length; ++i) {
+                checkpointChunks[i] = chunks.get(i);
+            }
+            return new CheckpointIndex(apkm.length(), header, chunkSize, interval, checkpointChunks,
+                    states.toArray(new byte[0][]), entries);
+        }
+    }
+
+    @NonNull
+    public static CheckpointIndex load(@NonNull File file) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                BUFFER_SIZE))) {
+            if (dis.readInt() != MAGIC) throw new IOException("Not a checkpoint index: " + file);
+            int version = dis.readInt();
+            if (version != VERSION) throw new IOException("Unsupported index version " + version);
+            long fileLength = dis.readLong();
+            byte[] header = new byte[UnApkm.HEADER_SIZE];
+            dis.readFully(header);
+            int chunkSize = dis.readInt();
+            int interval = dis.readInt();
+            int stateSize = dis.readInt();
+            if (chunkSize <= 0 || chunkSize > SecretStreamDecryptor.MAX_CHUNK_SIZE || interval < 1
+                    || stateSize != SecretStreamDecryptor.getStateSize()) {
+                throw new IOException("Invalid checkpoint index: " + file);
+            }
+            int checkpointCount = dis.readInt();
+            if (checkpointCount < 1 || checkpointCount > fileLength / chunkSize / interval + 1) {
+                throw new IOException("Invalid checkpoint count " + checkpointCount);
+            }
+            long[] checkpointChunks = new long[checkpointCount];
+            byte[][] checkpointStates = new byte[checkpointCount][stateSize];
+            for (int i = 0; i < checkpointCount; ++i) {
+                checkpointChunks[i] = dis.readLong();
+                dis.readFully(checkpointStates[i]);
+            }
+            int entryCount = dis.readInt();
+            if (entryCount < 0) throw new IOException("Invalid entry count " + entryCount);
+            Map<String, Entry> entries = new LinkedHashMap<>();
+            for (int i = 0; i < entryCount; ++i) {
+                String name = dis.readUTF();
+                entries.put(name, new Entry(name, dis.readLong(), dis.readInt(), dis.readLong(), dis.readLong(),
+                        dis.readLong()));
+            }
+            return new CheckpointIndex(fileLength, header, chunkSize, interval, checkpointChunks, checkpointStates,
+                    entries);
+        }
+    }
+
+    /**
+     * Write the index to a temporary file renamed to {@code file}, so that a reader never sees a partial index.
+     */
+    public void save(@NonNull File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile),
+                BUFFER_SIZE))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(fileLength);
+            dos.write(header);
+            dos.writeInt(chunkSize);
+            dos.writeInt(interval);
+            dos.writeInt(SecretStreamDecryptor.getStateSize());
+            dos.writeInt(checkpointChunks.length);
+            for (int i = 0; i < checkpointChunks.length; ++i) {
+                dos.writeLong(checkpointChunks[i]);
+                dos.write(checkpointStates[i]);
+            }
+            dos.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                dos.writeUTF(entry.name);
+                dos.writeLong(entry.headerOffset);
+                dos.writeInt(entry.method);
+                dos.writeLong(entry.compressedSize);
+                dos.writeLong(entry.size);
+                dos.writeLong(entry.crc);
+            }
+        }
+        if (!tmpFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            throw new IOException("Could not rename " + tmpFile + " to " + file);
+        }
+    }
+
+    /**
+     * @return Whether this is the index of {@code apkm}
+     */
+    public boolean matches(@NonNull File apkm) throws IOException {
+        if (apkm.length() != fileLength) return false;
+        byte[] fileHeader = new byte[UnApkm.HEADER_SIZE];
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(apkm))) {
+            dis.readFully(fileHeader);
+        } catch (EOFException e) {
+            return false;
+        }
+        return Arrays.equals(fileHeader, header);
+    }
+
+    /**
+     * @return The entries of the bundle, in the order they are stored
+     */
+    @NonNull
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    @Nullable
+    public Entry getEntry(@NonNull String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Same as {@link #openEntry(FileChannel, String)}, the file is closed along with the returned stream.
+     */
+    @Nullable
+    public InputStream openEntry(@NonNull File apkm, @NonNull String name) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(apkm, "r");
+        InputStream data = null;
+        try {
+            data = openEntry(file.getChannel(), name);
+            if (data == null) return null;
+            return new FilterInputStream(data) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        file.close();
+                    }
+                }
+            };
+        } finally {
+            if (data == null) file.close();
+        }
+    }
+
+    /**
+     * Decrypt a single entry, starting at the checkpoint preceding it. The channel is repositioned while reading and
+     * isn't closed along with the returned stream, it must not be used by anything else until then.
+     *
+     * @return The uncompressed data of the entry, or null if the bundle has no such entry
+     */
+    @Nullable
+    public InputStream openEntry(@NonNull FileChannel channel, @NonNull String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) return null;
+        int checkpoint = findCheckpoint(entry.headerOffset / chunkSize);
+        long chunk = checkpointChunks[checkpoint];
+        channel.position(UnApkm.HEADER_SIZE + chunk * (chunkSize + SecretStream.ABYTES));
+        SecretStreamDecryptor decryptor = new SecretStreamDecryptor(chunkSize, checkpointStates[checkpoint], chunk,
+                UnApkm.getCryptoProvider().getLazySodium(), UnApkm.getBufferPool());
+        InputStream cipher = new FilterInputStream(Channels.newInputStream(channel)) {
+            @Override
+            public void close() {
+                // The channel belongs to the caller
+            }
+        };
+        DecryptingInputStream plain = new DecryptingInputStream(cipher, decryptor);
+        boolean success = false;
+        try {
+            skipFully(plain, entry.headerOffset - chunk * chunkSize);
+            final ZipRawReader zipIn = new ZipRawReader(plain);
+            ZipRawReader.LocalEntry localEntry = zipIn.getNextEntry();
+            if (localEntry == null || !localEntry.getName().equals(name)) {
+                throw new IOException("The index doesn't match the file at " + name);
+            }
+            InputStream data = new FilterInputStream(zipIn.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zipIn.close();
+                    }
+                }
+            };
+            success = true;
+            return data;
+        } finally {
+            if (!success) plain.close();
+        }
+    }
+
+    /**
+     * @return Index of the last checkpoint at or before {@code chunk}
+     */
+    private int findCheckpoint(long chunk) {
+        int index = Arrays.binarySearch(checkpointChunks, chunk);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private static void skipFully(@NonNull InputStream is, long n) throws IOException {
+        while (n > 0) {
+            long skipped = is.skip(n);
+            if (skipped <= 0) throw new EOFException("Entry beyond the end of the stream");
+            n -= skipped;
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "CheckpointIndex{entries=" + entries.size() + ", checkpoints=" + checkpointChunks.length
+                + ", interval=" + interval + "}";
+    }
+}
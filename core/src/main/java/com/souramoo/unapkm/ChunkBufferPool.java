@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Pool of byte arrays grouped by their exact size. Conversions of files having the same chunk size reuse the buffers
+ * of the previous ones instead of allocating them again.
+ */
+public class ChunkBufferPool {
+    public static final int DEFAULT_MAX_PER_SIZE = 8;
+
+    private final ConcurrentHashMap<Integer, BlockingQueue<byte[]>> pool = new ConcurrentHashMap<>();
+    private final int maxPerSize;
+
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    public ChunkBufferPool(int maxPerSize) {
+        this.maxPerSize = maxPerSize;
+    }
+
+    @NonNull
+    public byte[] acquire(int size) {
+        BlockingQueue<byte[]> queue = pool.get(size);
+        byte[] buffer = queue != null ? queue.poll() : null;
+        if (buffer != null) {
+            reuses.incrementAndGet();
+            return buffer;
+        }
+        allocations.incrementAndGet();
+        allocatedBytes.addAndGet(size);
+        return new byte[size];
+    }
+
+    public void release(@NonNull byte[] buffer) {
+        BlockingQueue<byte[]> queue = pool.get(buffer.length);
+        if (queue == null) {
+            queue = new ArrayBlockingQueue<>(maxPerSize);
+            BlockingQueue<byte[]> existingQueue = pool.putIfAbsent(buffer.length, queue);
+            if (existingQueue != null) queue = existingQueue;
+        }
+        // Dropped if the pool is full
+        queue.offer(buffer);
+    }
+
+    public void clear() {
+        pool.clear();
+    }
+
+    /**
+     * @return Number of buffers allocated by the pool so far
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * @return Number of times a pooled buffer was handed out instead of allocating a new one
+     */
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "ChunkBufferPool{allocations=" + allocations.get() + ", allocatedBytes=" + allocatedBytes.get()
+                + ", reuses=" + reuses.get() + '}';
+    }
+}
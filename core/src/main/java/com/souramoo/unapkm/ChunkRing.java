@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Bounded ring of reusable chunks connecting two stages of a {@link ConversionPipeline}. The producer acquires a free
+ * chunk, fills it and publishes it; the consumer takes it and recycles it once done. Time spent waiting on either side
+ * is recorded along with the number of filled chunks seen by the consumer.
+ */
+final class ChunkRing {
+    static final class Chunk {
+        final byte[] data;
+        /**
+         * Number of valid bytes, -1 marks the end of the stream
+         */
+        int length;
+
+        Chunk(@NonNull byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private final String name;
+    private final ChunkBufferPool bufferPool;
+    private final Chunk[] filled;
+    private final Chunk[] free;
+    private int head;
+    private int filledCount;
+    private int freeCount;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed;
+    @Nullable
+    private Throwable error;
+
+    private long producerStallNanos;
+    private long consumerStallNanos;
+    private long occupancySum;
+    private long takeCount;
+
+    ChunkRing(@NonNull String name, int capacity, int chunkSize, @NonNull ChunkBufferPool bufferPool) {
+        this.name = name;
+        this.bufferPool = bufferPool;
+        filled = new Chunk[capacity];
+        free = new Chunk[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            free[i] = new Chunk(bufferPool.acquire(chunkSize));
+        }
+        freeCount = capacity;
+    }
+
+    /**
+     * Wait for a free chunk.
+     *
+     * @return A free chunk, or {@code null} if the consumer has closed the ring
+     */
+    @Nullable
+    Chunk acquire() throws IOException {
+        lock.lock();
+        try {
+            if (freeCount == 0 && !closed && error == null) {
+                long start = System.nanoTime();
+                while (freeCount == 0 && !closed && error == null) {
+                    await(notFull);
+                }
+                producerStallNanos += System.nanoTime() - start;
+            }
+            checkError();
+            if (closed) return null;
+            return free[--freeCount];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void publish(@NonNull Chunk chunk) {
+        lock.lock();
+        try {
+            filled[(head + filledCount) % filled.length] = chunk;
+            ++filledCount;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publish the end of the stream marker.
+     */
+    void publishEnd() throws IOException {
+        Chunk chunk = acquire();
+        if (chunk != null) {
+            chunk.length = -1;
+            publish(chunk);
+        }
+    }
+
+    /**
+     * Wait for a filled chunk.
+     */
+    @NonNull
+    Chunk take() throws IOException {
+        lock.lock();
+        try {
+            if (filledCount == 0 && error == null) {
+                long start = System.nanoTime();
+                while (filledCount == 0 && error == null) {
+                    await(notEmpty);
+                }
+                consumerStallNanos += System.nanoTime() - start;
+            }
+            checkError();
+            occupancySum += filledCount;
+            ++takeCount;
+            Chunk chunk = filled[head];
+            filled[head] = null;
+            head = (head + 1) % filled.length;
+            --filledCount;
+            return chunk;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void recycle(@NonNull Chunk chunk) {
+        lock.lock();
+        try {
+            free[freeCount++] = chunk;
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the consumer when it doesn't need any more chunks, the producer receives {@code null} from
+     * {@link #acquire()} from now on.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fail both sides of the ring.
+     */
+    void abort(@NonNull Throwable th) {
+        lock.lock();
+        try {
+            if (error == null) error = th;
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the buffers to the pool. Must only be called once both sides have stopped.
+     */
+    void release() {
+        lock.lock();
+        try {
+            for (int i = 0; i < freeCount; ++i) {
+                bufferPool.release(free[i].data);
+                free[i] = null;
+            }
+            freeCount = 0;
+            for (int i = 0; i < filledCount; ++i) {
+                int index = (head + i) % filled.length;
+                bufferPool.release(filled[index].data);
+                filled[index] = null;
+            }
+            filledCount = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NonNull
+    String getName() {
+        return name;
+    }
+
+    int getCapacity() {
+        return filled.length;
+    }
+
+    long getProducerStallNanos() {
+        lock.lock();
+        try {
+            return producerStallNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getConsumerStallNanos() {
+        lock.lock();
+        try {
+            return consumerStallNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Average number of filled chunks found by the consumer, relative to the capacity
+     */
+    float getAverageOccupancy() {
+        lock.lock();
+        try {
+            return takeCount == 0 ? 0 : (float) occupancySum / takeCount / filled.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            if (error instanceof IOException) {
+                throw new IOException(name + ": " + error.getMessage(), error);
+            }
+            throw new IOException(name + ": pipeline aborted", error);
+        }
+    }
+
+    private static void await(@NonNull Condition condition) throws InterruptedIOException {
+        try {
+            condition.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Aggregate counters and histograms over many conversions. Nothing is recorded per chunk: each conversion is fed
+ * through a {@link Session}, which keeps its own totals and adds them to the shared atomics once it ends, so recording
+ * never takes a lock.
+ */
+public class ConversionMetrics {
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicInteger peakSessions = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<>();
+    private final AtomicLong resultCacheHits = new AtomicLong();
+    private final AtomicLong resultCacheMisses = new AtomicLong();
+    private final AtomicLong resultCacheBytesSaved = new AtomicLong();
+
+    private final Histogram headerMicros = new Histogram();
+    private final Histogram kdfMicros = new Histogram();
+    private final Histogram decryptKibPerSecond = new Histogram();
+    private final Histogram zipRewriteMicros = new Histogram();
+    private final Histogram totalMillis = new Histogram();
+    private final Histogram admissionWaitMillis = new Histogram();
+
+    /**
+     * Start recording a conversion. The returned session must be ended by either {@link Session#succeeded()} or
+     * {@link Session#failed(Throwable)}.
+     */
+    @NonNull
+    public Session begin() {
+        started.incrementAndGet();
+        int active = activeSessions.incrementAndGet();
+        int peak;
+        while (active > (peak = peakSessions.get())) {
+            if (peakSessions.compareAndSet(peak, active)) break;
+        }
+        return new Session();
+    }
+
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    /**
+     * @param millis Time a conversion waited for memory before it could start
+     */
+    public void recordAdmissionWait(long millis) {
+        admissionWaitMillis.record(millis);
+    }
+
+    /**
+     * Count a conversion served from a cache of converted files.
+     *
+     * @param bytesSaved Size of the input that wasn't decrypted
+     */
+    public void recordResultCacheHit(long bytesSaved) {
+        resultCacheHits.incrementAndGet();
+        resultCacheBytesSaved.addAndGet(bytesSaved);
+    }
+
+    /**
+     * Count a conversion whose result could have been cached but wasn't.
+     */
+    public void recordResultCacheMiss() {
+        resultCacheMisses.incrementAndGet();
+    }
+
+    /**
+     * @return Percentage of the cache lookups that were hits, 0 if there were none
+     */
+    public long getResultCacheHitPercent() {
+        long hits = resultCacheHits.get();
+        long lookups = hits + resultCacheMisses.get();
+        return lookups == 0 ? 0 : hits * 100 / lookups;
+    }
+
+    /**
+     * @return Every counter, and the count, mean, percentiles and maximum of every histogram, in a stable order
+     */
+    @NonNull
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("conversions_started", started.get());
+        snapshot.put("conversions_succeeded", succeeded.get());
+        snapshot.put("conversions_failed", getFailureCount());
+        snapshot.put("sessions_active", (long) activeSessions.get());
+        snapshot.put("sessions_peak", (long) peakSessions.get());
+        snapshot.put("bytes_in", bytesIn.get());
+        snapshot.put("bytes_out", bytesOut.get());
+        snapshot.put("result_cache_hits", resultCacheHits.get());
+        snapshot.put("result_cache_misses", resultCacheMisses.get());
+        snapshot.put("result_cache_hit_pct", getResultCacheHitPercent());
+        snapshot.put("result_cache_bytes_saved", resultCacheBytesSaved.get());
+        for (Map.Entry<String, Long> failure : getFailures().entrySet()) {
+            snapshot.put("failures_" + failure.getKey(), failure.getValue());
+        }
+        putHistogram(snapshot, "header_us", headerMicros);
+        putHistogram(snapshot, "kdf_us", kdfMicros);
+        putHistogram(snapshot, "decrypt_kib_per_s", decryptKibPerSecond);
+        putHistogram(snapshot, "zip_rewrite_us", zipRewriteMicros);
+        putHistogram(snapshot, "total_ms", totalMillis);
+        putHistogram(snapshot, "admission_wait_ms", admissionWaitMillis);
+        return snapshot;
+    }
+
+    public void dump(@NonNull PrintWriter pw) {
+        pw.println("Conversions: started=" + started.get() + ", succeeded=" + succeeded.get() + ", failed="
+                + getFailureCount());
+        pw.println("Sessions: active=" + activeSessions.get() + ", peak=" + peakSessions.get());
+        pw.println("Bytes: in=" + bytesIn.get() + ", out=" + bytesOut.get());
+        pw.println("Result cache: hits=" + resultCacheHits.get() + ", misses=" + resultCacheMisses.get()
+                + ", hit ratio=" + getResultCacheHitPercent() + "%, bytes saved=" + resultCacheBytesSaved.get());
+        for (Map.Entry<String, Long> failure : getFailures().entrySet()) {
+            pw.println("Failure " + failure.getKey() + ": " + failure.getValue());
+        }
+        pw.println("Header (us): " + headerMicros);
+        pw.println("KDF (us): " + kdfMicros);
+        pw.println("Decrypt throughput (KiB/s): " + decryptKibPerSecond);
+        pw.println("ZIP rewrite (us): " + zipRewriteMicros);
+        pw.println("Total (ms): " + totalMillis);
+        pw.println("Admission wait (ms): " + admissionWaitMillis);
+    }
+
+    private long getFailureCount() {
+        long count = 0;
+        for (AtomicLong failure : failures.values()) {
+            count += failure.get();
+        }
+        return count;
+    }
+
+    @NonNull
+    private Map<String, Long> getFailures() {
+        Map<String, Long> sorted = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> failure : failures.entrySet()) {
+            sorted.put(failure.getKey(), failure.getValue().get());
+        }
+        return sorted;
+    }
+
+    private static void putHistogram(@NonNull Map<String, Long> snapshot, @NonNull String name,
+                                     @NonNull Histogram histogram) {
+        long count = histogram.getCount();
+        snapshot.put(name + "_count", count);
+        snapshot.put(name + "_mean", count == 0 ? 0 : histogram.getSum() / count);
+        snapshot.put(name + "_p50", histogram.getPercentile(50));
+        snapshot.put(name + "_p90", histogram.getPercentile(90));
+        snapshot.put(name + "_p99", histogram.getPercentile(99));
+        snapshot.put(name + "_max", histogram.getMax());
+    }
+
+    /**
+     * A single conversion. It is also a {@link ProgressListener}: set it on the {@link ConversionOptions} to collect
+     * the phase timings, and pass the listener of the client, if any, to {@link #setDelegate(ProgressListener)}.
+     */
+    public class Session implements ProgressListener {
+        private final long startNanos = System.nanoTime();
+        @Nullable
+        private volatile ProgressListener delegate;
+        private long bytesRead;
+        private long bytesWritten;
+        @Nullable
+        private long[] phaseNanos;
+        private boolean ended;
+
+        private Session() {
+        }
+
+        public void setDelegate(@Nullable ProgressListener delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onPhaseStarted(int phase) {
+            ProgressListener delegate = this.delegate;
+            if (delegate != null) delegate.onPhaseStarted(phase);
+        }
+
+        @Override
+        public void onProgress(long bytesRead, long bytesWritten, long chunksDecrypted) {
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            ProgressListener delegate = this.delegate;
+            if (delegate != null) delegate.onProgress(bytesRead, bytesWritten, chunksDecrypted);
+        }
+
+        @Override
+        public void onFinished(@NonNull long[] phaseNanos) {
+            this.phaseNanos = phaseNanos.clone();
+            ProgressListener delegate = this.delegate;
+            if (delegate != null) delegate.onFinished(phaseNanos);
+        }
+
+        /**
+         * Call from the thread that ran the conversion once it returned.
+         */
+        public void succeeded() {
+            if (!end()) return;
+            succeeded.incrementAndGet();
+            totalMillis.record((System.nanoTime() - startNanos) / 1_000_000);
+            long[] phaseNanos = this.phaseNanos;
+            if (phaseNanos == null) return;
+            headerMicros.record(phaseNanos[PHASE_HEADER] / 1000);
+            kdfMicros.record(phaseNanos[PHASE_KDF] / 1000);
+            zipRewriteMicros.record(phaseNanos[PHASE_ZIP_REWRITE] / 1000);
+            long decryptNanos = phaseNanos[PHASE_DECRYPT];
+            if (decryptNanos > 0) {
+                decryptKibPerSecond.record((long) (bytesRead / 1024.0 * 1_000_000_000 / decryptNanos));
+            }
+        }
+
+        /**
+         * Count a failure by the type of {@code cause}.
+         */
+        public void failed(@NonNull Throwable cause) {
+            if (!end()) return;
+            String name = cause.getClass().getSimpleName();
+            AtomicLong count = failures.get(name);
+            if (count == null) {
+                AtomicLong newCount = new AtomicLong();
+                count = failures.putIfAbsent(name, newCount);
+                if (count == null) count = newCount;
+            }
+            count.incrementAndGet();
+        }
+
+        private boolean end() {
+            if (ended) return false;
+            ended = true;
+            activeSessions.decrementAndGet();
+            bytesIn.addAndGet(bytesRead);
+            bytesOut.addAndGet(bytesWritten);
+            return true;
+        }
+    }
+}
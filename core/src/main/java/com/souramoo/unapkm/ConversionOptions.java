@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.util.zip.Deflater;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Options for {@link UnApkm#decryptFile(java.io.InputStream, java.io.OutputStream, ConversionOptions)}.
+ */
+public class ConversionOptions {
+    /**
+     * Copy the entries as they are stored in the APKM file, the default
+     */
+    public static final int COMPRESSION_COPY = -2;
+    public static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 250;
+
+    private int compressionLevel = COMPRESSION_COPY;
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    @Nullable
+    private ProgressListener progressListener;
+    private long progressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MILLIS;
+    @Nullable
+    private EntryFilter entryFilter;
+    @Nullable
+    private DeviceProfile deviceProfile;
+    @Nullable
+    private CancellationToken cancellationToken;
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @param compressionLevel {@link #COMPRESSION_COPY}, or a {@link Deflater} level to recompress every entry in
+     *                         parallel, see {@link ParallelRecompressor}
+     */
+    @NonNull
+    public ConversionOptions setCompressionLevel(int compressionLevel) {
+        if (compressionLevel != COMPRESSION_COPY && compressionLevel != Deflater.DEFAULT_COMPRESSION
+                && (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * @param threadCount Number of threads used for recompression
+     */
+    @NonNull
+    public ConversionOptions setThreadCount(int threadCount) {
+        if (threadCount < 1) throw new IllegalArgumentException("Invalid thread count " + threadCount);
+        this.threadCount = threadCount;
+        return this;
+    }
+
+    @Nullable
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * @param progressListener Listener receiving the progress of the conversions run with these options
+     */
+    @NonNull
+    public ConversionOptions setProgressListener(@Nullable ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    public long getProgressIntervalMillis() {
+        return progressIntervalMillis;
+    }
+
+    /**
+     * @param progressIntervalMillis Minimum time between two calls to {@link ProgressListener#onProgress(long, long,
+     *                               long)}
+     */
+    @NonNull
+    public ConversionOptions setProgressIntervalMillis(long progressIntervalMillis) {
+        if (progressIntervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid progress interval " + progressIntervalMillis);
+        }
+        this.progressIntervalMillis = progressIntervalMillis;
+        return this;
+    }
+
+    @Nullable
+    public EntryFilter getEntryFilter() {
+        return entryFilter;
+    }
+
+    /**
+     * @param entryFilter Filter selecting the entries to write, see {@link EntryFilters}. Every entry is written if
+     *                    null.
+     */
+    @NonNull
+    public ConversionOptions setEntryFilter(@Nullable EntryFilter entryFilter) {
+        this.entryFilter = entryFilter;
+        return this;
+    }
+
+    @Nullable
+    public DeviceProfile getDeviceProfile() {
+        return deviceProfile;
+    }
+
+    /**
+     * @param deviceProfile Device whose config splits are kept, the splits for other ABIs, densities and languages
+     *                      are skipped. Applies on top of the {@link #setEntryFilter(EntryFilter) entry filter}.
+     */
+    @NonNull
+    public ConversionOptions setDeviceProfile(@Nullable DeviceProfile deviceProfile) {
+        this.deviceProfile = deviceProfile;
+        return this;
+    }
+
+    @Nullable
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * @param cancellationToken Token stopping the conversions run with these options once cancelled, they then
+     *                          throw an {@link java.io.InterruptedIOException}
+     */
+    @NonNull
+    public ConversionOptions setCancellationToken(@Nullable CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+        return this;
+    }
+
+    /**
+     * Describe the options that change the converted file, e.g. to key cached results. The thread count and the
+     * progress settings don't, two conversions of the same input with equal keys give the same bytes.
+     */
+    @NonNull
+    public String getOutputKey() {
+        return "compression=" + compressionLevel + ";filter=" + entryFilter + ";device=" + deviceProfile;
+    }
+}
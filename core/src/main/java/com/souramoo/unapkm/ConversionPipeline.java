@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Converts an APKM file in four stages running concurrently: input read-ahead, secretstream decryption, ZIP
+ * re-framing and output write. Consecutive stages are connected by {@link ChunkRing}s of reusable chunks, so that disk
+ * I/O, crypto and ZIP work overlap. The ZIP stage runs on the calling thread, the others on a shared executor.
+ */
+public class ConversionPipeline {
+    public static final int DEFAULT_RING_CAPACITY = 4;
+    public static final int OUTPUT_CHUNK_SIZE = 64 * 1024;
+
+    private static final ExecutorService STAGE_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread t = new Thread(r, "UnApkm pipeline #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Time each stage spent waiting for its input or for space in its output, and how full each ring was.
+     */
+    public static class Stats {
+        public static final String[] STAGES = {"read", "decrypt", "zip", "write"};
+
+        /**
+         * Per stage, time spent waiting for input from the previous stage
+         */
+        public final long[] inputStallNanos = new long[4];
+        /**
+         * Per stage, time spent waiting for the next stage to free a chunk
+         */
+        public final long[] outputStallNanos = new long[4];
+        /**
+         * Per ring (read->decrypt, decrypt->zip, zip->write), average fraction of filled chunks
+         */
+        public final float[] occupancy = new float[3];
+        public long elapsedNanos;
+
+        /**
+         * @return Index of the stage which waited the least, i.e. the one limiting the throughput
+         */
+        public int getBottleneck() {
+            int bottleneck = 0;
+            long minStall = Long.MAX_VALUE;
+            for (int i = 0; i < STAGES.length; ++i) {
+                long stall = inputStallNanos[i] + outputStallNanos[i];
+                if (stall < minStall) {
+                    minStall = stall;
+                    bottleneck = i;
+                }
+            }
+            return bottleneck;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Pipeline{elapsed=").append(elapsedNanos / 1_000_000).append("ms");
+            for (int i = 0; i < STAGES.length; ++i) {
+                sb.append(", ").append(STAGES[i]).append("(in stall=").append(inputStallNanos[i] / 1_000_000)
+                        .append("ms, out stall=").append(outputStallNanos[i] / 1_000_000).append("ms)");
+            }
+            for (int i = 0; i < occupancy.length; ++i) {
+                sb.append(", ").append(STAGES[i]).append("->").append(STAGES[i + 1]).append(" occupancy=")
+                        .append(String.format(Locale.ROOT, "%.2f", occupancy[i]));
+            }
+            return sb.append(", bottleneck=").append(STAGES[getBottleneck()]).append('}').toString();
+        }
+    }
+
+    private final UnApkm.Header header;
+    private final LazySodium lazySodium;
+    private final ChunkBufferPool bufferPool;
+    private final int ringCapacity;
+    private final Stats stats = new Stats();
+    @Nullable
+    private ProgressTracker progressTracker;
+
+    public ConversionPipeline(@NonNull UnApkm.Header header, @NonNull LazySodium lazySodium,
+                              @NonNull ChunkBufferPool bufferPool) {
+        this(header, lazySodium, bufferPool, DEFAULT_RING_CAPACITY);
+    }
+
+    public ConversionPipeline(@NonNull UnApkm.Header header, @NonNull LazySodium lazySodium,
+                              @NonNull ChunkBufferPool bufferPool, int ringCapacity) {
+        this.header = header;
+        this.lazySodium = lazySodium;
+        this.bufferPool = bufferPool;
+        this.ringCapacity = ringCapacity;
+    }
+
+    /**
+     * Convert the rest of the APKM file. Both streams are closed afterwards.
+     *
+     * @param is Stream positioned right after the header
+     */
+    public void run(@NonNull final InputStream is, @NonNull final OutputStream os) throws IOException {
+        run(is, os, new ConversionOptions());
+    }
+
+    /**
+     * Same as {@link #run(InputStream, OutputStream)}, the ZIP stage follows the given options.
+     */
+    public void run(@NonNull final InputStream is, @NonNull final OutputStream os,
+                    @NonNull ConversionOptions options) throws IOException {
+        long startTime = System.nanoTime();
+        final SecretStreamDecryptor decryptor = new SecretStreamDecryptor(header, lazySodium, bufferPool);
+        decryptor.setProgressTracker(progressTracker);
+        final ChunkRing cipherRing = new ChunkRing("read->decrypt", ringCapacity, decryptor.getCipherChunkSize(),
+                bufferPool);
+        final ChunkRing plainRing = new ChunkRing("decrypt->zip", ringCapacity, decryptor.getChunkSize(),
+                bufferPool);
+        final ChunkRing outputRing = new ChunkRing("zip->write", ringCapacity * 2, OUTPUT_CHUNK_SIZE, bufferPool);
+        final ChunkRing[] rings = {cipherRing, plainRing, outputRing};
+        Future<?> readStage = submit(rings, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    ChunkRing.Chunk chunk;
+                    while ((chunk = cipherRing.acquire()) != null) {
+                        chunk.length = readFully(is, chunk.data);
+                        if (chunk.length == 0) {
+                            cipherRing.recycle(chunk);
+                            cipherRing.publishEnd();
+                            break;
+                        }
+                        cipherRing.publish(chunk);
+                    }
+                } finally {
+                    is.close();
+                }
+                return null;
+            }
+        });
+        Future<?> decryptStage = submit(rings, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    while (true) {
+                        ChunkRing.Chunk cipher = cipherRing.take();
+                        if (cipher.length == -1) {
+                            cipherRing.recycle(cipher);
+                            if (!decryptor.isFinished()) {
+                                throw new EOFException("Truncated stream, the final chunk is missing");
+                            }
+                            plainRing.publishEnd();
+                            break;
+                        }
+                        if (decryptor.isFinished()) {
+                            // Discard anything after the final chunk
+                            cipherRing.recycle(cipher);
+                            continue;
+                        }
+                        ChunkRing.Chunk plain = plainRing.acquire();
+                        if (plain == null) {
+                            // The ZIP stage is done
+                            cipherRing.recycle(cipher);
+                            break;
+                        }
+                        plain.length = decryptor.decrypt(cipher.data, cipher.length, plain.data);
+                        cipherRing.recycle(cipher);
+                        plainRing.publish(plain);
+                    }
+                } finally {
+                    cipherRing.close();
+                }
+                return null;
+            }
+        });
+        Future<?> writeStage = submit(rings, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    while (true) {
+                        ChunkRing.Chunk chunk = outputRing.take();
+                        if (chunk.length == -1) {
+                            outputRing.recycle(chunk);
+                            break;
+                        }
+                        os.write(chunk.data, 0, chunk.length);
+                        outputRing.recycle(chunk);
+                    }
+                    os.flush();
+                } finally {
+                    outputRing.close();
+                    os.close();
+                }
+                return null;
+            }
+        });
+        IOException error = null;
+        try {
+            UnApkm.rewriteZip(new RingInputStream(plainRing), new RingOutputStream(outputRing), options);
+        } catch (IOException | RuntimeException e) {
+            abort(rings, e);
+            error = e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        error = await(writeStage, error);
+        error = await(decryptStage, error);
+        error = await(readStage, error);
+        decryptor.close();
+        for (ChunkRing ring : rings) {
+            ring.release();
+        }
+        stats.elapsedNanos = System.nanoTime() - startTime;
+        stats.outputStallNanos[0] = cipherRing.getProducerStallNanos();
+        stats.inputStallNanos[1] = cipherRing.getConsumerStallNanos();
+        stats.outputStallNanos[1] = plainRing.getProducerStallNanos();
+        stats.inputStallNanos[2] = plainRing.getConsumerStallNanos();
+        stats.outputStallNanos[2] = outputRing.getProducerStallNanos();
+        stats.inputStallNanos[3] = outputRing.getConsumerStallNanos();
+        for (int i = 0; i < rings.length; ++i) {
+            stats.occupancy[i] = rings[i].getAverageOccupancy();
+        }
+        if (error != null) throw error;
+    }
+
+    void setProgressTracker(@Nullable ProgressTracker progressTracker) {
+        this.progressTracker = progressTracker;
+    }
+
+    @NonNull
+    public Stats getStats() {
+        return stats;
+    }
+
+    @NonNull
+    private static Future<?> submit(@NonNull final ChunkRing[] rings, @NonNull final Callable<Void> stage) {
+        return STAGE_EXECUTOR.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    return stage.call();
+                } catch (Throwable th) {
+                    abort(rings, th);
+                    throw th;
+                }
+            }
+        });
+    }
+
+    private static void abort(@NonNull ChunkRing[] rings, @NonNull Throwable th) {
+        for (ChunkRing ring : rings) {
+            ring.abort(th);
+        }
+    }
+
+    /**
+     * Wait for a stage to finish, keeping the first error.
+     */
+    private static IOException await(@NonNull Future<?> stage, IOException error) {
+        try {
+            stage.get();
+        } catch (InterruptedException e) {
+            stage.cancel(true);
+            if (error == null) error = new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (error == null) {
+                Throwable cause = e.getCause();
+                error = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+        }
+        return error;
+    }
+
+    private static int readFully(@NonNull InputStream is, @NonNull byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int read = is.read(b, off, b.length - off);
+            if (read == -1) break;
+            off += read;
+        }
+        return off;
+    }
+
+    /**
+     * Consumer side of a ring as an {@link InputStream}.
+     */
+    private static class RingInputStream extends InputStream {
+        private final ChunkRing ring;
+        private ChunkRing.Chunk chunk;
+        private int pos;
+        private boolean eof;
+
+        RingInputStream(@NonNull ChunkRing ring) {
+            this.ring = ring;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (chunk == null || pos == chunk.length) {
+                if (eof) return -1;
+                if (chunk != null) ring.recycle(chunk);
+                chunk = ring.take();
+                pos = 0;
+                if (chunk.length == -1) {
+                    ring.recycle(chunk);
+                    chunk = null;
+                    eof = true;
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk.data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            if (chunk != null) {
+                ring.recycle(chunk);
+                chunk = null;
+            }
+            eof = true;
+            ring.close();
+        }
+    }
+
+    /**
+     * Producer side of a ring as an {@link OutputStream}. Closing it publishes the end of the stream.
+     */
+    private static class RingOutputStream extends OutputStream {
+        private final ChunkRing ring;
+        private ChunkRing.Chunk chunk;
+        private boolean closed;
+
+        RingOutputStream(@NonNull ChunkRing ring) {
+            this.ring = ring;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            while (len > 0) {
+                if (chunk == null) {
+                    chunk = ring.acquire();
+                    if (chunk == null) throw new IOException("Output closed");
+                    chunk.length = 0;
+                }
+                int n = Math.min(len, chunk.data.length - chunk.length);
+                System.arraycopy(b, off, chunk.data, chunk.length, n);
+                chunk.length += n;
+                off += n;
+                len -= n;
+                if (chunk.length == chunk.data.length) flush();
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (chunk != null && chunk.length > 0) {
+                ring.publish(chunk);
+                chunk = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                flush();
+                if (chunk != null) {
+                    ring.recycle(chunk);
+                    chunk = null;
+                }
+                ring.publishEnd();
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Supplies the libsodium binding of the platform: lazysodium-android in the app, lazysodium-java on the JVM. It must
+ * be registered with {@link UnApkm#setCryptoProvider(CryptoProvider)} before any conversion.
+ */
+public interface CryptoProvider {
+    /**
+     * @return Binding shared by every conversion, so it must be safe to use from several threads
+     */
+    @NonNull
+    LazySodium getLazySodium();
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Decrypts the secretstream of an APKM file on demand: the next chunk is read from the underlying stream and decrypted
+ * inside {@link #read(byte[], int, int)} once the previous one is consumed, on the caller's thread.
+ */
+public class DecryptingInputStream extends InputStream {
+    private final InputStream in;
+    private final SecretStreamDecryptor decryptor;
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private boolean closed;
+    private long plainOffset;
+    @Nullable
+    private ChunkObserver chunkObserver;
+
+    /**
+     * Called before a chunk is decrypted
+     */
+    interface ChunkObserver {
+        /**
+         * @param plainOffset Number of bytes decrypted before the chunk
+         */
+        void beforeChunk(@NonNull SecretStreamDecryptor decryptor, long plainOffset) throws IOException;
+    }
+
+    /**
+     * @param in     Stream positioned right after the header
+     * @param header Header processed with {@code expensiveOps} enabled
+     */
+    public DecryptingInputStream(@NonNull InputStream in, @NonNull UnApkm.Header header,
+                                 @NonNull LazySodium lazySodium, @NonNull ChunkBufferPool bufferPool)
+            throws IOException {
+        this(in, new SecretStreamDecryptor(header, lazySodium, bufferPool));
+    }
+
+    /**
+     * @param in Stream positioned at the next chunk of {@code decryptor}
+     */
+    DecryptingInputStream(@NonNull InputStream in, @NonNull SecretStreamDecryptor decryptor) {
+        this.in = in;
+        this.decryptor = decryptor;
+        this.buffer = decryptor.getBuffer();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) return -1;
+        return buffer[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) return 0;
+        if (!ensureAvailable()) return -1;
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buffer, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && ensureAvailable()) {
+            int k = (int) Math.min(n - skipped, limit - pos);
+            pos += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        return limit - pos;
+    }
+
+    void setProgressTracker(@Nullable ProgressTracker progressTracker) {
+        decryptor.setProgressTracker(progressTracker);
+    }
+
+    void setChunkObserver(@Nullable ChunkObserver chunkObserver) {
+        this.chunkObserver = chunkObserver;
+    }
+
+    /**
+     * @return Number of chunks decrypted so far
+     */
+    public long getChunkCount() {
+        return decryptor.getChunkCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            decryptor.close();
+            in.close();
+        }
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        while (pos == limit) {
+            if (eof) return false;
+            if (chunkObserver != null && !decryptor.isFinished()) {
+                chunkObserver.beforeChunk(decryptor, plainOffset);
+            }
+            int decryptedLength = decryptor.decryptChunk(in);
+            if (decryptedLength == -1) {
+                eof = true;
+                return false;
+            }
+            pos = 0;
+            limit = decryptedLength;
+            plainOffset += decryptedLength;
+        }
+        return true;
+    }
+}
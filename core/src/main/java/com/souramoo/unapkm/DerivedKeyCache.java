@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+import com.goterl.lazycode.lazysodium.interfaces.PwHash;
+import com.goterl.lazycode.lazysodium.interfaces.SecretBox;
+import com.sun.jna.NativeLong;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Cache for the keys derived from {@link UnApkm#PASSWORD}. Since the password is constant, a derived key only depends
+ * on the algorithm, opsLimit, memLimit and salt found in the header, and can be reused for every file sharing them.
+ * <p>
+ * Keys are kept in a bounded in-memory LRU. Optionally, they are also stored in a directory, each encrypted with
+ * secretbox using a key supplied by the caller, so that they survive a restart of the process.
+ */
+public class DerivedKeyCache {
+    public static final int DEFAULT_MAX_ENTRIES = 32;
+    public static final int DEFAULT_MAX_DISK_ENTRIES = 512;
+
+    private static final int KEY_SIZE = 32;
+    private static final String TMP_SUFFIX = ".tmp";
+    /**
+     * Age after which a temporary file is considered left behind by a write that never completed
+     */
+    private static final long STALE_TMP_MILLIS = 60 * 1000;
+
+    private static class KdfBudget {
+        final Semaphore semaphore;
+        final int kib;
+
+        KdfBudget(int kib) {
+            this.semaphore = new Semaphore(kib, true);
+            this.kib = kib;
+        }
+    }
+
+    private final Map<String, byte[]> memoryCache;
+    private final Map<String, Object> keyLocks = new ConcurrentHashMap<>();
+    @Nullable
+    private final File diskDir;
+    @Nullable
+    private final byte[] diskKey;
+    private final int maxDiskEntries;
+    @Nullable
+    private volatile KdfBudget kdfBudget;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public DerivedKeyCache(int maxEntries) {
+        this(maxEntries, null, null, 0);
+    }
+
+    /**
+     * @param diskDir        Directory for the on-disk tier, created if necessary
+     * @param diskKey        {@link SecretBox#KEYBYTES} bytes long key used to encrypt the entries on disk
+     * @param maxDiskEntries Maximum number of files kept in {@code diskDir}
+     */
+    public DerivedKeyCache(int maxEntries, @Nullable File diskDir, @Nullable byte[] diskKey, int maxDiskEntries) {
+        if (diskDir != null && (diskKey == null || diskKey.length != SecretBox.KEYBYTES)) {
+            throw new IllegalArgumentException("Invalid disk key");
+        }
+        memoryCache = new LinkedHashMap<String, byte[]>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.diskDir = diskDir;
+        this.diskKey = diskKey;
+        this.maxDiskEntries = maxDiskEntries;
+    }
+
+    @NonNull
+    public byte[] getOrDerive(@NonNull LazySodium lazySodium, @NonNull PwHash.Alg algo, long opsLimit, int memLimit,
+                              @NonNull byte[] salt)
+            throws IOException {
+        String cacheKey = getCacheKey(algo, opsLimit, memLimit, salt);
+        byte[] key = getFromMemory(cacheKey);
+        if (key != null) {
+            hits.incrementAndGet();
+            return key;
+        }
+        // Only a single thread derives a particular key, others wait for it and reuse the result
+        Object lock = new Object();
+        Object existingLock = keyLocks.putIfAbsent(cacheKey, lock);
+        if (existingLock != null) lock = existingLock;
+        synchronized (lock) {
+            try {
+                key = getFromMemory(cacheKey);
+                if (key != null) {
+                    hits.incrementAndGet();
+                    return key;
+                }
+                key = getFromDisk(lazySodium, cacheKey);
+                if (key != null) {
+                    diskHits.incrementAndGet();
+                } else {
+                    misses.incrementAndGet();
+                    key = derive(lazySodium, algo, opsLimit, memLimit, salt);
+                    putToDisk(lazySodium, cacheKey, key);
+                }
+                synchronized (memoryCache) {
+                    memoryCache.put(cacheKey, key);
+                }
+                return key;
+            } finally {
+                keyLocks.remove(cacheKey, lock);
+            }
+        }
+    }
+
+    /**
+     * @return Whether the key is cached in memory or on disk, i.e. {@link #getOrDerive} wouldn't run the KDF
+     */
+    public boolean contains(@NonNull PwHash.Alg algo, long opsLimit, int memLimit, @NonNull byte[] salt) {
+        String cacheKey = getCacheKey(algo, opsLimit, memLimit, salt);
+        if (getFromMemory(cacheKey) != null) return true;
+        if (diskDir == null) return false;
+        File file = new File(diskDir, getDiskName(cacheKey));
+        return file.length() == SecretBox.NONCEBYTES + SecretBox.MACBYTES + KEY_SIZE;
+    }
+
+    /**
+     * Limit the memory used by concurrent key derivations. A derivation waits until its memLimit fits in the budget;
+     * one needing more than the whole budget runs alone. Cache hits aren't limited. Leave it unset if the KDF is
+     * already admitted by an {@link AdmissionController}, a derivation would otherwise wait for both.
+     *
+     * @param bytes Budget in bytes, or 0 for no limit
+     */
+    public void setKdfMemoryBudget(long bytes) {
+        if (bytes < 0) throw new IllegalArgumentException("Invalid budget " + bytes);
+        // Count in KiB so that budgets above 2 GiB fit in the permits
+        kdfBudget = bytes == 0 ? null : new KdfBudget((int) Math.min(Integer.MAX_VALUE, (bytes + 1023) / 1024));
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void clear() {
+        synchronized (memoryCache) {
+            memoryCache.clear();
+        }
+        if (diskDir != null) {
+            File[] files = diskDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "DerivedKeyCache{hits=" + hits.get() + ", diskHits=" + diskHits.get() + ", misses=" + misses.get() + '}';
+    }
+
+    @NonNull
+    private byte[] derive(@NonNull LazySodium lazySodium, @NonNull PwHash.Alg algo, long opsLimit, int memLimit,
+                          @NonNull byte[] salt)
+            throws IOException {
+        KdfBudget budget = kdfBudget;
+        int permits = 0;
+        if (budget != null) {
+            permits = Math.max(1, (int) Math.min(((long) memLimit + 1023) / 1024, budget.kib));
+            try {
+                budget.semaphore.acquire(permits);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        try {
+            byte[] key = new byte[KEY_SIZE];
+            if (!lazySodium.cryptoPwHash(key, KEY_SIZE, UnApkm.PASSWORD, UnApkm.PASSWORD.length, salt, opsLimit,
+                    new NativeLong(memLimit), algo)) {
+                throw new IOException("pwhash failed");
+            }
+            return key;
+        } finally {
+            if (budget != null) budget.semaphore.release(permits);
+        }
+    }
+
+    @NonNull
+    private static String getCacheKey(@NonNull PwHash.Alg algo, long opsLimit, int memLimit, @NonNull byte[] salt) {
+        return algo.getValue() + ":" + opsLimit + ":" + memLimit + ":" + toHex(salt);
+    }
+
+    @Nullable
+    private byte[] getFromMemory(@NonNull String cacheKey) {
+        synchronized (memoryCache) {
+            return memoryCache.get(cacheKey);
+        }
+    }
+
+    @Nullable
+    private byte[] getFromDisk(@NonNull LazySodium lazySodium, @NonNull String cacheKey) {
+        if (diskDir == null || diskKey == null) return null;
+        File file = new File(diskDir, getDiskName(cacheKey));
+        if (!file.isFile() || file.length() != SecretBox.NONCEBYTES + SecretBox.MACBYTES + KEY_SIZE) {
+            return null;
+        }
+        byte[] nonce = new byte[SecretBox.NONCEBYTES];
+        byte[] cipher = new byte[SecretBox.MACBYTES + KEY_SIZE];
+        try (InputStream is = new FileInputStream(file)) {
+            readFully(is, nonce);
+            readFully(is, cipher);
+        } catch (IOException e) {
+            return null;
+        }
+        byte[] key = new byte[KEY_SIZE];
+        if (!lazySodium.cryptoSecretBoxOpenEasy(key, cipher, cipher.length, nonce, diskKey)) {
+            // Tampered or encrypted with another key
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        return key;
+    }
+
+    private void putToDisk(@NonNull LazySodium lazySodium, @NonNull String cacheKey, @NonNull byte[] key) {
+        if (diskDir == null || diskKey == null) return;
+        if (!diskDir.isDirectory() && !diskDir.mkdirs()) return;
+        byte[] nonce = lazySodium.randomBytesBuf(SecretBox.NONCEBYTES);
+        byte[] cipher = new byte[SecretBox.MACBYTES + KEY_SIZE];
+        if (!lazySodium.cryptoSecretBoxEasy(cipher, key, key.length, nonce, diskKey)) return;
+        String name = getDiskName(cacheKey);
+        File tmpFile = new File(diskDir, name + TMP_SUFFIX);
+        try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+            fos.write(nonce);
+            fos.write(cipher);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(new File(diskDir, name))) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+        }
+        trimDisk();
+    }
+
+    private void trimDisk() {
+        File[] files = diskDir != null ? diskDir.listFiles() : null;
+        if (files == null) return;
+        // Temporary files aren't entries, those left by an interrupted write are deleted
+        long staleBefore = System.currentTimeMillis() - STALE_TMP_MILLIS;
+        List<File> entries = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (!file.getName().endsWith(TMP_SUFFIX)) {
+                entries.add(file);
+            } else if (file.lastModified() < staleBefore) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        if (entries.size() <= maxDiskEntries) return;
+        long[] lastModified = new long[entries.size()];
+        for (int i = 0; i < lastModified.length; ++i) {
+            lastModified[i] = entries.get(i).lastModified();
+        }
+        long[] sorted = lastModified.clone();
+        Arrays.sort(sorted);
+        long threshold = sorted[lastModified.length - maxDiskEntries];
+        for (int i = 0; i < lastModified.length; ++i) {
+            if (lastModified[i] < threshold) {
+                //noinspection ResultOfMethodCallIgnored
+                entries.get(i).delete();
+            }
+        }
+    }
+
+    @NonNull
+    private static String getDiskName(@NonNull String cacheKey) {
+        // Salt isn't stored in plain text
+        try {
+            return toHex(MessageDigest.getInstance("SHA-256").digest(cacheKey.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void readFully(@NonNull InputStream is, @NonNull byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int read = is.read(b, off, b.length - off);
+            if (read == -1) throw new IOException("Unexpected end of file");
+            off += read;
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @NonNull
+    private static String toHex(@NonNull byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The configuration of a device, used to drop the config splits it wouldn't install, see
+ * {@link ConversionOptions#setDeviceProfile(DeviceProfile)}. Splits that aren't recognised as ABI, density or
+ * language splits are always kept.
+ */
+public class DeviceProfile {
+    /**
+     * Density buckets, ordered by {@link #DENSITY_DPIS}
+     */
+    static final String[] DENSITY_NAMES = {"ldpi", "mdpi", "tvdpi", "hdpi", "xhdpi", "xxhdpi", "xxxhdpi"};
+    static final int[] DENSITY_DPIS = {120, 160, 213, 240, 320, 480, 640};
+
+    private List<String> abis = Collections.emptyList();
+    private int densityDpi;
+    private List<String> languages = Collections.emptyList();
+
+    /**
+     * @param abis Supported ABIs, the preferred first, as in {@code Build.SUPPORTED_ABIS}. Only the splits of the
+     *             first ABI present in the bundle are kept.
+     */
+    @NonNull
+    public DeviceProfile setAbis(@NonNull String... abis) {
+        List<String> normalized = new ArrayList<>(abis.length);
+        for (String abi : abis) {
+            normalized.add(normalizeAbi(abi));
+        }
+        this.abis = normalized;
+        return this;
+    }
+
+    /**
+     * @param densityDpi Screen density as in {@code DisplayMetrics.densityDpi}. The smallest density split at least as
+     *                   dense is kept, or the densest one if there's none.
+     */
+    @NonNull
+    public DeviceProfile setDensityDpi(int densityDpi) {
+        if (densityDpi < 0) throw new IllegalArgumentException("Invalid density " + densityDpi);
+        this.densityDpi = densityDpi;
+        return this;
+    }
+
+    /**
+     * @param locales Locales of the device, e.g. {@code en-US} or {@code de}. Language splits are kept if their
+     *                language is one of them.
+     */
+    @NonNull
+    public DeviceProfile setLocales(@NonNull String... locales) {
+        List<String> languages = new ArrayList<>(locales.length);
+        for (String locale : locales) {
+            languages.add(getLanguage(locale));
+        }
+        this.languages = languages;
+        return this;
+    }
+
+    /**
+     * @return ABIs with '-' replaced by '_' as in split names, e.g. {@code arm64_v8a}
+     */
+    @NonNull
+    List<String> getAbis() {
+        return abis;
+    }
+
+    int getDensityDpi() {
+        return densityDpi;
+    }
+
+    @NonNull
+    List<String> getLanguages() {
+        return languages;
+    }
+
+    @NonNull
+    static String normalizeAbi(@NonNull String abi) {
+        return abi.toLowerCase(Locale.ROOT).replace('-', '_');
+    }
+
+    @NonNull
+    static String getLanguage(@NonNull String locale) {
+        int end = 0;
+        while (end < locale.length() && locale.charAt(end) != '-' && locale.charAt(end) != '_') ++end;
+        return locale.substring(0, end).toLowerCase(Locale.ROOT);
+    }
+
+    static int indexOfDensity(@NonNull String name) {
+        return Arrays.asList(DENSITY_NAMES).indexOf(name);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "DeviceProfile{abis=" + abis + ", densityDpi=" + densityDpi + ", languages=" + languages + "}";
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+import com.goterl.lazycode.lazysodium.interfaces.SecretStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Encrypts data into the secretstream of an APKM file, the reverse of {@link DecryptingInputStream}. A full chunk is
+ * only pushed once more data arrives so that the last chunk, pushed by {@link #close()}, carries the final tag.
+ */
+public class EncryptingOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final LazySodium lazySodium;
+    private final ChunkBufferPool bufferPool;
+    private final byte[] nativeState;
+    private final SecretStream.State state;
+    private final byte[] plainChunk;
+    private final byte[] cipherChunk;
+    private int length;
+    private long chunkCount;
+    private boolean closed;
+
+    /**
+     * @param out       Stream positioned right after the header
+     * @param key       Key derived from the password
+     * @param header    Receives the {@link SecretStream#HEADERBYTES} bytes long secretstream header, which must be
+     *                  written to the APKM header before any data is written to this stream
+     * @param chunkSize Size of a plain chunk
+     */
+    public EncryptingOutputStream(@NonNull OutputStream out, @NonNull byte[] key, @NonNull byte[] header,
+                                  int chunkSize, @NonNull LazySodium lazySodium, @NonNull ChunkBufferPool bufferPool)
+            throws IOException {
+        if (chunkSize <= 0 || chunkSize > SecretStreamDecryptor.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        this.out = out;
+        this.lazySodium = lazySodium;
+        this.bufferPool = bufferPool;
+        if (SecretStreamNative.AVAILABLE) {
+            nativeState = new byte[SecretStreamNative.STATE_BYTES];
+            state = null;
+            if (SecretStreamNative.crypto_secretstream_xchacha20poly1305_init_push(nativeState, header, key) != 0) {
+                throw new IOException("init_push failed");
+            }
+        } else {
+            nativeState = null;
+            state = new SecretStream.State();
+            if (!lazySodium.cryptoSecretStreamInitPush(state, header, key)) {
+                throw new IOException("init_push failed");
+            }
+        }
+        plainChunk = bufferPool.acquire(chunkSize);
+        cipherChunk = bufferPool.acquire(chunkSize + SecretStream.ABYTES);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (length == plainChunk.length) push(SecretStream.TAG_MESSAGE);
+        plainChunk[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (closed) throw new IOException("Stream closed");
+        while (len > 0) {
+            if (length == plainChunk.length) push(SecretStream.TAG_MESSAGE);
+            int n = Math.min(len, plainChunk.length - length);
+            System.arraycopy(b, off, plainChunk, length, n);
+            length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * @return Number of chunks pushed so far
+     */
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Push the last chunk with the final tag and close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            push(SecretStream.TAG_FINAL);
+            out.flush();
+        } finally {
+            bufferPool.release(plainChunk);
+            bufferPool.release(cipherChunk);
+            out.close();
+        }
+    }
+
+    private void push(byte tag) throws IOException {
+        boolean success;
+        if (nativeState != null) {
+            success = SecretStreamNative.crypto_secretstream_xchacha20poly1305_push(nativeState, cipherChunk, null,
+                    plainChunk, length, null, 0, tag) == 0;
+        } else {
+            success = lazySodium.cryptoSecretStreamPush(state, cipherChunk, plainChunk, length, tag);
+        }
+        if (!success) {
+            throw new IOException("encrypto error");
+        }
+        out.write(cipherChunk, 0, length + SecretStream.ABYTES);
+        ++chunkCount;
+        length = 0;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Selects the entries of the bundle to convert, see {@link ConversionOptions#setEntryFilter(EntryFilter)}. Rejected
+ * entries are still decrypted, since the stream has to be read through, but neither written nor recompressed.
+ * {@link EntryFilters} builds filters from names or globs.
+ * <p>
+ * {@link Object#toString()} should describe the selection: {@link ConversionOptions#getOutputKey()} relies on it to
+ * tell apart results converted with different filters.
+ */
+public interface EntryFilter {
+    /**
+     * @param name Name of the entry inside the bundle, e.g. {@code base.apk} or {@code split_config.arm64_v8a.apk}
+     * @return Whether to write the entry to the output
+     */
+    boolean accept(@NonNull String name);
+}
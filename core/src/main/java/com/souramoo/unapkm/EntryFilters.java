@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Factories for common {@link EntryFilter}s.
+ */
+public final class EntryFilters {
+    private EntryFilters() {
+    }
+
+    /**
+     * Accept entries whose name is exactly one of {@code names}.
+     */
+    @NonNull
+    public static EntryFilter names(@NonNull String... names) {
+        final Set<String> nameSet = new TreeSet<>(Arrays.asList(names));
+        return new EntryFilter() {
+            @Override
+            public boolean accept(@NonNull String name) {
+                return nameSet.contains(name);
+            }
+
+            @NonNull
+            @Override
+            public String toString() {
+                return "names" + nameSet;
+            }
+        };
+    }
+
+    /**
+     * Accept entries matching any of {@code globs}. {@code ?} matches one character and {@code *} any number of
+     * characters, both except {@code /}, while {@code **} also matches across directories. Names without wildcards
+     * must match exactly, e.g. {@code globs("base.apk", "split_config.arm64_v8a.apk", "split_config.*dpi.apk")}.
+     */
+    @NonNull
+    public static EntryFilter globs(@NonNull String... globs) {
+        StringBuilder regex = new StringBuilder();
+        for (String glob : globs) {
+            if (regex.length() != 0) regex.append('|');
+            appendGlob(regex, glob);
+        }
+        final Pattern pattern = Pattern.compile(regex.toString());
+        return new EntryFilter() {
+            @Override
+            public boolean accept(@NonNull String name) {
+                return pattern.matcher(name).matches();
+            }
+
+            @NonNull
+            @Override
+            public String toString() {
+                return "globs[" + pattern.pattern() + "]";
+            }
+        };
+    }
+
+    /**
+     * Accept entries accepted by any of {@code filters}.
+     */
+    @NonNull
+    public static EntryFilter anyOf(@NonNull final EntryFilter... filters) {
+        return new EntryFilter() {
+            @Override
+            public boolean accept(@NonNull String name) {
+                for (EntryFilter filter : filters) {
+                    if (filter.accept(name)) return true;
+                }
+                return false;
+            }
+
+            @NonNull
+            @Override
+            public String toString() {
+                return "anyOf" + Arrays.toString(filters);
+            }
+        };
+    }
+
+    private static void appendGlob(@NonNull StringBuilder regex, @NonNull String glob) {
+        regex.append("(?:");
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); ++i) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?') continue;
+            if (i > literalStart) regex.append(Pattern.quote(glob.substring(literalStart, i)));
+            if (c == '?') {
+                regex.append("[^/]");
+            } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                ++i;
+            } else regex.append("[^/]*");
+            literalStart = i + 1;
+        }
+        if (glob.length() > literalStart) regex.append(Pattern.quote(glob.substring(literalStart)));
+        regex.append(')');
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Reads a regular file through its channel, in memory-mapped windows so that each chunk is copied straight from the
+ * page cache without a read call. If the file can't be mapped, it falls back to large positional reads. Reading
+ * doesn't move the position of the channel.
+ * <p>
+ * Windows are unmapped once collected, so they are kept small enough not to exhaust the address space of 32-bit
+ * processes.
+ */
+public class FileChannelInputStream extends InputStream {
+    public static final int DEFAULT_WINDOW_SIZE = 8 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final boolean closeChannel;
+    private final int windowSize;
+    private final long end;
+    private long position;
+    /**
+     * Holds the data from {@link #position} on, null if nothing is buffered
+     */
+    @Nullable
+    private ByteBuffer window;
+    @Nullable
+    private ByteBuffer readBuffer;
+    private boolean mapUnsupported;
+    private boolean closed;
+
+    /**
+     * Read from the current position of the channel to the end of the file.
+     *
+     * @param closeChannel Whether to close the channel along with the stream
+     */
+    public FileChannelInputStream(@NonNull FileChannel channel, boolean closeChannel) throws IOException {
+        this(channel, channel.position(), closeChannel, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param position   Offset of the first byte to read
+     * @param windowSize Size of the mapped windows
+     */
+    public FileChannelInputStream(@NonNull FileChannel channel, long position, boolean closeChannel, int windowSize)
+            throws IOException {
+        if (windowSize <= 0) throw new IllegalArgumentException("Invalid window size " + windowSize);
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        this.windowSize = windowSize;
+        this.end = channel.size();
+        this.position = Math.min(position, end);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureBuffered()) return -1;
+        ++position;
+        //noinspection ConstantConditions
+        return window.get() & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) return 0;
+        if (!ensureBuffered()) return -1;
+        //noinspection ConstantConditions
+        int n = Math.min(len, window.remaining());
+        window.get(b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (n <= 0) return 0;
+        long skipped = Math.min(n, end - position);
+        if (window != null && skipped < window.remaining()) {
+            window.position(window.position() + (int) skipped);
+        } else window = null;
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    /**
+     * @return A new stream reading the rest of the file independently of this one, the channel is left open
+     */
+    @NonNull
+    public FileChannelInputStream duplicate() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        return new FileChannelInputStream(channel, position, false, windowSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            window = null;
+            readBuffer = null;
+            if (closeChannel) channel.close();
+        }
+    }
+
+    private boolean ensureBuffered() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (window != null && window.hasRemaining()) return true;
+        if (position >= end) return false;
+        long size = Math.min(windowSize, end - position);
+        if (!mapUnsupported) {
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                mapUnsupported = true;
+            }
+        }
+        if (readBuffer == null) readBuffer = ByteBuffer.allocate(Math.min(READ_BUFFER_SIZE, windowSize));
+        ByteBuffer buffer = readBuffer;
+        buffer.clear();
+        if (buffer.capacity() > size) buffer.limit((int) size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) break;
+        }
+        buffer.flip();
+        window = buffer;
+        // The file may have been truncated since
+        return buffer.hasRemaining();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Writes a regular file through its channel from a direct buffer, so that the data is handed to the kernel without
+ * another copy, and cached files can be sent with {@link #transferFrom(FileChannel)} without entering the heap at
+ * all. Writing starts at the current position of the channel and moves it.
+ * <p>
+ * On close, the file is truncated to the end of the data written, releasing space preallocated beyond it.
+ */
+public class FileChannelOutputStream extends OutputStream {
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private final FileChannel channel;
+    private final boolean closeChannel;
+    private final ByteBuffer buffer;
+    private boolean closed;
+
+    /**
+     * @param closeChannel Whether to close the channel along with the stream
+     */
+    public FileChannelOutputStream(@NonNull FileChannel channel, boolean closeChannel) {
+        this(channel, closeChannel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize Size of the direct buffer, larger writes go to the channel as they are
+     */
+    public FileChannelOutputStream(@NonNull FileChannel channel, boolean closeChannel, int bufferSize) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!buffer.hasRemaining()) flushBuffer();
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        if (len >= buffer.capacity()) {
+            flushBuffer();
+            writeFully(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        if (len > buffer.remaining()) flushBuffer();
+        buffer.put(b, off, len);
+    }
+
+    /**
+     * Append the content of another file, from its current position to its end, letting the kernel copy it.
+     *
+     * @return Number of bytes transferred
+     */
+    public long transferFrom(@NonNull FileChannel source) throws IOException {
+        ensureOpen();
+        flushBuffer();
+        long position = source.position();
+        long end = source.size();
+        while (position < end) {
+            long transferred = source.transferTo(position, end - position, channel);
+            // The source may have been truncated since
+            if (transferred <= 0) break;
+            position += transferred;
+        }
+        long count = position - source.position();
+        source.position(position);
+        return count;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            flushBuffer();
+            channel.truncate(channel.position());
+        } finally {
+            closed = true;
+            if (closeChannel) channel.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(@NonNull ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+}
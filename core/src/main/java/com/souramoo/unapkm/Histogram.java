@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Lock-free histogram of non-negative values. Buckets grow exponentially with four buckets per power of two, so a
+ * percentile is accurate to within 25% of its value whatever the range.
+ */
+public class Histogram {
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKET_COUNT = 63 * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) break;
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return Upper bound of the bucket holding the percentile, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        long n = count.get();
+        return "count=" + n + ", mean=" + (n == 0 ? 0 : sum.get() / n) + ", p50=" + getPercentile(50)
+                + ", p90=" + getPercentile(90) + ", p99=" + getPercentile(99) + ", max=" + max.get();
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return (exponent - 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + 1;
+        int sub = bucket % SUB_BUCKETS;
+        long bound = ((SUB_BUCKETS + sub + 1L) << (exponent - 2)) - 1;
+        return bound < 0 ? Long.MAX_VALUE : bound;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Minimal JSON parser for the small metadata files of a bundle. Objects become {@link Map}s keeping the order of the
+ * keys, arrays {@link List}s, numbers {@link Long}s or {@link Double}s.
+ */
+class JsonParser {
+    private static final int MAX_DEPTH = 64;
+
+    private final String json;
+    private int pos;
+    private int depth;
+
+    private JsonParser(@NonNull String json) {
+        this.json = json;
+    }
+
+    @Nullable
+    static Object parse(@NonNull String json) throws IOException {
+        JsonParser parser = new JsonParser(json);
+        Object value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.pos != json.length()) throw parser.error("Trailing data");
+        return value;
+    }
+
+    @Nullable
+    private Object readValue() throws IOException {
+        skipWhitespace();
+        if (pos >= json.length()) throw error("Unexpected end");
+        char c = json.charAt(pos);
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                expectWord("true");
+                return Boolean.TRUE;
+            case 'f':
+                expectWord("false");
+                return Boolean.FALSE;
+            case 'n':
+                expectWord("null");
+                return null;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) return readNumber();
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    @NonNull
+    private Map<String, Object> readObject() throws IOException {
+        enter();
+        Map<String, Object> object = new LinkedHashMap<>();
+        ++pos;
+        skipWhitespace();
+        if (peek() == '}') {
+            ++pos;
+        } else {
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') throw error("Expected a key");
+                String key = readString();
+                skipWhitespace();
+                expect(':');
+                object.put(key, readValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    ++pos;
+                    continue;
+                }
+                expect('}');
+                break;
+            }
+        }
+        --depth;
+        return object;
+    }
+
+    @NonNull
+    private List<Object> readArray() throws IOException {
+        enter();
+        List<Object> array = new ArrayList<>();
+        ++pos;
+        skipWhitespace();
+        if (peek() == ']') {
+            ++pos;
+        } else {
+            while (true) {
+                array.add(readValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    ++pos;
+                    continue;
+                }
+                expect(']');
+                break;
+            }
+        }
+        --depth;
+        return array;
+    }
+
+    @NonNull
+    private String readString() throws IOException {
+        ++pos;
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (pos >= json.length()) throw error("Unterminated string");
+            char c = json.charAt(pos++);
+            if (c == '"') return sb.toString();
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (pos >= json.length()) throw error("Unterminated string");
+            c = json.charAt(pos++);
+            switch (c) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > json.length()) throw error("Invalid escape");
+                    try {
+                        sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid escape");
+                    }
+                    pos += 4;
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append(c);
+                    break;
+                default:
+                    throw error("Invalid escape");
+            }
+        }
+    }
+
+    @NonNull
+    private Number readNumber() throws IOException {
+        int start = pos;
+        boolean integral = true;
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == '.' || c == 'e' || c == 'E') {
+                integral = false;
+            } else if (c != '-' && c != '+' && (c < '0' || c > '9')) break;
+            ++pos;
+        }
+        String number = json.substring(start, pos);
+        try {
+            if (integral) {
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException ignore) {
+                    // Too large for a long
+                }
+            }
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw error("Invalid number " + number);
+        }
+    }
+
+    private void enter() throws IOException {
+        if (++depth > MAX_DEPTH) throw error("Nested too deeply");
+    }
+
+    private void expectWord(@NonNull String word) throws IOException {
+        if (!json.startsWith(word, pos)) throw error("Expected " + word);
+        pos += word.length();
+    }
+
+    private void expect(char c) throws IOException {
+        if (peek() != c) throw error("Expected '" + c + "'");
+        ++pos;
+    }
+
+    private char peek() {
+        return pos < json.length() ? json.charAt(pos) : 0;
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return;
+            ++pos;
+        }
+    }
+
+    @NonNull
+    private IOException error(@NonNull String message) {
+        return new IOException("Malformed JSON at " + pos + ": " + message);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Deflates entries on a fork-join pool. The data of each entry is split into blocks which are compressed
+ * independently, each block using the tail of the previous one as its dictionary and ending with a sync flush, so
+ * that the compressed blocks concatenate into a single deflate stream. Blocks of consecutive entries are compressed
+ * concurrently while the results are written in order.
+ */
+public class ParallelRecompressor implements Closeable {
+    public static final int BLOCK_SIZE = 256 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static class Pending {
+        @Nullable
+        final ZipRawReader.LocalEntry entry;
+        @Nullable
+        final Future<byte[]> block;
+        final long crc;
+        final long size;
+
+        Pending(@Nullable ZipRawReader.LocalEntry entry, @Nullable Future<byte[]> block, long crc, long size) {
+            this.entry = entry;
+            this.block = block;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+
+    private final ZipRawWriter writer;
+    private final int level;
+    private final ForkJoinPool pool;
+    private final int maxPending;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+    public ParallelRecompressor(@NonNull ZipRawWriter writer, int level, int threadCount) {
+        this.writer = writer;
+        this.level = level;
+        this.pool = new ForkJoinPool(threadCount);
+        // Bound the memory held by blocks waiting to be written
+        this.maxPending = threadCount * 4;
+    }
+
+    /**
+     * Compress an entry. Its data is read on the calling thread; the entry may still be incomplete on return.
+     *
+     * @param entry Source entry whose name and modification time are kept
+     * @param data  Uncompressed data of the entry
+     */
+    public void putEntry(@NonNull ZipRawReader.LocalEntry entry, @NonNull InputStream data) throws IOException {
+        enqueue(new Pending(entry, null, 0, 0));
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] dictionary = null;
+        byte[] current = readBlock(data);
+        while (true) {
+            byte[] next = current.length == BLOCK_SIZE ? readBlock(data) : null;
+            boolean last = next == null || next.length == 0;
+            crc.update(current);
+            size += current.length;
+            enqueue(new Pending(null, pool.submit(compress(current, dictionary, last)), 0, 0));
+            if (last) break;
+            dictionary = Arrays.copyOfRange(current, current.length - DICTIONARY_SIZE, current.length);
+            current = next;
+        }
+        enqueue(new Pending(null, null, crc.getValue(), size));
+    }
+
+    /**
+     * Wait for every block to be compressed and written.
+     */
+    public void finish() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Stop the pool. Blocks that are not written yet are discarded.
+     */
+    @Override
+    public void close() {
+        for (Pending p : pending) {
+            if (p.block != null) p.block.cancel(true);
+        }
+        pending.clear();
+        pool.shutdownNow();
+    }
+
+    private void enqueue(@NonNull Pending p) throws IOException {
+        pending.add(p);
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        Pending p = pending.poll();
+        if (p == null) return;
+        if (p.entry != null) {
+            writer.beginEntry(p.entry, ZipRawReader.METHOD_DEFLATED);
+        } else if (p.block != null) {
+            byte[] compressed;
+            try {
+                compressed = p.block.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new IOException("Compression failed", e.getCause());
+            }
+            writer.writeEntryData(compressed, 0, compressed.length);
+        } else {
+            writer.endEntry(p.crc, p.size);
+        }
+    }
+
+    @NonNull
+    private Callable<byte[]> compress(@NonNull final byte[] block, @Nullable final byte[] dictionary,
+                                      final boolean last) {
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                Deflater deflater = new Deflater(level, true);
+                try {
+                    if (dictionary != null) deflater.setDictionary(dictionary);
+                    deflater.setInput(block);
+                    ByteArrayOutputStream os = new ByteArrayOutputStream(block.length / 2 + 64);
+                    byte[] buf = new byte[64 * 1024];
+                    int n;
+                    if (last) {
+                        deflater.finish();
+                        while (!deflater.finished()) {
+                            n = deflater.deflate(buf);
+                            os.write(buf, 0, n);
+                        }
+                    } else {
+                        // Byte-align the output so that the next block can be appended as is
+                        do {
+                            n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                            os.write(buf, 0, n);
+                        } while (n == buf.length);
+                    }
+                    return os.toByteArray();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    @NonNull
+    private static byte[] readBlock(@NonNull InputStream is) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        int off = 0;
+        while (off < block.length) {
+            int read = is.read(block, off, block.length - off);
+            if (read == -1) break;
+            off += read;
+        }
+        return off == block.length ? block : Arrays.copyOf(block, off);
+    }
+}
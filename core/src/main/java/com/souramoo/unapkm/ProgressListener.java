@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives the progress of a conversion, see {@link ConversionOptions#setProgressListener(ProgressListener)}. Methods
+ * may be called from any of the threads taking part in the conversion, but never concurrently.
+ */
+public interface ProgressListener {
+    /**
+     * Reading and parsing the header, excluding the key derivation
+     */
+    int PHASE_HEADER = 0;
+    /**
+     * Deriving the key, or getting it from the {@link DerivedKeyCache}
+     */
+    int PHASE_KDF = 1;
+    /**
+     * Decrypting the chunks. It runs interleaved with {@link #PHASE_ZIP_REWRITE}, both start at the same time.
+     */
+    int PHASE_DECRYPT = 2;
+    /**
+     * Re-framing, and possibly recompressing, the ZIP entries
+     */
+    int PHASE_ZIP_REWRITE = 3;
+    int PHASE_COUNT = 4;
+
+    void onPhaseStarted(int phase);
+
+    /**
+     * Called at most once per {@link ConversionOptions#getProgressIntervalMillis()}, and once more at the end.
+     *
+     * @param bytesRead       Bytes of the APKM file read so far
+     * @param bytesWritten    Bytes of the output written so far
+     * @param chunksDecrypted Secretstream chunks decrypted so far
+     */
+    void onProgress(long bytesRead, long bytesWritten, long chunksDecrypted);
+
+    /**
+     * Called once the conversion succeeded.
+     *
+     * @param phaseNanos Time spent in each phase, indexed by the {@code PHASE_*} constants. Time spent reading the
+     *                   input or writing the output is not attributed to any phase.
+     */
+    void onFinished(@NonNull long[] phaseNanos);
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Collects the progress of a single conversion and forwards it to a {@link ProgressListener}. Counting only costs a
+ * few atomic additions per chunk; the listener is called at most once per interval, by whichever thread notices the
+ * interval has elapsed.
+ */
+final class ProgressTracker {
+    private final ProgressListener listener;
+    private final long intervalNanos;
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong ioNanos = new AtomicLong();
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(ProgressListener.PHASE_COUNT);
+    private final AtomicLong nextReport;
+
+    /**
+     * @return A tracker for the listener set in the options, or {@code null} if there is none
+     */
+    @Nullable
+    static ProgressTracker create(@NonNull ConversionOptions options) {
+        ProgressListener listener = options.getProgressListener();
+        if (listener == null) return null;
+        return new ProgressTracker(listener, options.getProgressIntervalMillis() * 1_000_000L);
+    }
+
+    private ProgressTracker(@NonNull ProgressListener listener, long intervalNanos) {
+        this.listener = listener;
+        this.intervalNanos = intervalNanos;
+        this.nextReport = new AtomicLong(System.nanoTime() + intervalNanos);
+    }
+
+    void phaseStarted(int phase) {
+        synchronized (listener) {
+            listener.onPhaseStarted(phase);
+        }
+    }
+
+    void addPhaseNanos(int phase, long nanos) {
+        phaseNanos.addAndGet(phase, nanos);
+    }
+
+    void chunkDecrypted(long nanos) {
+        chunks.incrementAndGet();
+        phaseNanos.addAndGet(ProgressListener.PHASE_DECRYPT, nanos);
+        maybeReport();
+    }
+
+    /**
+     * @return Time spent so far blocked on the streams returned by {@link #wrap(InputStream)} and
+     * {@link #wrap(OutputStream)}
+     */
+    long getIoNanos() {
+        return ioNanos.get();
+    }
+
+    long getPhaseNanos(int phase) {
+        return phaseNanos.get(phase);
+    }
+
+    /**
+     * Report the final progress and the phase timings.
+     */
+    void finish() {
+        long[] nanos = new long[ProgressListener.PHASE_COUNT];
+        for (int i = 0; i < nanos.length; ++i) {
+            nanos[i] = phaseNanos.get(i);
+        }
+        synchronized (listener) {
+            listener.onProgress(bytesRead.get(), bytesWritten.get(), chunks.get());
+            listener.onFinished(nanos);
+        }
+    }
+
+    /**
+     * @return Stream counting the bytes read from the APKM file
+     */
+    @NonNull
+    InputStream wrap(@NonNull InputStream is) {
+        return new FilterInputStream(is) {
+            @Override
+            public int read() throws IOException {
+                long start = System.nanoTime();
+                int b = super.read();
+                ioNanos.addAndGet(System.nanoTime() - start);
+                if (b != -1) addBytesRead(1);
+                return b;
+            }
+
+            @Override
+            public int read(@NonNull byte[] b, int off, int len) throws IOException {
+                long start = System.nanoTime();
+                int n = in.read(b, off, len);
+                ioNanos.addAndGet(System.nanoTime() - start);
+                if (n > 0) addBytesRead(n);
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                if (skipped > 0) addBytesRead(skipped);
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * @return Stream counting the bytes written to the output
+     */
+    @NonNull
+    OutputStream wrap(@NonNull OutputStream os) {
+        return new FilterOutputStream(os) {
+            @Override
+            public void write(int b) throws IOException {
+                long start = System.nanoTime();
+                out.write(b);
+                ioNanos.addAndGet(System.nanoTime() - start);
+                addBytesWritten(1);
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                long start = System.nanoTime();
+                out.write(b, off, len);
+                ioNanos.addAndGet(System.nanoTime() - start);
+                addBytesWritten(len);
+            }
+        };
+    }
+
+    private void addBytesRead(long n) {
+        bytesRead.addAndGet(n);
+        maybeReport();
+    }
+
+    private void addBytesWritten(long n) {
+        bytesWritten.addAndGet(n);
+        maybeReport();
+    }
+
+    private void maybeReport() {
+        long next = nextReport.get();
+        long now = System.nanoTime();
+        if (now - next < 0 || !nextReport.compareAndSet(next, now + intervalNanos)) {
+            return;
+        }
+        synchronized (listener) {
+            listener.onProgress(bytesRead.get(), bytesWritten.get(), chunks.get());
+        }
+    }
+}
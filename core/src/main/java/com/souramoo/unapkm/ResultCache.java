@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Converted files keyed by the digest of their input and the options that shaped them, so that converting the same
+ * APKM file again only costs copying the result. The digest is taken while the input is converted, and remembered
+ * along with the identity of the file it was read from: that file is then looked up without reading it. The files
+ * are kept in a {@link SpoolCache}, within its byte budget.
+ */
+public class ResultCache {
+    public static final String SUFFIX = ".apks";
+    /**
+     * Number of files whose digest is remembered in memory, the least recently used are forgotten
+     */
+    public static final int MAX_INDEXED_FILES = 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final SpoolCache files;
+    private final Map<String, byte[]> digests = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_INDEXED_FILES;
+        }
+    };
+
+    /**
+     * @param budgetBytes Total size of the cached files, see {@link SpoolCache#SpoolCache(File, String, long)}
+     */
+    public ResultCache(@NonNull File dir, long budgetBytes) {
+        files = new SpoolCache(dir, SUFFIX, budgetBytes);
+    }
+
+    /**
+     * @return Whether results are kept at all, i.e. the budget isn't 0
+     */
+    public boolean isEnabled() {
+        return files.getBudgetBytes() > 0;
+    }
+
+    /**
+     * @see SpoolCache#cleanUp()
+     */
+    public void cleanUp() {
+        files.cleanUp();
+    }
+
+    /**
+     * @return A digest to feed the input with, e.g. through a {@link java.security.DigestInputStream}
+     */
+    @NonNull
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java and Android runtime has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Identify a regular file by its device, inode, size, modification and status change times. Rewriting the file
+     * changes its status change time, which unlike the modification time can't be restored by copying tools.
+     *
+     * @return Identity of the file for {@link #getDigest(String)}
+     */
+    @NonNull
+    public static String getFileId(long device, long inode, long size, long modifiedTime, long changedTime) {
+        return device + ":" + inode + ":" + size + ":" + modifiedTime + ":" + changedTime;
+    }
+
+    /**
+     * @param fileId See {@link #getFileId}
+     * @return Digest of the file as recorded by {@link #putDigest}, or null if unknown
+     */
+    @Nullable
+    public byte[] getDigest(@NonNull String fileId) {
+        synchronized (digests) {
+            return digests.get(fileId);
+        }
+    }
+
+    /**
+     * Remember the digest of a file, taken while it was converted. The caller makes sure the file wasn't modified
+     * meanwhile: its identity is unchanged, and its status change time is older than the conversion, since those
+     * times only have a resolution of a second.
+     *
+     * @param fileId See {@link #getFileId}
+     */
+    public void putDigest(@NonNull String fileId, @NonNull byte[] digest) {
+        synchronized (digests) {
+            digests.put(fileId, digest);
+        }
+    }
+
+    /**
+     * @param inputDigest Digest of the whole APKM file, see {@link #newDigest()}
+     * @return Key of the file converted from this input with these options
+     */
+    @NonNull
+    public static String getKey(@NonNull byte[] inputDigest, @NonNull ConversionOptions options) {
+        MessageDigest digest = newDigest();
+        digest.update(inputDigest);
+        digest.update(options.getOutputKey().getBytes(StandardCharsets.UTF_8));
+        byte[] key = digest.digest();
+        char[] hex = new char[key.length * 2];
+        for (int i = 0; i < key.length; ++i) {
+            hex[i * 2] = HEX_DIGITS[(key[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[key[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return The converted file, or null on a miss
+     */
+    @Nullable
+    public FileInputStream open(@NonNull String key) {
+        return files.open(key);
+    }
+
+    /**
+     * @return A spool receiving a converted file, to {@link SpoolCache.Spool#commit(String) commit} with its key
+     * once the conversion succeeded
+     */
+    @NonNull
+    public SpoolCache.Spool create() {
+        return files.create();
+    }
+}
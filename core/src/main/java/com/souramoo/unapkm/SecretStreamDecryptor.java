@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+import com.goterl.lazycode.lazysodium.interfaces.SecretStream;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Decrypts the secretstream of an APKM file chunk by chunk. The cipher and plain text buffers are taken from a
+ * {@link ChunkBufferPool} on first use, so that decrypting a chunk doesn't allocate anything.
+ * <p>
+ * libsodium doesn't guarantee that a secretstream can be decrypted in place, therefore separate buffers are used.
+ */
+public class SecretStreamDecryptor implements Closeable {
+    /**
+     * Upper limit for the chunk size found in a header, to fail early instead of running out of memory
+     */
+    public static final int MAX_CHUNK_SIZE = 0x4000000;
+
+    private final ChunkBufferPool bufferPool;
+    private final LazySodium lazySodium;
+    private final int chunkSize;
+    private byte[] cipherChunk;
+    private byte[] plainChunk;
+    private final byte[] tag = new byte[1];
+    private final byte[] nativeState;
+    private final SecretStream.State state;
+    private long chunkCount;
+    private boolean finished;
+    private boolean closed;
+    @Nullable
+    private ProgressTracker progressTracker;
+
+    public SecretStreamDecryptor(@NonNull UnApkm.Header header, @NonNull LazySodium lazySodium,
+                                 @NonNull ChunkBufferPool bufferPool)
+            throws IOException {
+        this(header.chunkSize, lazySodium, bufferPool);
+        boolean success;
+        if (nativeState != null) {
+            success = SecretStreamNative.crypto_secretstream_xchacha20poly1305_init_pull(nativeState,
+                    header.pwHashBytes, header.outputHash) == 0;
+        } else {
+            //noinspection ConstantConditions
+            success = lazySodium.cryptoSecretStreamInitPull(state, header.pwHashBytes, header.outputHash);
+        }
+        if (!success) {
+            throw new IOException("Invalid secretstream header");
+        }
+    }
+
+    /**
+     * Resume decrypting at a chunk boundary.
+     *
+     * @param savedState State returned by {@link #saveState()} before decrypting chunk number {@code chunkCount}
+     * @param chunkCount Number of chunks preceding the state
+     */
+    public SecretStreamDecryptor(long chunkSize, @NonNull byte[] savedState, long chunkCount,
+                                 @NonNull LazySodium lazySodium, @NonNull ChunkBufferPool bufferPool)
+            throws IOException {
+        this(chunkSize, lazySodium, bufferPool);
+        if (savedState.length != getStateSize()) {
+            throw new IOException("Invalid secretstream state size " + savedState.length);
+        }
+        if (nativeState != null) {
+            System.arraycopy(savedState, 0, nativeState, 0, nativeState.length);
+        } else {
+            //noinspection ConstantConditions
+            System.arraycopy(savedState, 0, state.k, 0, state.k.length);
+            System.arraycopy(savedState, state.k.length, state.nonce, 0, state.nonce.length);
+            System.arraycopy(savedState, state.k.length + state.nonce.length, state._pad, 0, state._pad.length);
+        }
+        this.chunkCount = chunkCount;
+    }
+
+    private SecretStreamDecryptor(long chunkSize, @NonNull LazySodium lazySodium,
+                                  @NonNull ChunkBufferPool bufferPool)
+            throws IOException {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk size " + chunkSize);
+        }
+        this.bufferPool = bufferPool;
+        this.lazySodium = lazySodium;
+        this.chunkSize = (int) chunkSize;
+        if (SecretStreamNative.AVAILABLE) {
+            nativeState = new byte[getStateSize()];
+            state = null;
+        } else {
+            nativeState = null;
+            state = new SecretStream.State();
+        }
+    }
+
+    /**
+     * @return Size of the states returned by {@link #saveState()}
+     */
+    public static int getStateSize() {
+        if (SecretStreamNative.AVAILABLE) {
+            return SecretStreamNative.STATE_BYTES;
+        }
+        return SecretStream.KEYBYTES + SecretStream.NONCEBYTES + 8;
+    }
+
+    /**
+     * Copy the state of the stream, from which {@link #SecretStreamDecryptor(long, byte[], long, LazySodium,
+     * ChunkBufferPool)} resumes decrypting at the next chunk. The state holds the key of the stream.
+     */
+    @NonNull
+    public byte[] saveState() {
+        if (nativeState != null) return nativeState.clone();
+        byte[] saved = new byte[getStateSize()];
+        //noinspection ConstantConditions
+        System.arraycopy(state.k, 0, saved, 0, state.k.length);
+        System.arraycopy(state.nonce, 0, saved, state.k.length, state.nonce.length);
+        System.arraycopy(state._pad, 0, saved, state.k.length + state.nonce.length, state._pad.length);
+        return saved;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return Size of an encrypted chunk, i.e. the chunk size plus the authentication data
+     */
+    public int getCipherChunkSize() {
+        return chunkSize + SecretStream.ABYTES;
+    }
+
+    /**
+     * Read and decrypt the next chunk into {@link #getBuffer()}.
+     *
+     * @return Number of decrypted bytes, or -1 once the final chunk has been decrypted. Anything following it is
+     * read and discarded then, so that the input is consumed in full.
+     * @throws EOFException If the input ends before the final chunk
+     */
+    public int decryptChunk(@NonNull InputStream is) throws IOException {
+        if (closed) throw new IOException("Decryptor closed");
+        if (cipherChunk == null) cipherChunk = bufferPool.acquire(getCipherChunkSize());
+        if (finished) {
+            //noinspection StatementWithEmptyBody
+            while (is.read(cipherChunk) != -1) {
+            }
+            return -1;
+        }
+        int cipherLength = readFully(is, cipherChunk);
+        if (cipherLength == 0) {
+            throw new EOFException("Truncated stream, the final chunk is missing");
+        }
+        return decrypt(cipherChunk, cipherLength, getBuffer());
+    }
+
+    /**
+     * Decrypt a chunk read by the caller.
+     *
+     * @param cipher       Encrypted chunk, at most {@link #getCipherChunkSize()} bytes long
+     * @param cipherLength Length of the encrypted chunk
+     * @param plain        Buffer of at least {@link #getChunkSize()} bytes receiving the decrypted chunk
+     * @return Number of decrypted bytes
+     */
+    public int decrypt(@NonNull byte[] cipher, int cipherLength, @NonNull byte[] plain) throws IOException {
+        if (closed) throw new IOException("Decryptor closed");
+        if (finished) throw new IOException("Chunk after the final chunk");
+        if (cipherLength < SecretStream.ABYTES) {
+            throw new EOFException("Truncated chunk");
+        }
+        long start = progressTracker != null ? System.nanoTime() : 0;
+        boolean success;
+        if (nativeState != null) {
+            success = SecretStreamNative.crypto_secretstream_xchacha20poly1305_pull(nativeState, plain, null, tag,
+                    cipher, cipherLength, null, 0) == 0;
+        } else {
+            success = lazySodium.cryptoSecretStreamPull(state, plain, tag, cipher, cipherLength);
+        }
+        if (!success) {
+            throw new IOException("decrypto error");
+        }
+        ++chunkCount;
+        if (progressTracker != null) progressTracker.chunkDecrypted(System.nanoTime() - start);
+        if (tag[0] == SecretStream.TAG_FINAL) finished = true;
+        return cipherLength - SecretStream.ABYTES;
+    }
+
+    /**
+     * @return Whether the final chunk has been decrypted
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return Buffer holding the last decrypted chunk. It's reused for the next chunk.
+     */
+    @NonNull
+    public byte[] getBuffer() {
+        if (plainChunk == null) plainChunk = bufferPool.acquire(chunkSize);
+        return plainChunk;
+    }
+
+    void setProgressTracker(@Nullable ProgressTracker progressTracker) {
+        this.progressTracker = progressTracker;
+    }
+
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return Whether the direct-mapped libsodium functions are in use
+     */
+    public static boolean isNativeAvailable() {
+        return SecretStreamNative.AVAILABLE;
+    }
+
+    /**
+     * Return the buffers to the pool. The input stream isn't closed.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            if (cipherChunk != null) bufferPool.release(cipherChunk);
+            if (plainChunk != null) bufferPool.release(plainChunk);
+        }
+    }
+
+    private static int readFully(@NonNull InputStream is, @NonNull byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int read = is.read(b, off, b.length - off);
+            if (read == -1) break;
+            off += read;
+        }
+        return off;
+    }
+}
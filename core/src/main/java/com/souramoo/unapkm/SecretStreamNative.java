@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+/**
+ * Direct-mapped libsodium secretstream functions. Unlike the interface-mapped functions of LazySodium, a call doesn't
+ * allocate argument arrays or native memory, and the state is a plain byte array.
+ */
+final class SecretStreamNative {
+    static final boolean AVAILABLE;
+    /**
+     * Size of the state, queried once. It is 52 bytes in every libsodium release so far.
+     */
+    static final int STATE_BYTES;
+
+    static {
+        boolean available;
+        int stateBytes = 0;
+        try {
+            Native.register(SecretStreamNative.class, "sodium");
+            stateBytes = crypto_secretstream_xchacha20poly1305_statebytes().intValue();
+            available = stateBytes > 0;
+        } catch (Throwable th) {
+            available = false;
+        }
+        AVAILABLE = available;
+        STATE_BYTES = stateBytes;
+    }
+
+    private SecretStreamNative() {
+    }
+
+    // Returns a size_t, which is as wide as a C long on the supported ABIs, 32-bit ones included
+    static native NativeLong crypto_secretstream_xchacha20poly1305_statebytes();
+
+    static native int crypto_secretstream_xchacha20poly1305_init_pull(byte[] state, byte[] header, byte[] key);
+
+    static native int crypto_secretstream_xchacha20poly1305_init_push(byte[] state, byte[] header, byte[] key);
+
+    static native int crypto_secretstream_xchacha20poly1305_push(byte[] state, byte[] c, Pointer clen_p, byte[] m,
+                                                                 long mlen, Pointer ad, long adlen, byte tag);
+
+    static native int crypto_secretstream_xchacha20poly1305_pull(byte[] state, byte[] m, Pointer mlen_p, byte[] tag_p,
+                                                                 byte[] c, long clen, Pointer ad, long adlen);
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps the config splits a {@link DeviceProfile} would install. Config splits are named
+ * {@code split_config.<qualifier>.apk}, or {@code <feature>.config.<qualifier>.apk} for feature modules.
+ * <p>
+ * Without the {@link ApkmInfo} of the bundle, the selector can't know which ABIs and densities the splits still to
+ * come cover, so it keeps every ABI split the device supports and every density split. Once {@link #setInfo(ApkmInfo)}
+ * was called it keeps only the best of each.
+ */
+class SplitSelector implements EntryFilter {
+    private static final Set<String> KNOWN_ABIS = new HashSet<>(Arrays.asList("armeabi", "armeabi_v7a", "arm64_v8a",
+            "x86", "x86_64", "mips", "mips64"));
+    private static final Pattern LANGUAGE = Pattern.compile("[a-z]{2,3}([-_][A-Za-z0-9]+)*");
+    private static final String CONFIG = "config.";
+    private static final String APK_SUFFIX = ".apk";
+
+    @NonNull
+    private final DeviceProfile profile;
+    private boolean hasInfo;
+    /**
+     * Chosen from the info, null if no ABI split fits
+     */
+    @Nullable
+    private String abi;
+    /**
+     * Chosen from the info, null to keep every density split
+     */
+    @Nullable
+    private String density;
+
+    SplitSelector(@NonNull DeviceProfile profile) {
+        this.profile = profile;
+    }
+
+    void setInfo(@NonNull ApkmInfo info) {
+        hasInfo = true;
+        abi = null;
+        List<String> bundleAbis = info.getAbis();
+        for (String deviceAbi : profile.getAbis()) {
+            for (String bundleAbi : bundleAbis) {
+                if (deviceAbi.equals(DeviceProfile.normalizeAbi(bundleAbi))) {
+                    abi = deviceAbi;
+                    break;
+                }
+            }
+            if (abi != null) break;
+        }
+        density = chooseDensity(info.getDensities(), profile.getDensityDpi());
+    }
+
+    @Override
+    public boolean accept(@NonNull String name) {
+        String qualifier = getConfigQualifier(name);
+        if (qualifier == null) return true;
+        if (KNOWN_ABIS.contains(qualifier)) {
+            List<String> deviceAbis = profile.getAbis();
+            if (deviceAbis.isEmpty()) return true;
+            return hasInfo ? qualifier.equals(abi) : deviceAbis.contains(qualifier);
+        }
+        if (DeviceProfile.indexOfDensity(qualifier) >= 0) {
+            return density == null || qualifier.equals(density);
+        }
+        if (LANGUAGE.matcher(qualifier).matches()) {
+            List<String> languages = profile.getLanguages();
+            return languages.isEmpty() || languages.contains(DeviceProfile.getLanguage(qualifier));
+        }
+        return true;
+    }
+
+    /**
+     * @return The smallest density at least as high as {@code densityDpi}, otherwise the highest one, or null if
+     * {@code densityDpi} is 0 or no density is recognised
+     */
+    @Nullable
+    static String chooseDensity(@NonNull List<String> densities, int densityDpi) {
+        if (densityDpi == 0) return null;
+        int best = -1;
+        for (String density : densities) {
+            int index = DeviceProfile.indexOfDensity(density);
+            if (index < 0) continue;
+            if (best < 0) {
+                best = index;
+                continue;
+            }
+            int dpi = DeviceProfile.DENSITY_DPIS[index];
+            int bestDpi = DeviceProfile.DENSITY_DPIS[best];
+            if (bestDpi < densityDpi ? dpi > bestDpi : dpi >= densityDpi && dpi < bestDpi) best = index;
+        }
+        return best < 0 ? null : DeviceProfile.DENSITY_NAMES[best];
+    }
+
+    /**
+     * @return The qualifier of a config split, e.g. {@code xxhdpi}, or null if {@code name} isn't one
+     */
+    @Nullable
+    static String getConfigQualifier(@NonNull String name) {
+        if (!name.endsWith(APK_SUFFIX)) return null;
+        String base = name.substring(0, name.length() - APK_SUFFIX.length());
+        int index = base.lastIndexOf(CONFIG);
+        if (index < 0 || (index > 0 && base.charAt(index - 1) != '_' && base.charAt(index - 1) != '.')) return null;
+        String qualifier = base.substring(index + CONFIG.length());
+        return qualifier.isEmpty() ? null : qualifier;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A directory of files within a byte budget, e.g. the results of {@link ResultCache}. A {@link Spool} writes a partial
+ * file while it is produced, which is kept under a name of its own once committed. The least recently used files are
+ * evicted to stay within the budget.
+ */
+public class SpoolCache {
+    static final String PART_SUFFIX = ".part";
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final File dir;
+    private final String suffix;
+    private final long budgetBytes;
+
+    /**
+     * @param suffix      Suffix of the committed files, e.g. {@code .apks}
+     * @param budgetBytes Total size of the committed files, a file growing beyond it is abandoned
+     */
+    public SpoolCache(@NonNull File dir, @NonNull String suffix, long budgetBytes) {
+        if (budgetBytes < 0) throw new IllegalArgumentException("Invalid budget " + budgetBytes);
+        if (suffix.equals(PART_SUFFIX)) throw new IllegalArgumentException("Invalid suffix " + suffix);
+        this.dir = dir;
+        this.suffix = suffix;
+        this.budgetBytes = budgetBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * Delete the partial files left by a previous process and evict files beyond the budget. Call once at start,
+     * before any spool is created.
+     */
+    public void cleanUp() {
+        File[] parts = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(PART_SUFFIX);
+            }
+        });
+        if (parts != null) {
+            for (File part : parts) {
+                //noinspection ResultOfMethodCallIgnored
+                part.delete();
+            }
+        }
+        evict(0);
+    }
+
+    /**
+     * @return A new spool, already abandoned if the directory can't be written to
+     */
+    @NonNull
+    public Spool create() {
+        if (budgetBytes == 0) return new Spool(null);
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+            return new Spool(File.createTempFile("apkm", PART_SUFFIX, dir));
+        } catch (IOException e) {
+            return new Spool(null);
+        }
+    }
+
+    /**
+     * Open a file committed with {@link Spool#commit(String)} and mark it as used.
+     *
+     * @return The file, or null if it doesn't exist or was evicted
+     */
+    @Nullable
+    public FileInputStream open(@NonNull String name) {
+        File file = new File(dir, name + suffix);
+        try {
+            // Once open, the file stays readable even if it is evicted meanwhile
+            FileInputStream fis = new FileInputStream(file);
+            touch(file);
+            return fis;
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Mark a spooled file as used, so that it is evicted last.
+     */
+    public void touch(@NonNull File file) {
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Delete the least recently used files until they take no more than the budget minus {@code reservedBytes}.
+     */
+    public synchronized void evict(long reservedBytes) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(suffix);
+            }
+        });
+        if (files == null) return;
+        // Read the sizes and times once, they may change while sorting
+        Candidate[] candidates = new Candidate[files.length];
+        long total = 0;
+        for (int i = 0; i < files.length; ++i) {
+            candidates[i] = new Candidate(files[i]);
+            total += candidates[i].length;
+        }
+        Arrays.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return Long.compare(a.lastModified, b.lastModified);
+            }
+        });
+        for (Candidate candidate : candidates) {
+            if (total <= budgetBytes - reservedBytes) break;
+            if (candidate.file.delete()) total -= candidate.length;
+        }
+    }
+
+    private static class Candidate {
+        final File file;
+        final long length;
+        final long lastModified;
+
+        Candidate(@NonNull File file) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+    }
+
+    /**
+     * Receives a file while it is produced, e.g. a copy of a converted file. Writing never fails: if the disk is full
+     * or the budget exceeded the spool is abandoned and its file deleted, whatever produces the file carries on.
+     */
+    public class Spool extends OutputStream {
+        @Nullable
+        private File partFile;
+        @Nullable
+        private OutputStream out;
+        private long written;
+
+        private Spool(@Nullable File partFile) {
+            this.partFile = partFile;
+            if (partFile != null) {
+                try {
+                    out = new BufferedOutputStream(new FileOutputStream(partFile), BUFFER_SIZE);
+                } catch (IOException e) {
+                    abort();
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) {
+            if (out == null) return;
+            written += len;
+            if (written > budgetBytes) {
+                abort();
+                return;
+            }
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        /**
+         * Keep the spooled file under a name of its own, replacing a file already committed with this name, and evict
+         * older ones to make room.
+         *
+         * @param name Name of the file without the suffix, e.g. a hash of its content
+         * @return The spooled file, or null if the spool was abandoned
+         * @see #open(String)
+         */
+        @Nullable
+        public File commit(@NonNull String name) {
+            if (name.isEmpty() || name.indexOf(File.separatorChar) >= 0) {
+                throw new IllegalArgumentException("Invalid name " + name);
+            }
+            if (out == null || partFile == null) return null;
+            try {
+                out.close();
+            } catch (IOException e) {
+                abort();
+                return null;
+            }
+            out = null;
+            File file = new File(dir, name + suffix);
+            evict(written);
+            if (!partFile.renameTo(file)) {
+                abort();
+                return null;
+            }
+            partFile = null;
+            touch(file);
+            return file;
+        }
+
+        /**
+         * Delete the partial file, e.g. after the conversion failed.
+         */
+        public void abort() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+                out = null;
+            }
+            if (partFile != null) {
+                //noinspection ResultOfMethodCallIgnored
+                partFile.delete();
+                partFile = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            abort();
+        }
+    }
+}
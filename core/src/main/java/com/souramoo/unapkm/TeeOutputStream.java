@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Copies everything written to a stream to a second one, e.g. to cache a converted file while it is sent to the
+ * client. The branch isn't flushed or closed with this stream.
+ */
+public class TeeOutputStream extends FilterOutputStream {
+    private final OutputStream branch;
+
+    public TeeOutputStream(@NonNull OutputStream out, @NonNull OutputStream branch) {
+        super(out);
+        this.branch = branch;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        branch.write(b);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        branch.write(b, off, len);
+    }
+}
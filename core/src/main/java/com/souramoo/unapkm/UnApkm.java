@@ -0,0 +1,605 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+import com.goterl.lazycode.lazysodium.interfaces.PwHash;
+import com.goterl.lazycode.lazysodium.interfaces.SecretStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+public class UnApkm {
+    public static final long MEM_LIMIT = 0x20000000;
+    public static final byte[] PASSWORD = "#$%@#dfas4d00fFSDF9GSD56$^53$%7WRGF3dzzqasD!@".getBytes();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Size of the header preceding the secretstream: a skipped byte, the algorithm, the ops and memory limits, the
+     * chunk size, the salt and the secretstream header
+     */
+    public static final int HEADER_SIZE = 2 + 3 * 8 + 16 + SecretStream.HEADERBYTES;
+    /**
+     * Largest info.json buffered to choose the splits, real ones are a few kilobytes
+     */
+    private static final int MAX_INFO_SIZE = 1024 * 1024;
+
+    private static volatile DerivedKeyCache keyCache = new DerivedKeyCache(DerivedKeyCache.DEFAULT_MAX_ENTRIES);
+    private static final ChunkBufferPool bufferPool = new ChunkBufferPool(ChunkBufferPool.DEFAULT_MAX_PER_SIZE);
+    private static volatile CryptoProvider cryptoProvider;
+
+    private UnApkm() {
+    }
+
+    @NonNull
+    public static DerivedKeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    /**
+     * @return Pool of the chunk buffers used for decryption, see {@link ChunkBufferPool#getAllocationCount()}
+     */
+    @NonNull
+    public static ChunkBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @throws IllegalStateException If no provider is registered
+     */
+    @NonNull
+    public static CryptoProvider getCryptoProvider() {
+        CryptoProvider provider = cryptoProvider;
+        if (provider == null) throw new IllegalStateException("No crypto provider registered");
+        return provider;
+    }
+
+    /**
+     * Register the libsodium binding used by the methods which don't take one.
+     */
+    public static void setCryptoProvider(@NonNull CryptoProvider cryptoProvider) {
+        UnApkm.cryptoProvider = cryptoProvider;
+    }
+
+    /**
+     * Replace the cache used for the derived keys, e.g. by one having an on-disk tier.
+     */
+    public static void setKeyCache(@NonNull DerivedKeyCache keyCache) {
+        UnApkm.keyCache = keyCache;
+    }
+
+    @NonNull
+    private static byte[] getBytes(@NonNull InputStream i, int num) throws IOException {
+        byte[] data = new byte[num];
+        i.read(data, 0, data.length);
+        return data;
+    }
+
+    private static int byteToInt(@NonNull byte[] b) {
+        int i = 0, result = 0, shift = 0;
+
+        while (i < b.length) {
+            byte be = b[i];
+            result |= (be & 0xff) << shift;
+            shift += 8;
+            i += 1;
+        }
+
+        return result;
+    }
+
+    public static class Header {
+        byte[] pwHashBytes, outputHash;
+        long chunkSize;
+        PwHash.Alg algo;
+        long opsLimit;
+        int memLimit;
+        byte[] salt;
+
+        Header(byte[] pwHashBytes, byte[] outputHash, long chunkSize) {
+            this.pwHashBytes = pwHashBytes;
+            this.outputHash = outputHash;
+            this.chunkSize = chunkSize;
+        }
+
+        public long getChunkSize() {
+            return chunkSize;
+        }
+
+        /**
+         * @return Memory the KDF takes, in bytes
+         */
+        public int getMemLimit() {
+            return memLimit;
+        }
+    }
+
+    /**
+     * Parse the header without deriving the key, e.g. to plan a conversion before running it. {@link #HEADER_SIZE}
+     * bytes are read.
+     */
+    @NonNull
+    public static Header readHeader(@NonNull InputStream inputStream) throws IOException {
+        return processHeader(inputStream, getCryptoProvider().getLazySodium(), false);
+    }
+
+    /**
+     * @param header Header read with {@link #readHeader(InputStream)}
+     * @return Memory a conversion of the file takes at its peak: the KDF, unless its key is already cached, and the
+     * chunk buffers of {@link ConversionPipeline}
+     */
+    public static long estimateMemory(@NonNull Header header) {
+        long buffers = 2L * ConversionPipeline.DEFAULT_RING_CAPACITY * header.chunkSize
+                + 2L * ConversionPipeline.DEFAULT_RING_CAPACITY * ConversionPipeline.OUTPUT_CHUNK_SIZE;
+        return estimateKdfMemory(header) + buffers;
+    }
+
+    /**
+     * @param header Header read with {@link #readHeader(InputStream)}
+     * @return Memory the KDF of the file takes, 0 if its key is already cached
+     */
+    public static long estimateKdfMemory(@NonNull Header header) {
+        if (keyCache.contains(header.algo, header.opsLimit, header.memLimit, header.salt)) return 0;
+        return header.memLimit;
+    }
+
+    /**
+     * Derive the key of the file into the key cache, e.g. to run the KDF under its own memory budget: its memory is
+     * freed before the conversion starts, which then gets the key from the cache.
+     *
+     * @param header Header read with {@link #readHeader(InputStream)}
+     */
+    public static void deriveKey(@NonNull Header header) throws IOException {
+        keyCache.getOrDerive(getCryptoProvider().getLazySodium(), header.algo, header.opsLimit, header.memLimit,
+                header.salt);
+    }
+
+    @NonNull
+    public static Header processHeader(InputStream inputStream,
+                                       LazySodium lazySodium)
+            throws IOException {
+        return processHeader(inputStream, lazySodium, true);
+    }
+
+    @NonNull
+    public static Header processHeader(InputStream inputStream,
+                                       LazySodium lazySodium,
+                                       boolean expensiveOps)
+            throws IOException {
+        return processHeader(inputStream, lazySodium, expensiveOps, MEM_LIMIT);
+    }
+
+    @NonNull
+    public static Header processHeader(InputStream inputStream,
+                                       LazySodium lazySodium,
+                                       boolean expensiveOps,
+                                       long upperMemLimit)
+            throws IOException {
+        return processHeader(inputStream, lazySodium, expensiveOps, upperMemLimit, null);
+    }
+
+    @NonNull
+    static Header processHeader(@NonNull InputStream inputStream,
+                                @NonNull LazySodium lazySodium,
+                                boolean expensiveOps,
+                                long upperMemLimit,
+                                @Nullable ProgressTracker progressTracker)
+            throws IOException {
+        long startTime = System.nanoTime();
+        if (progressTracker != null) progressTracker.phaseStarted(ProgressListener.PHASE_HEADER);
+        getBytes(inputStream, 1); // skip
+
+        byte alg = getBytes(inputStream, 1)[0];
+        if (alg > 2 || alg < 1) {
+            throw new IOException("incorrect algo");
+        }
+
+        PwHash.Alg algo = PwHash.Alg.valueOf(alg);
+
+        long opsLimit = byteToInt(getBytes(inputStream, 8));
+        int memLimit = byteToInt(getBytes(inputStream, 8));
+
+        if (memLimit < 0 || memLimit > upperMemLimit) {
+            throw new IOException("too much memory aaah");
+        }
+
+        byte[] en = getBytes(inputStream, 8);
+        long chunkSize = byteToInt(en);
+
+        byte[] salt = getBytes(inputStream, 16);
+        byte[] pwHashBytes = getBytes(inputStream, 24);
+
+
+        byte[] outputHash;
+        if (expensiveOps) {
+            long kdfStartTime = System.nanoTime();
+            if (progressTracker != null) {
+                progressTracker.addPhaseNanos(ProgressListener.PHASE_HEADER, kdfStartTime - startTime);
+                progressTracker.phaseStarted(ProgressListener.PHASE_KDF);
+            }
+            outputHash = keyCache.getOrDerive(lazySodium, algo, opsLimit, memLimit, salt);
+            if (progressTracker != null) {
+                progressTracker.addPhaseNanos(ProgressListener.PHASE_KDF, System.nanoTime() - kdfStartTime);
+            }
+        } else {
+            outputHash = new byte[32];
+            if (progressTracker != null) {
+                progressTracker.addPhaseNanos(ProgressListener.PHASE_HEADER, System.nanoTime() - startTime);
+            }
+        }
+
+        Header header = new Header(pwHashBytes, outputHash, chunkSize);
+        header.algo = algo;
+        header.opsLimit = opsLimit;
+        header.memLimit = memLimit;
+        header.salt = salt;
+        return header;
+    }
+
+    @NonNull
+    public static InputStream decryptStream(InputStream inputStream) throws IOException {
+        LazySodium lazySodium = getCryptoProvider().getLazySodium();
+        Header h = processHeader(inputStream, lazySodium);
+        return decryptStream(inputStream, h, lazySodium);
+    }
+
+    /**
+     * Decrypt the rest of the stream on demand, see {@link DecryptingInputStream}.
+     */
+    @NonNull
+    public static DecryptingInputStream decryptStream(@NonNull InputStream inputStream,
+                                                      @NonNull Header header,
+                                                      @NonNull LazySodium lazySodium)
+            throws IOException {
+        return new DecryptingInputStream(inputStream, header, lazySodium, bufferPool);
+    }
+
+    /**
+     * Same as {@link #decryptStream(InputStream, Header, LazySodium)}, but the decryption runs in a separate
+     * thread and the plain text is passed through a pipe. Kept for callers relying on the old behaviour.
+     */
+    @NonNull
+    public static InputStream decryptStreamThreaded(final InputStream inputStream,
+                                                    final Header header,
+                                                    final LazySodium lazySodium)
+            throws IOException {
+        final PipedInputStream pipedInputStream = new PipedInputStream(BUFFER_SIZE);
+        final PipedOutputStream pipedOutputStream = new PipedOutputStream();
+
+        pipedInputStream.connect(pipedOutputStream);
+
+        final DecryptingInputStream decryptingInputStream = decryptStream(inputStream, header, lazySodium);
+        Thread pipeWriter = new Thread() {
+            public void run() {
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = decryptingInputStream.read(buffer)) != -1) {
+                        pipedOutputStream.write(buffer, 0, read);
+                    }
+                } catch (IOException e) {
+                    if (!"Pipe closed".equals(e.getMessage())) {
+                        e.printStackTrace();
+                    }
+                } finally {
+                    try {
+                        decryptingInputStream.close();
+                    } catch (IOException ignored) {
+                    }
+                    try {
+                        pipedOutputStream.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        };
+
+        pipeWriter.start();
+        return pipedInputStream;
+    }
+
+    /**
+     * Decrypt an APKM file and write it as a valid ZIP file. The entries are copied without being inflated, only a
+     * central directory is appended since the decrypted stream may not have one.
+     */
+    public static void decryptFile(@NonNull InputStream is, @NonNull OutputStream os) throws IOException {
+        decryptFile(is, os, new ConversionOptions());
+    }
+
+    /**
+     * Same as {@link #decryptFile(InputStream, OutputStream)}, the entries are recompressed in parallel if a
+     * compression level is set in the options.
+     */
+    public static void decryptFile(@NonNull InputStream is, @NonNull OutputStream os,
+                                   @NonNull ConversionOptions options) throws IOException {
+        CancellationToken cancellationToken = options.getCancellationToken();
+        if (cancellationToken != null) {
+            cancellationToken.throwIfCancelled();
+            is = cancellationToken.wrap(is);
+            os = cancellationToken.wrap(os);
+        }
+        ProgressTracker tracker = ProgressTracker.create(options);
+        if (tracker != null) {
+            is = tracker.wrap(is);
+            os = tracker.wrap(os);
+        }
+        LazySodium lazySodium = getCryptoProvider().getLazySodium();
+        Header h = processHeader(is, lazySodium, true, MEM_LIMIT, tracker);
+        DecryptingInputStream toOut = decryptStream(is, h, lazySodium);
+        toOut.setProgressTracker(tracker);
+        startStreamingPhases(tracker);
+        long startTime = System.nanoTime();
+        long startIoNanos = tracker != null ? tracker.getIoNanos() : 0;
+        rewriteZip(toOut, new BufferedOutputStream(os, BUFFER_SIZE), options);
+        if (tracker != null) {
+            // Decryption and I/O happen on the same thread, from within the ZIP stage
+            tracker.addPhaseNanos(ProgressListener.PHASE_ZIP_REWRITE, System.nanoTime() - startTime
+                    - tracker.getPhaseNanos(ProgressListener.PHASE_DECRYPT) - (tracker.getIoNanos() - startIoNanos));
+            tracker.finish();
+        }
+    }
+
+    /**
+     * Same as {@link #decryptFile(InputStream, OutputStream)}, but reading, decryption, ZIP re-framing and writing
+     * run concurrently, see {@link ConversionPipeline}.
+     *
+     * @return Time spent by each stage waiting for the others
+     */
+    @NonNull
+    public static ConversionPipeline.Stats decryptFilePipelined(@NonNull InputStream is, @NonNull OutputStream os)
+            throws IOException {
+        return decryptFilePipelined(is, os, new ConversionOptions());
+    }
+
+    /**
+     * Same as {@link #decryptFile(InputStream, OutputStream, ConversionOptions)}, but the stages run concurrently.
+     *
+     * @return Time spent by each stage waiting for the others
+     */
+    @NonNull
+    public static ConversionPipeline.Stats decryptFilePipelined(@NonNull InputStream is, @NonNull OutputStream os,
+                                                                @NonNull ConversionOptions options)
+            throws IOException {
+        CancellationToken cancellationToken = options.getCancellationToken();
+        if (cancellationToken != null) {
+            cancellationToken.throwIfCancelled();
+            is = cancellationToken.wrap(is);
+            os = cancellationToken.wrap(os);
+        }
+        ProgressTracker tracker = ProgressTracker.create(options);
+        if (tracker != null) {
+            is = tracker.wrap(is);
+            os = tracker.wrap(os);
+        }
+        LazySodium lazySodium = getCryptoProvider().getLazySodium();
+        Header h = processHeader(is, lazySodium, true, MEM_LIMIT, tracker);
+        ConversionPipeline pipeline = new ConversionPipeline(h, lazySodium, bufferPool);
+        pipeline.setProgressTracker(tracker);
+        startStreamingPhases(tracker);
+        pipeline.run(is, os, options);
+        ConversionPipeline.Stats stats = pipeline.getStats();
+        if (tracker != null) {
+            // The ZIP stage runs on its own, only its waits for the neighbouring stages are excluded
+            tracker.addPhaseNanos(ProgressListener.PHASE_ZIP_REWRITE, stats.elapsedNanos
+                    - stats.inputStallNanos[2] - stats.outputStallNanos[2]);
+            tracker.finish();
+        }
+        return stats;
+    }
+
+    /**
+     * Decrypt only until the entries named {@code names} are complete, the rest of the bundle is neither read nor
+     * decrypted. The input stream is closed afterwards. The entries are held in memory, only ask for small ones.
+     *
+     * @return Uncompressed data of the entries found, entries missing from the bundle are absent
+     */
+    @NonNull
+    public static Map<String, byte[]> extractEntries(@NonNull InputStream is, @NonNull String... names)
+            throws IOException {
+        Map<String, byte[]> entries = new HashMap<>();
+        extractEntries(is, new HashSet<>(Arrays.asList(names)), entries);
+        return entries;
+    }
+
+    /**
+     * Read info.json and the icon of a bundle. These are the first entries of APKM files, so this usually decrypts a
+     * few chunks, see {@link #extractEntries(InputStream, String...)}.
+     */
+    @NonNull
+    public static ApkmMetadata readMetadata(@NonNull InputStream is) throws IOException {
+        Map<String, byte[]> entries = new HashMap<>();
+        long chunks = extractEntries(is, new HashSet<>(Arrays.asList(ApkmInfo.ENTRY_NAME,
+                ApkmMetadata.ICON_ENTRY_NAME)), entries);
+        byte[] infoJson = entries.get(ApkmInfo.ENTRY_NAME);
+        ApkmInfo info = null;
+        if (infoJson != null) {
+            try {
+                info = ApkmInfo.parse(infoJson);
+            } catch (IOException ignore) {
+                // Malformed, the caller still gets the raw content
+            }
+        }
+        return new ApkmMetadata(infoJson, info, entries.get(ApkmMetadata.ICON_ENTRY_NAME), chunks);
+    }
+
+    /**
+     * @return Number of chunks decrypted
+     */
+    private static long extractEntries(@NonNull InputStream is, @NonNull Set<String> names,
+                                       @NonNull Map<String, byte[]> entries) throws IOException {
+        try {
+            LazySodium lazySodium = getCryptoProvider().getLazySodium();
+            Header h = processHeader(is, lazySodium);
+            try (DecryptingInputStream plain = decryptStream(is, h, lazySodium);
+                 ZipRawReader zipIn = new ZipRawReader(plain)) {
+                ZipRawReader.LocalEntry entry;
+                while (entries.size() < names.size() && (entry = zipIn.getNextEntry()) != null) {
+                    String name = entry.getName();
+                    if (!names.contains(name) || entries.containsKey(name)) continue;
+                    try (InputStream data = zipIn.getInputStream()) {
+                        entries.put(name, readAtMost(data, Integer.MAX_VALUE));
+                    }
+                }
+                return plain.getChunkCount();
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void startStreamingPhases(@Nullable ProgressTracker tracker) {
+        if (tracker != null) {
+            tracker.phaseStarted(ProgressListener.PHASE_DECRYPT);
+            tracker.phaseStarted(ProgressListener.PHASE_ZIP_REWRITE);
+        }
+    }
+
+    /**
+     * Copy the entries of the decrypted ZIP stream and fix the zip format if the end signature is missing. Entries
+     * rejected by the {@link ConversionOptions#getEntryFilter()} or the {@link ConversionOptions#getDeviceProfile()}
+     * are skipped by the reader. The plain stream is read to its end, i.e. up to the final chunk of the secretstream,
+     * even though the original central directory isn't needed. The central directory of the output is written only
+     * once all of this succeeded. Both streams are closed afterwards.
+     */
+    static void rewriteZip(@NonNull InputStream plain, @NonNull OutputStream os, @NonNull ConversionOptions options)
+            throws IOException {
+        EntryFilter filter = options.getEntryFilter();
+        DeviceProfile profile = options.getDeviceProfile();
+        SplitSelector selector = profile != null ? new SplitSelector(profile) : null;
+        try (ZipRawReader zipIn = new ZipRawReader(plain);
+             ZipRawWriter zipOut = new ZipRawWriter(os)) {
+            ZipRawReader.LocalEntry entry;
+            if (options.getCompressionLevel() == ConversionOptions.COMPRESSION_COPY) {
+                while ((entry = zipIn.getNextEntry()) != null) {
+                    boolean isInfo = selector != null && ApkmInfo.ENTRY_NAME.equals(entry.getName());
+                    if (!isInfo && !accept(entry, filter, selector)) continue;
+                    InputStream data = zipIn.getRawInputStream();
+                    if (isInfo) {
+                        // Read even if filtered out, the selector needs it
+                        data = readInfo(data, entry.getMethod() != ZipRawReader.METHOD_STORED, selector);
+                        if (!accept(entry, filter, selector)) continue;
+                    }
+                    zipOut.putRawEntry(entry, data);
+                }
+                skipToEnd(plain);
+                zipOut.finish();
+                return;
+            }
+            try (ParallelRecompressor recompressor = new ParallelRecompressor(zipOut,
+                    options.getCompressionLevel(), options.getThreadCount())) {
+                while ((entry = zipIn.getNextEntry()) != null) {
+                    boolean isInfo = selector != null && ApkmInfo.ENTRY_NAME.equals(entry.getName());
+                    if (!isInfo && !accept(entry, filter, selector)) continue;
+                    InputStream data = zipIn.getInputStream();
+                    if (isInfo) {
+                        // Read even if filtered out, the selector needs it
+                        data = readInfo(data, false, selector);
+                        if (!accept(entry, filter, selector)) continue;
+                    }
+                    recompressor.putEntry(entry, data);
+                }
+                recompressor.finish();
+            }
+            skipToEnd(plain);
+            zipOut.finish();
+        }
+    }
+
+    /**
+     * Read the rest of a stream, the truncation of the input is only detected at its end.
+     */
+    private static void skipToEnd(@NonNull InputStream is) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        //noinspection StatementWithEmptyBody
+        while (is.read(buffer) != -1) {
+        }
+    }
+
+    private static boolean accept(@NonNull ZipRawReader.LocalEntry entry, @Nullable EntryFilter filter,
+                                  @Nullable SplitSelector selector) {
+        String name = entry.getName();
+        return (filter == null || filter.accept(name)) && (selector == null || selector.accept(name));
+    }
+
+    /**
+     * Buffer the info.json entry and pass it to the selector, which uses it to choose the splits that follow. An entry
+     * too large to be buffered is passed through without informing the selector.
+     *
+     * @param compressed Whether {@code data} is deflated
+     * @return The data, to be written in place of {@code data}
+     */
+    @NonNull
+    private static InputStream readInfo(@NonNull InputStream data, boolean compressed,
+                                        @NonNull SplitSelector selector) throws IOException {
+        byte[] bytes = readAtMost(data, MAX_INFO_SIZE);
+        if (bytes.length > MAX_INFO_SIZE) {
+            // Certainly not a real info.json, the splits are chosen by name
+            return new SequenceInputStream(new ByteArrayInputStream(bytes), data);
+        }
+        try {
+            byte[] json = bytes;
+            if (compressed) {
+                Inflater inflater = new Inflater(true);
+                try {
+                    json = readAtMost(new InflaterInputStream(new ByteArrayInputStream(bytes), inflater),
+                            MAX_INFO_SIZE);
+                } finally {
+                    inflater.end();
+                }
+                if (json.length > MAX_INFO_SIZE) throw new IOException("Inflated info.json too large");
+            }
+            selector.setInfo(ApkmInfo.parse(json));
+        } catch (IOException ignore) {
+            // Unreadable metadata only makes the selection less precise, the splits are still chosen by name
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    /**
+     * Read a stream to its end, or until more than {@code maxSize} bytes were read.
+     *
+     * @return The bytes read, more than {@code maxSize} if the stream is longer
+     */
+    @NonNull
+    private static byte[] readAtMost(@NonNull InputStream is, int maxSize) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while (bos.size() <= maxSize && (read = is.read(buffer)) != -1) {
+            bos.write(buffer, 0, read);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Reads the local file headers of a ZIP stream and gives access to the entries' data as it is stored, i.e. without
+ * inflating it. Reading stops at the first record that is not a local file header, such as the central directory or
+ * the zero padding at the end of the decrypted APKM, so that a missing or broken central directory is not an issue.
+ */
+public class ZipRawReader implements Closeable {
+    static final int LOCAL_HEADER_SIG = 0x04034b50;
+    static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    static final int FLAG_UTF8 = 1 << 11;
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static class LocalEntry {
+        String name;
+        byte[] nameBytes;
+        byte[] extra;
+        int versionNeeded;
+        int flags;
+        int method;
+        int dosTime;
+        int dosDate;
+        long crc;
+        long compressedSize;
+        long size;
+        long headerOffset;
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        /**
+         * @return CRC-32 of the uncompressed data. Only valid after the raw data is read if
+         * {@link #hasDataDescriptor()} is {@code true}
+         */
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public boolean hasDataDescriptor() {
+            return (flags & FLAG_DATA_DESCRIPTOR) != 0;
+        }
+
+        /**
+         * @return Offset of the local file header in the stream
+         */
+        public long getHeaderOffset() {
+            return headerOffset;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private long bytesConsumed;
+    @Nullable
+    private LocalEntry entry;
+    @Nullable
+    private RawInputStream rawInputStream;
+    private boolean closed;
+
+    public ZipRawReader(@NonNull InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Skip the remaining data of the current entry and read the next local file header.
+     *
+     * @return The next entry or {@code null} if there are no more local file headers
+     */
+    @Nullable
+    public LocalEntry getNextEntry() throws IOException {
+        ensureOpen();
+        if (rawInputStream != null) {
+            rawInputStream.skipAll();
+            rawInputStream = null;
+        }
+        entry = null;
+        if (!ensureBuffered(4) || readInt() != LOCAL_HEADER_SIG) {
+            return null;
+        }
+        LocalEntry e = new LocalEntry();
+        e.headerOffset = bytesConsumed - 4;
+        if (!ensureBuffered(LOCAL_HEADER_SIZE - 4)) {
+            throw new EOFException("Truncated local file header");
+        }
+        e.versionNeeded = readShort();
+        e.flags = readShort();
+        e.method = readShort();
+        e.dosTime = readShort();
+        e.dosDate = readShort();
+        e.crc = readInt() & 0xFFFFFFFFL;
+        e.compressedSize = readInt() & 0xFFFFFFFFL;
+        e.size = readInt() & 0xFFFFFFFFL;
+        int nameLength = readShort();
+        int extraLength = readShort();
+        e.nameBytes = readBytes(nameLength);
+        e.extra = readBytes(extraLength);
+        e.name = new String(e.nameBytes, Charset.forName("UTF-8"));
+        if (e.method != METHOD_STORED && e.method != METHOD_DEFLATED) {
+            throw new ZipException("Unsupported compression method " + e.method + " for " + e.name);
+        }
+        if (e.hasDataDescriptor()) {
+            if (e.method == METHOD_STORED) {
+                throw new ZipException("STORED entry with data descriptor is not supported: " + e.name);
+            }
+        } else readZip64Extra(e);
+        entry = e;
+        rawInputStream = new RawInputStream(e);
+        return e;
+    }
+
+    /**
+     * @return The data of the current entry as it is stored in the archive
+     */
+    @NonNull
+    public InputStream getRawInputStream() throws IOException {
+        ensureOpen();
+        if (entry == null || rawInputStream == null) {
+            throw new IllegalStateException("No current entry");
+        }
+        return rawInputStream;
+    }
+
+    /**
+     * @return The uncompressed data of the current entry
+     */
+    @NonNull
+    public InputStream getInputStream() throws IOException {
+        InputStream raw = getRawInputStream();
+        //noinspection ConstantConditions
+        if (entry.method == METHOD_STORED) return raw;
+        return new InflaterInputStream(raw, new Inflater(true), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                inf.end();
+            }
+        };
+    }
+
+    /**
+     * @return Number of bytes consumed from the underlying stream, i.e. the offset of the next record
+     */
+    public long getBytesConsumed() {
+        return bytesConsumed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            if (rawInputStream != null) rawInputStream.end();
+            in.close();
+        }
+    }
+
+    private void readZip64Extra(@NonNull LocalEntry e) throws ZipException {
+        if (e.size != ZIP64_MAGIC && e.compressedSize != ZIP64_MAGIC) return;
+        byte[] extra = e.extra;
+        int off = 0;
+        while (off + 4 <= extra.length) {
+            int id = getShort(extra, off);
+            int size = getShort(extra, off + 2);
+            off += 4;
+            if (id == ZIP64_EXTRA_ID) {
+                int end = off + size;
+                if (e.size == ZIP64_MAGIC) {
+                    if (off + 8 > end) break;
+                    e.size = getLong(extra, off);
+                    off += 8;
+                }
+                if (e.compressedSize == ZIP64_MAGIC) {
+                    if (off + 8 > end) break;
+                    e.compressedSize = getLong(extra, off);
+                }
+                return;
+            }
+            off += size;
+        }
+        throw new ZipException("Invalid Zip64 extra field for " + e.name);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+    }
+
+    /**
+     * Make sure that at least {@code n} bytes are available in the buffer.
+     *
+     * @return {@code false} if the stream ended before that
+     */
+    private boolean ensureBuffered(int n) throws IOException {
+        if (limit - pos >= n) return true;
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        while (limit < n) {
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read == -1) return false;
+            limit += read;
+        }
+        return true;
+    }
+
+    /**
+     * Make sure that at least a byte is available in the buffer.
+     */
+    private int fill() throws IOException {
+        if (pos == limit) {
+            pos = limit = 0;
+            int read = in.read(buf, 0, buf.length);
+            if (read == -1) throw new EOFException("Unexpected end of ZIP stream");
+            limit = read;
+        }
+        return limit - pos;
+    }
+
+    private int readShort() {
+        int v = getShort(buf, pos);
+        pos += 2;
+        bytesConsumed += 2;
+        return v;
+    }
+
+    private int readInt() {
+        int v = getInt(buf, pos);
+        pos += 4;
+        bytesConsumed += 4;
+        return v;
+    }
+
+    @NonNull
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int off = 0;
+        while (off < length) {
+            int n = Math.min(fill(), length - off);
+            System.arraycopy(buf, pos, bytes, off, n);
+            pos += n;
+            off += n;
+        }
+        bytesConsumed += length;
+        return bytes;
+    }
+
+    static int getShort(@NonNull byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+    }
+
+    static int getInt(@NonNull byte[] b, int off) {
+        return getShort(b, off) | (getShort(b, off + 2) << 16);
+    }
+
+    static long getLong(@NonNull byte[] b, int off) {
+        return (getInt(b, off) & 0xFFFFFFFFL) | ((long) getInt(b, off + 4) << 32);
+    }
+
+    /**
+     * Stream of the stored data of an entry. When the sizes are deferred to a data descriptor, the end of the deflated
+     * data is found by running it through an {@link Inflater} whose output is discarded.
+     */
+    private class RawInputStream extends InputStream {
+        private final LocalEntry e;
+        @Nullable
+        private Inflater inflater;
+        @Nullable
+        private byte[] scratch;
+        private long remaining;
+        private boolean eof;
+
+        RawInputStream(@NonNull LocalEntry e) {
+            this.e = e;
+            if (e.hasDataDescriptor()) {
+                inflater = new Inflater(true);
+                scratch = new byte[BUFFER_SIZE];
+                remaining = -1;
+            } else {
+                remaining = e.compressedSize;
+                eof = remaining == 0;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            if (eof || entry != e) return -1;
+            if (len == 0) return 0;
+            int n = Math.min(fill(), len);
+            if (inflater == null) {
+                n = (int) Math.min(n, remaining);
+                remaining -= n;
+                if (remaining == 0) eof = true;
+            } else {
+                n = findDeflateEnd(n);
+            }
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            bytesConsumed += n;
+            if (eof && inflater != null) {
+                readDataDescriptor();
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            if (eof || entry != e) return 0;
+            int n = limit - pos;
+            return inflater == null ? (int) Math.min(n, remaining) : 0;
+        }
+
+        /**
+         * There's nothing to close, the rest of the data is skipped by the next call to {@link #getNextEntry()}.
+         */
+        @Override
+        public void close() {
+        }
+
+        void skipAll() throws IOException {
+            if (inflater == null) {
+                while (!eof) {
+                    int n = (int) Math.min(fill(), remaining);
+                    pos += n;
+                    bytesConsumed += n;
+                    remaining -= n;
+                    if (remaining == 0) eof = true;
+                }
+            } else {
+                byte[] skipBuf = new byte[BUFFER_SIZE];
+                //noinspection StatementWithEmptyBody
+                while (read(skipBuf, 0, skipBuf.length) != -1) {
+                }
+            }
+        }
+
+        void end() {
+            if (inflater != null) inflater.end();
+        }
+
+        /**
+         * Inflate at most {@code n} buffered bytes.
+         *
+         * @return Number of bytes that belong to the deflated data
+         */
+        private int findDeflateEnd(int n) throws ZipException {
+            //noinspection ConstantConditions
+            inflater.setInput(buf, pos, n);
+            try {
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    //noinspection ConstantConditions
+                    inflater.inflate(scratch);
+                }
+            } catch (DataFormatException ex) {
+                throw new ZipException("Invalid deflated data for " + e.name + ": " + ex.getMessage());
+            }
+            if (inflater.finished()) {
+                eof = true;
+                return n - inflater.getRemaining();
+            }
+            return n;
+        }
+
+        private void readDataDescriptor() throws IOException {
+            //noinspection ConstantConditions
+            long compressedSize = inflater.getBytesRead();
+            long size = inflater.getBytesWritten();
+            boolean zip64 = compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+            inflater.end();
+            inflater = null;
+            if (!ensureBuffered(4)) throw new EOFException("Missing data descriptor for " + e.name);
+            if (getInt(buf, pos) == DATA_DESCRIPTOR_SIG) readInt();
+            if (!ensureBuffered(zip64 ? 20 : 12)) throw new EOFException("Missing data descriptor for " + e.name);
+            e.crc = readInt() & 0xFFFFFFFFL;
+            if (zip64) {
+                e.compressedSize = getLong(buf, pos);
+                e.size = getLong(buf, pos + 8);
+                pos += 16;
+                bytesConsumed += 16;
+            } else {
+                e.compressedSize = readInt() & 0xFFFFFFFFL;
+                e.size = readInt() & 0xFFFFFFFFL;
+            }
+            if (e.compressedSize != compressedSize || e.size != size) {
+                throw new ZipException("Invalid data descriptor for " + e.name);
+            }
+        }
+    }
+}
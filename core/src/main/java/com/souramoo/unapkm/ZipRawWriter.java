@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+import static com.souramoo.unapkm.ZipRawReader.FLAG_DATA_DESCRIPTOR;
+import static com.souramoo.unapkm.ZipRawReader.ZIP64_EXTRA_ID;
+import static com.souramoo.unapkm.ZipRawReader.ZIP64_MAGIC;
+
+/**
+ * Writes entries whose data is already compressed, followed by a central directory built from the recorded offsets.
+ * Zip64 records are used only where the sizes, offsets or the number of entries require them.
+ */
+public class ZipRawWriter implements Closeable {
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static class CentralEntry {
+        byte[] nameBytes;
+        int versionNeeded;
+        int flags;
+        int method;
+        int dosTime;
+        int dosDate;
+        long crc;
+        long compressedSize;
+        long size;
+        long offset;
+    }
+
+    private final OutputStream out;
+    private final List<CentralEntry> entries = new ArrayList<>();
+    private CentralEntry currentEntry;
+    private final byte[] copyBuffer = new byte[BUFFER_SIZE];
+    private final byte[] header = new byte[64];
+    private long written;
+    private boolean finished;
+
+    public ZipRawWriter(@NonNull OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Write the local file header of the entry followed by its data copied verbatim from {@code rawData}. If the
+     * sizes of the entry are deferred to a data descriptor, a data descriptor is written as well.
+     */
+    public void putRawEntry(@NonNull ZipRawReader.LocalEntry entry, @NonNull InputStream rawData) throws IOException {
+        CentralEntry ce = new CentralEntry();
+        ce.nameBytes = entry.nameBytes;
+        ce.flags = entry.flags;
+        ce.method = entry.method;
+        ce.dosTime = entry.dosTime;
+        ce.dosDate = entry.dosDate;
+        ce.offset = written;
+        boolean deferred = entry.hasDataDescriptor();
+        if (deferred) {
+            writeLocalHeader(ce, null);
+        } else {
+            ce.crc = entry.crc;
+            ce.compressedSize = entry.compressedSize;
+            ce.size = entry.size;
+            writeLocalHeader(ce, entry);
+        }
+        long copied = 0;
+        int read;
+        while ((read = rawData.read(copyBuffer)) != -1) {
+            out.write(copyBuffer, 0, read);
+            copied += read;
+        }
+        written += copied;
+        if (deferred) {
+            // The reader has updated the entry from the data descriptor by now
+            ce.crc = entry.crc;
+            ce.compressedSize = entry.compressedSize;
+            ce.size = entry.size;
+            writeDataDescriptor(ce);
+        }
+        if (copied != ce.compressedSize) {
+            throw new IOException("Size mismatch for " + entry.name + ": expected " + ce.compressedSize
+                    + " bytes, got " + copied);
+        }
+        entries.add(ce);
+    }
+
+    /**
+     * Start an entry whose data is written through {@link #writeEntryData(byte[], int, int)}. Its CRC and sizes are
+     * written to a data descriptor by {@link #endEntry(long, long)}.
+     *
+     * @param source Entry whose name and modification time are used
+     * @param method Compression method of the data that will be written
+     */
+    public void beginEntry(@NonNull ZipRawReader.LocalEntry source, int method) throws IOException {
+        if (currentEntry != null) throw new IllegalStateException("Previous entry isn't ended");
+        CentralEntry ce = new CentralEntry();
+        ce.nameBytes = source.nameBytes;
+        ce.flags = source.flags;
+        ce.method = method;
+        ce.dosTime = source.dosTime;
+        ce.dosDate = source.dosDate;
+        ce.offset = written;
+        writeLocalHeader(ce, null);
+        currentEntry = ce;
+    }
+
+    public void writeEntryData(@NonNull byte[] b, int off, int len) throws IOException {
+        if (currentEntry == null) throw new IllegalStateException("No current entry");
+        out.write(b, off, len);
+        written += len;
+        currentEntry.compressedSize += len;
+    }
+
+    /**
+     * @param crc  CRC-32 of the uncompressed data
+     * @param size Size of the uncompressed data
+     */
+    public void endEntry(long crc, long size) throws IOException {
+        CentralEntry ce = currentEntry;
+        if (ce == null) throw new IllegalStateException("No current entry");
+        ce.crc = crc;
+        ce.size = size;
+        writeDataDescriptor(ce);
+        entries.add(ce);
+        currentEntry = null;
+    }
+
+    /**
+     * @return Number of bytes written so far
+     */
+    public long getBytesWritten() {
+        return written;
+    }
+
+    /**
+     * Write the central directory. The underlying stream is flushed but not closed.
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        long cdOffset = written;
+        ByteArrayOutputStream extra = new ByteArrayOutputStream();
+        for (CentralEntry ce : entries) {
+            extra.reset();
+            boolean zip64Size = ce.size >= ZIP64_MAGIC || ce.compressedSize >= ZIP64_MAGIC;
+            boolean zip64Offset = ce.offset >= ZIP64_MAGIC;
+            if (zip64Size || zip64Offset) {
+                int len = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+                writeShort(extra, ZIP64_EXTRA_ID);
+                writeShort(extra, len);
+                if (zip64Size) {
+                    writeLong(extra, ce.size);
+                    writeLong(extra, ce.compressedSize);
+                }
+                if (zip64Offset) writeLong(extra, ce.offset);
+            }
+            int version = (zip64Size || zip64Offset) ? VERSION_ZIP64 : ce.versionNeeded;
+            int off = 0;
+            off = putInt(header, off, CENTRAL_HEADER_SIG);
+            off = putShort(header, off, version); // version made by
+            off = putShort(header, off, version); // version needed
+            off = putShort(header, off, ce.flags);
+            off = putShort(header, off, ce.method);
+            off = putShort(header, off, ce.dosTime);
+            off = putShort(header, off, ce.dosDate);
+            off = putInt(header, off, (int) ce.crc);
+            off = putInt(header, off, (int) (zip64Size ? ZIP64_MAGIC : ce.compressedSize));
+            off = putInt(header, off, (int) (zip64Size ? ZIP64_MAGIC : ce.size));
+            off = putShort(header, off, ce.nameBytes.length);
+            off = putShort(header, off, extra.size());
+            off = putShort(header, off, 0); // comment length
+            off = putShort(header, off, 0); // disk number
+            off = putShort(header, off, 0); // internal attributes
+            off = putInt(header, off, 0); // external attributes
+            off = putInt(header, off, (int) (zip64Offset ? ZIP64_MAGIC : ce.offset));
+            writeRaw(header, off);
+            writeRaw(ce.nameBytes, ce.nameBytes.length);
+            writeRaw(extra.toByteArray(), extra.size());
+        }
+        long cdSize = written - cdOffset;
+        int count = entries.size();
+        boolean zip64 = cdOffset >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC || count >= 0xFFFF;
+        if (zip64) {
+            long zip64EndOffset = written;
+            int off = 0;
+            off = putInt(header, off, ZIP64_END_SIG);
+            off = putLong(header, off, 44); // size of the remaining record
+            off = putShort(header, off, VERSION_ZIP64);
+            off = putShort(header, off, VERSION_ZIP64);
+            off = putInt(header, off, 0); // disk number
+            off = putInt(header, off, 0); // disk of the central directory
+            off = putLong(header, off, count);
+            off = putLong(header, off, count);
+            off = putLong(header, off, cdSize);
+            off = putLong(header, off, cdOffset);
+            writeRaw(header, off);
+            off = 0;
+            off = putInt(header, off, ZIP64_LOCATOR_SIG);
+            off = putInt(header, off, 0); // disk of the zip64 end record
+            off = putLong(header, off, zip64EndOffset);
+            off = putInt(header, off, 1); // number of disks
+            writeRaw(header, off);
+        }
+        int off = 0;
+        off = putInt(header, off, END_SIG);
+        off = putShort(header, off, 0); // disk number
+        off = putShort(header, off, 0); // disk of the central directory
+        off = putShort(header, off, Math.min(count, 0xFFFF));
+        off = putShort(header, off, Math.min(count, 0xFFFF));
+        off = putInt(header, off, (int) Math.min(cdSize, ZIP64_MAGIC));
+        off = putInt(header, off, (int) Math.min(cdOffset, ZIP64_MAGIC));
+        off = putShort(header, off, 0); // comment length
+        writeRaw(header, off);
+        out.flush();
+    }
+
+    /**
+     * Close the underlying stream. The central directory is written only by {@link #finish()}, so that a ZIP left
+     * incomplete by an error isn't mistaken for a valid one.
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeLocalHeader(@NonNull CentralEntry ce, ZipRawReader.LocalEntry known) throws IOException {
+        boolean zip64 = known != null && (ce.size >= ZIP64_MAGIC || ce.compressedSize >= ZIP64_MAGIC);
+        if (known == null) ce.flags |= FLAG_DATA_DESCRIPTOR;
+        else ce.flags &= ~FLAG_DATA_DESCRIPTOR;
+        ce.versionNeeded = zip64 ? VERSION_ZIP64 : VERSION_DEFAULT;
+        byte[] extra = known != null ? stripZip64Extra(known.extra) : new byte[0];
+        int extraLength = extra.length + (zip64 ? 20 : 0);
+        int off = 0;
+        off = putInt(header, off, ZipRawReader.LOCAL_HEADER_SIG);
+        off = putShort(header, off, ce.versionNeeded);
+        off = putShort(header, off, ce.flags);
+        off = putShort(header, off, ce.method);
+        off = putShort(header, off, ce.dosTime);
+        off = putShort(header, off, ce.dosDate);
+        off = putInt(header, off, (int) ce.crc);
+        off = putInt(header, off, (int) (zip64 ? ZIP64_MAGIC : ce.compressedSize));
+        off = putInt(header, off, (int) (zip64 ? ZIP64_MAGIC : ce.size));
+        off = putShort(header, off, ce.nameBytes.length);
+        off = putShort(header, off, extraLength);
+        writeRaw(header, off);
+        writeRaw(ce.nameBytes, ce.nameBytes.length);
+        if (zip64) {
+            off = 0;
+            off = putShort(header, off, ZIP64_EXTRA_ID);
+            off = putShort(header, off, 16);
+            off = putLong(header, off, ce.size);
+            off = putLong(header, off, ce.compressedSize);
+            writeRaw(header, off);
+        }
+        writeRaw(extra, extra.length);
+    }
+
+    private void writeDataDescriptor(@NonNull CentralEntry ce) throws IOException {
+        boolean zip64 = ce.size >= ZIP64_MAGIC || ce.compressedSize >= ZIP64_MAGIC;
+        int off = 0;
+        off = putInt(header, off, ZipRawReader.DATA_DESCRIPTOR_SIG);
+        off = putInt(header, off, (int) ce.crc);
+        if (zip64) {
+            off = putLong(header, off, ce.compressedSize);
+            off = putLong(header, off, ce.size);
+        } else {
+            off = putInt(header, off, (int) ce.compressedSize);
+            off = putInt(header, off, (int) ce.size);
+        }
+        writeRaw(header, off);
+    }
+
+    private void writeRaw(@NonNull byte[] b, int len) throws IOException {
+        out.write(b, 0, len);
+        written += len;
+    }
+
+    /**
+     * Remove Zip64 extended information from the local extra field, it's regenerated if needed.
+     */
+    @NonNull
+    private static byte[] stripZip64Extra(@NonNull byte[] extra) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(extra.length);
+        int off = 0;
+        while (off + 4 <= extra.length) {
+            int id = ZipRawReader.getShort(extra, off);
+            int size = ZipRawReader.getShort(extra, off + 2);
+            if (off + 4 + size > extra.length) break;
+            if (id != ZIP64_EXTRA_ID) {
+                os.write(extra, off, 4 + size);
+            }
+            off += 4 + size;
+        }
+        return os.toByteArray();
+    }
+
+    private static int putShort(@NonNull byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        return off + 2;
+    }
+
+    private static int putInt(@NonNull byte[] b, int off, int v) {
+        putShort(b, off, v);
+        putShort(b, off + 2, v >>> 16);
+        return off + 4;
+    }
+
+    private static int putLong(@NonNull byte[] b, int off, long v) {
+        putInt(b, off, (int) v);
+        putInt(b, off + 4, (int) (v >>> 32));
+        return off + 8;
+    }
+
+    private static void writeShort(@NonNull ByteArrayOutputStream os, int v) {
+        os.write(v & 0xff);
+        os.write((v >>> 8) & 0xff);
+    }
+
+    private static void writeLong(@NonNull ByteArrayOutputStream os, long v) {
+        for (int i = 0; i < 8; ++i) {
+            os.write((int) (v >>> (8 * i)) & 0xff);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final List<Thread> threads = new ArrayList<>();
+    /**
+     * Tickets of the waiting jobs, in the order they were admitted
+     */
+    private final BlockingQueue<AdmissionController.Ticket> admitted = new LinkedBlockingQueue<>();
+    private final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.interrupt();
+            thread.join(TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    public void admitsWithinTheBudgetAtOnce() throws InterruptedIOException {
+        AdmissionController controller = new AdmissionController(100);
+        AdmissionController.Ticket a = controller.acquire("a", 60);
+        AdmissionController.Ticket b = controller.acquire("b", 40);
+        assertEquals(2, controller.getRunningCount());
+        assertEquals(100, controller.getBytesInUse());
+        a.close();
+        // Closing twice releases once
+        a.close();
+        assertEquals(40, controller.getBytesInUse());
+        b.close();
+        assertEquals(0, controller.getRunningCount());
+        assertEquals(0, controller.getBytesInUse());
+    }
+
+    @Test
+    public void oversizedJobRunsAlone() throws Exception {
+        AdmissionController controller = new AdmissionController(100);
+        // Nothing else runs, so it is admitted although it doesn't fit
+        AdmissionController.Ticket big = controller.acquire("a", 500);
+        assertEquals(500, controller.getBytesInUse());
+        // Nothing fits next to it
+        start(controller, "b", "small", 1);
+        awaitWaiting(controller, 1);
+        big.close();
+        AdmissionController.Ticket small = next();
+        assertEquals(1, small.getBytes());
+
+        // Waits for the running jobs to finish, however small they are
+        start(controller, "a", "big", 500);
+        awaitWaiting(controller, 1);
+        assertNull(admitted.poll(100, TimeUnit.MILLISECONDS));
+        small.close();
+        next().close();
+        assertEquals(Arrays.asList("small", "big"), order);
+    }
+
+    @Test
+    public void largeJobIsNotStarvedBySmallerOnes() throws Exception {
+        AdmissionController controller = new AdmissionController(100);
+        AdmissionController.Ticket running = controller.acquire("a", 60);
+        start(controller, "b", "large", 80);
+        awaitWaiting(controller, 1);
+        // Would fit next to the running job, but the large one came first
+        start(controller, "c", "small", 30);
+        awaitWaiting(controller, 2);
+        assertNull(admitted.poll(100, TimeUnit.MILLISECONDS));
+        running.close();
+        AdmissionController.Ticket large = next();
+        // Doesn't fit next to the large one either
+        assertNull(admitted.poll(100, TimeUnit.MILLISECONDS));
+        large.close();
+        next().close();
+        assertEquals(Arrays.asList("large", "small"), order);
+    }
+
+    @Test
+    public void callersTakeTurns() throws Exception {
+        AdmissionController controller = new AdmissionController(100);
+        AdmissionController.Ticket running = controller.acquire("x", 100);
+        // One caller queues many jobs before another queues one
+        for (int i = 0; i < 3; ++i) {
+            start(controller, "a", "a" + i, 100);
+            awaitWaiting(controller, i + 1);
+        }
+        start(controller, "b", "b0", 100);
+        awaitWaiting(controller, 4);
+        running.close();
+        for (int i = 0; i < 4; ++i) {
+            next().close();
+        }
+        assertEquals(Arrays.asList("a0", "b0", "a1", "a2"), order);
+        assertEquals(0, controller.getRunningCount());
+        assertEquals(0, controller.getWaitingCount());
+    }
+
+    @Test
+    public void interruptedWaitLeavesTheQueue() throws Exception {
+        AdmissionController controller = new AdmissionController(100);
+        AdmissionController.Ticket running = controller.acquire("a", 90);
+        Thread large = start(controller, "b", "large", 50);
+        awaitWaiting(controller, 1);
+        start(controller, "c", "small", 10);
+        awaitWaiting(controller, 2);
+        large.interrupt();
+        // The small job was only held back by the large one
+        AdmissionController.Ticket small = next();
+        assertEquals(10, small.getBytes());
+        assertEquals(0, controller.getWaitingCount());
+        small.close();
+        running.close();
+        assertEquals(Collections.singletonList("small"), order);
+    }
+
+    @Test
+    public void raisingTheBudgetAdmitsWaitingJobs() throws Exception {
+        AdmissionController controller = new AdmissionController(100);
+        AdmissionController.Ticket running = controller.acquire("a", 80);
+        start(controller, "b", "waiting", 80);
+        awaitWaiting(controller, 1);
+        controller.setBudgetBytes(200);
+        next().close();
+        running.close();
+        assertEquals(200, controller.getBudgetBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeSizes() throws InterruptedIOException {
+        new AdmissionController(100).acquire("a", -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBudget() {
+        new AdmissionController(0);
+    }
+
+    private Thread start(final AdmissionController controller, final Object caller, final String name,
+                         final long bytes) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    AdmissionController.Ticket ticket = controller.acquire(caller, bytes);
+                    order.add(name);
+                    admitted.add(ticket);
+                } catch (InterruptedIOException ignore) {
+                }
+            }
+        });
+        threads.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    private AdmissionController.Ticket next() throws InterruptedException {
+        AdmissionController.Ticket ticket = admitted.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue("No job admitted", ticket != null);
+        return ticket;
+    }
+
+    private static void awaitWaiting(AdmissionController controller, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (controller.getWaitingCount() != count) {
+            assertTrue("Jobs not waiting", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
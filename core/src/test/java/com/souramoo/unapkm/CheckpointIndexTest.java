@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.souramoo.unapkm.ZipRawReaderTest.compressibleBytes;
+import static com.souramoo.unapkm.ZipRawReaderTest.crc;
+import static com.souramoo.unapkm.ZipRawReaderTest.randomBytes;
+import static com.souramoo.unapkm.ZipRawReaderTest.readAll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointIndexTest {
+    private static final int CHUNK_SIZE = 4096;
+    private static final int INTERVAL = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, byte[]> contents = new LinkedHashMap<>();
+
+    @BeforeClass
+    public static void setUpCrypto() {
+        TestCryptoProvider.register();
+    }
+
+    @Test
+    public void restoresTheSavedIndex() throws IOException {
+        File apkm = encode(zip());
+        CheckpointIndex built = CheckpointIndex.build(apkm, INTERVAL);
+        File indexFile = new File(folder.getRoot(), "index" + CheckpointIndex.FILE_SUFFIX);
+        built.save(indexFile);
+        assertFalse(new File(indexFile.getPath() + ".tmp").exists());
+
+        CheckpointIndex loaded = CheckpointIndex.load(indexFile);
+        assertTrue(loaded.matches(apkm));
+        assertEquals(built.toString(), loaded.toString());
+        assertEquals(contents.size(), loaded.getEntries().size());
+        Iterator<CheckpointIndex.Entry> it = built.getEntries().iterator();
+        for (CheckpointIndex.Entry entry : loaded.getEntries()) {
+            CheckpointIndex.Entry expected = it.next();
+            assertEquals(expected.getName(), entry.getName());
+            assertEquals(expected.getHeaderOffset(), entry.getHeaderOffset());
+            assertEquals(expected.getMethod(), entry.getMethod());
+            assertEquals(expected.getCompressedSize(), entry.getCompressedSize());
+            assertEquals(expected.getSize(), entry.getSize());
+            assertEquals(expected.getCrc(), entry.getCrc());
+        }
+        // Entries are read from the restored checkpoints, in any order
+        List<String> names = new ArrayList<>(contents.keySet());
+        for (int i = names.size() - 1; i >= 0; --i) {
+            String name = names.get(i);
+            CheckpointIndex.Entry entry = loaded.getEntry(name);
+            assertEquals(contents.get(name).length, entry.getSize());
+            assertEquals(crc(contents.get(name)), entry.getCrc());
+            try (InputStream is = loaded.openEntry(apkm, name)) {
+                assertArrayEquals(name, contents.get(name), readAll(is));
+            }
+        }
+        assertNull(loaded.getEntry("missing"));
+        assertNull(loaded.openEntry(apkm, "missing"));
+    }
+
+    @Test
+    public void sharesAChannelBetweenEntries() throws IOException {
+        File apkm = encode(zip());
+        CheckpointIndex index = CheckpointIndex.build(apkm, 1);
+        try (RandomAccessFile file = new RandomAccessFile(apkm, "r")) {
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                try (InputStream is = index.openEntry(file.getChannel(), entry.getKey())) {
+                    assertArrayEquals(entry.getKey(), entry.getValue(), readAll(is));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void doesNotMatchAnotherFileOfTheSameLength() throws IOException {
+        byte[] zip = zip();
+        File apkm = encode(zip);
+        File other = encode(zip);
+        assertEquals(apkm.length(), other.length());
+        CheckpointIndex index = CheckpointIndex.build(apkm, INTERVAL);
+        assertTrue(index.matches(apkm));
+        assertFalse(index.matches(other));
+    }
+
+    @Test
+    public void rejectsCorruptIndexes() throws IOException {
+        File apkm = encode(zip());
+        File indexFile = folder.newFile();
+        CheckpointIndex.build(apkm, INTERVAL).save(indexFile);
+        byte[] saved;
+        try (InputStream is = new FileInputStream(indexFile)) {
+            saved = readAll(is);
+        }
+
+        byte[] badMagic = saved.clone();
+        badMagic[0] ^= 1;
+        assertLoadFails(badMagic);
+        byte[] badVersion = saved.clone();
+        badVersion[7] ^= 1;
+        assertLoadFails(badVersion);
+        byte[] truncated = new byte[saved.length - 1];
+        System.arraycopy(saved, 0, truncated, 0, truncated.length);
+        assertLoadFails(truncated);
+    }
+
+    @Test
+    public void getOrBuildStoresAndReusesTheIndex() throws IOException {
+        File apkm = encode(zip());
+        File indexFile = new File(apkm.getPath() + CheckpointIndex.FILE_SUFFIX);
+        CheckpointIndex first = CheckpointIndex.getOrBuild(apkm);
+        assertTrue(indexFile.isFile());
+        long length = indexFile.length();
+        assertTrue(indexFile.setLastModified(1000));
+        CheckpointIndex second = CheckpointIndex.getOrBuild(apkm);
+        assertEquals(1000, indexFile.lastModified());
+        assertEquals(first.toString(), second.toString());
+
+        // Replaced by another file, the index is rebuilt
+        File other = encode(zip());
+        assertTrue(other.renameTo(apkm));
+        CheckpointIndex rebuilt = CheckpointIndex.getOrBuild(apkm);
+        assertTrue(rebuilt.matches(apkm));
+        assertEquals(length, indexFile.length());
+        assertTrue(indexFile.lastModified() != 1000);
+    }
+
+    private void assertLoadFails(byte[] index) throws IOException {
+        File file = folder.newFile();
+        try (FileOutputStream os = new FileOutputStream(file)) {
+            os.write(index);
+        }
+        try {
+            CheckpointIndex.load(file);
+        } catch (IOException expected) {
+            return;
+        }
+        throw new AssertionError("Loaded a corrupt index");
+    }
+
+    private byte[] zip() throws IOException {
+        contents.clear();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(os)) {
+            for (int i = 0; i < 8; ++i) {
+                // Spanning several chunks and checkpoints, deflated with data descriptors or stored
+                byte[] data = i % 2 == 0 ? compressibleBytes(i * 9000 + 1) : randomBytes(i * 7000, i);
+                String name = "split_" + i + ".apk";
+                ZipEntry entry = new ZipEntry(name);
+                if (i % 2 == 1) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCompressedSize(data.length);
+                    entry.setCrc(crc(data));
+                }
+                zos.putNextEntry(entry);
+                zos.write(data);
+                contents.put(name, data);
+            }
+        }
+        return os.toByteArray();
+    }
+
+    private File encode(byte[] zip) throws IOException {
+        File apkm = folder.newFile();
+        new ApkmEncoder(UnApkm.getCryptoProvider().getLazySodium())
+                .setMemLimit(8 * 1024 * 1024)
+                .setChunkSize(CHUNK_SIZE)
+                .encode(new ByteArrayInputStream(zip), new FileOutputStream(apkm));
+        return apkm;
+    }
+}
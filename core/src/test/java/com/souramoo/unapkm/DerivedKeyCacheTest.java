@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+import com.goterl.lazycode.lazysodium.interfaces.PwHash;
+import com.goterl.lazycode.lazysodium.interfaces.SecretBox;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+import static com.souramoo.unapkm.ZipRawReaderTest.randomBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DerivedKeyCacheTest {
+    private static final PwHash.Alg ALGO = PwHash.Alg.PWHASH_ALG_ARGON2ID13;
+    private static final long OPS_LIMIT = 1;
+    private static final int MEM_LIMIT = 8 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static LazySodium lazySodium;
+
+    @BeforeClass
+    public static void setUpClass() {
+        TestCryptoProvider.register();
+        lazySodium = UnApkm.getCryptoProvider().getLazySodium();
+    }
+
+    @Test
+    public void survivesRestartThroughDisk() throws IOException {
+        File dir = folder.newFolder();
+        byte[] diskKey = randomBytes(SecretBox.KEYBYTES, 1);
+        byte[] salt = randomBytes(16, 2);
+        byte[] key = new DerivedKeyCache(4, dir, diskKey, 4).getOrDerive(lazySodium, ALGO, OPS_LIMIT, MEM_LIMIT, salt);
+        DerivedKeyCache cache = new DerivedKeyCache(4, dir, diskKey, 4);
+        assertTrue(cache.contains(ALGO, OPS_LIMIT, MEM_LIMIT, salt));
+        assertArrayEquals(key, cache.getOrDerive(lazySodium, ALGO, OPS_LIMIT, MEM_LIMIT, salt));
+        assertEquals(1, cache.getDiskHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void trimIgnoresAndDeletesStaleTmpFiles() throws IOException {
+        File dir = folder.newFolder();
+        byte[] diskKey = randomBytes(SecretBox.KEYBYTES, 1);
+        long now = System.currentTimeMillis();
+        File[] stale = new File[3];
+        for (int i = 0; i < stale.length; ++i) {
+            stale[i] = new File(dir, "stale" + i + ".tmp");
+            assertTrue(stale[i].createNewFile() && stale[i].setLastModified(now - 3600 * 1000));
+        }
+        // Possibly being written by another thread
+        File fresh = new File(dir, "fresh.tmp");
+        assertTrue(fresh.createNewFile() && fresh.setLastModified(now + 30 * 1000));
+
+        DerivedKeyCache cache = new DerivedKeyCache(4, dir, diskKey, 2);
+        byte[] salt1 = randomBytes(16, 2);
+        byte[] salt2 = randomBytes(16, 3);
+        cache.getOrDerive(lazySodium, ALGO, OPS_LIMIT, MEM_LIMIT, salt1);
+        File[] entries = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return !name.endsWith(".tmp");
+            }
+        });
+        assertTrue(entries != null && entries.length == 1 && entries[0].setLastModified(now - 10 * 1000));
+        cache.getOrDerive(lazySodium, ALGO, OPS_LIMIT, MEM_LIMIT, salt2);
+
+        // Both entries fit, whatever the number of temporary files
+        DerivedKeyCache restarted = new DerivedKeyCache(4, dir, diskKey, 2);
+        assertTrue(restarted.contains(ALGO, OPS_LIMIT, MEM_LIMIT, salt1));
+        assertTrue(restarted.contains(ALGO, OPS_LIMIT, MEM_LIMIT, salt2));
+        for (File file : stale) {
+            assertFalse(file.exists());
+        }
+        assertTrue(fresh.exists());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EntryFiltersTest {
+    @Test
+    public void namesMatchExactly() {
+        EntryFilter filter = EntryFilters.names("base.apk", "split_config.en.apk");
+        assertTrue(filter.accept("base.apk"));
+        assertTrue(filter.accept("split_config.en.apk"));
+        assertFalse(filter.accept("Base.apk"));
+        assertFalse(filter.accept("base.apk "));
+        assertFalse(filter.accept("dir/base.apk"));
+        assertFalse(EntryFilters.names().accept("base.apk"));
+    }
+
+    @Test
+    public void namesDescribeTheSameSetAlike() {
+        // The description keys cached results, so the order and duplicates must not matter
+        assertEquals(EntryFilters.names("b", "a").toString(), EntryFilters.names("a", "b", "a").toString());
+        assertNotEquals(EntryFilters.names("a").toString(), EntryFilters.names("a", "b").toString());
+    }
+
+    @Test
+    public void globsWithoutWildcardsMatchExactly() {
+        EntryFilter filter = EntryFilters.globs("base.apk");
+        assertTrue(filter.accept("base.apk"));
+        assertFalse(filter.accept("baseXapk"));
+        assertFalse(filter.accept("base.apk.bak"));
+    }
+
+    @Test
+    public void globsQuoteRegexCharacters() {
+        EntryFilter filter = EntryFilters.globs("a+b(1)[x]{2}$^|.apk", "\\Q\\E*.apk");
+        assertTrue(filter.accept("a+b(1)[x]{2}$^|.apk"));
+        assertFalse(filter.accept("aab(1)[x]{2}$^|.apk"));
+        assertTrue(filter.accept("\\Q\\Eanything.apk"));
+        assertFalse(filter.accept("anything.apk"));
+    }
+
+    @Test
+    public void starAndQuestionMarkStayInTheirDirectory() {
+        EntryFilter filter = EntryFilters.globs("split_config.*dpi.apk", "lib/?/*.so");
+        assertTrue(filter.accept("split_config.xxhdpi.apk"));
+        assertTrue(filter.accept("split_config.dpi.apk"));
+        assertFalse(filter.accept("split_config.x/hdpi.apk"));
+        assertTrue(filter.accept("lib/a/libfoo.so"));
+        assertFalse(filter.accept("lib/ab/libfoo.so"));
+        assertFalse(filter.accept("lib//libfoo.so"));
+        assertFalse(filter.accept("lib/a/b/libfoo.so"));
+    }
+
+    @Test
+    public void doubleStarCrossesDirectories() {
+        EntryFilter filter = EntryFilters.globs("assets/**");
+        assertTrue(filter.accept("assets/"));
+        assertTrue(filter.accept("assets/a/b/c.bin"));
+        assertFalse(filter.accept("assets"));
+        assertTrue(EntryFilters.globs("**.apk").accept("dir/sub/base.apk"));
+        assertTrue(EntryFilters.globs("***.apk").accept("dir/base.apk"));
+    }
+
+    @Test
+    public void emptyGlobs() {
+        assertFalse(EntryFilters.globs().accept("base.apk"));
+        assertFalse(EntryFilters.globs("").accept("base.apk"));
+        assertTrue(EntryFilters.globs("", "*").accept("base.apk"));
+        assertTrue(EntryFilters.globs("*").accept(""));
+    }
+
+    @Test
+    public void anyOfAcceptsWhatOneAccepts() {
+        EntryFilter filter = EntryFilters.anyOf(EntryFilters.names("base.apk"), EntryFilters.globs("*.png"));
+        assertTrue(filter.accept("base.apk"));
+        assertTrue(filter.accept("icon.png"));
+        assertFalse(filter.accept("info.json"));
+        assertFalse(EntryFilters.anyOf().accept("base.apk"));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+    @Test
+    public void smallValuesHaveTheirOwnBuckets() {
+        for (int value = 0; value < 8; ++value) {
+            assertEquals(value, Histogram.upperBoundOf(Histogram.bucketOf(value)));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        // Each bucket starts right after the upper bound of the previous one
+        for (int bucket = 0; bucket < 63 * 4 - 1; ++bucket) {
+            long upper = Histogram.upperBoundOf(bucket);
+            if (upper == Long.MAX_VALUE) break;
+            assertEquals(bucket, Histogram.bucketOf(upper));
+            assertEquals(bucket + 1, Histogram.bucketOf(upper + 1));
+        }
+    }
+
+    @Test
+    public void upperBoundIsWithinAQuarterOfTheValue() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100_000; ++i) {
+            long value = i < 10_000 ? i : random.nextLong() >>> (1 + random.nextInt(63));
+            long upper = Histogram.upperBoundOf(Histogram.bucketOf(value));
+            assertTrue(value + " > " + upper, value <= upper);
+            assertTrue(value + " vs " + upper, upper - value <= value / 4);
+        }
+    }
+
+    @Test
+    public void largestValuesFit() {
+        int bucket = Histogram.bucketOf(Long.MAX_VALUE);
+        assertTrue(bucket < 63 * 4);
+        assertEquals(Long.MAX_VALUE, Histogram.upperBoundOf(bucket));
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 100; ++value) {
+            histogram.record(value);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        // 50 falls in [48, 55]
+        assertEquals(55, histogram.getPercentile(50));
+        // 90 falls in [80, 95]
+        assertEquals(95, histogram.getPercentile(90));
+        // Never above the largest value recorded
+        assertEquals(100, histogram.getPercentile(99));
+        assertEquals(100, histogram.getPercentile(100));
+        assertEquals(1, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void emptyAndNegative() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getSum());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void recordsConcurrently() throws InterruptedException {
+        final Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10_000; ++i) {
+                        histogram.record(i * 4 + offset);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40_000, histogram.getCount());
+        assertEquals(39_999, histogram.getMax());
+        assertEquals(39_999L * 40_000 / 2, histogram.getSum());
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class JsonParserTest {
+    @Test
+    public void parsesNestedValues() throws IOException {
+        Map<?, ?> object = (Map<?, ?>) JsonParser.parse(" {\"a\": [1, -2.5e1, true, false, null, {}],"
+                + "\n\t\"b\" : {\"c\": []}, \"d\": \"x\"}\r\n");
+        assertEquals(Arrays.asList("a", "b", "d"), Arrays.asList(object.keySet().toArray()));
+        assertEquals(Arrays.asList(1L, -25.0, true, false, null, Collections.emptyMap()), object.get("a"));
+        assertEquals(Collections.singletonMap("c", Collections.emptyList()), object.get("b"));
+        assertEquals("x", object.get("d"));
+    }
+
+    @Test
+    public void parsesTopLevelScalars() throws IOException {
+        assertEquals("s", JsonParser.parse("\"s\""));
+        assertEquals(0L, JsonParser.parse("0"));
+        assertEquals(-0.0, JsonParser.parse("-0.0"));
+        assertNull(JsonParser.parse(" null "));
+    }
+
+    @Test
+    public void numbersTooLargeForALongBecomeDoubles() throws IOException {
+        assertEquals(Long.MAX_VALUE, JsonParser.parse("9223372036854775807"));
+        assertEquals(9223372036854775808.0, JsonParser.parse("9223372036854775808"));
+        assertEquals(1e300, JsonParser.parse("1E300"));
+    }
+
+    @Test
+    public void decodesEscapes() throws IOException {
+        assertEquals("\"\\/\b\f\n\r\t\u00e9\ud83d\ude00", JsonParser.parse(
+                "\"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00E9\\ud83d\\ude00\""));
+    }
+
+    @Test
+    public void laterDuplicateKeysWin() throws IOException {
+        assertEquals(Collections.singletonMap("a", 2L), JsonParser.parse("{\"a\": 1, \"a\": 2}"));
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        String[] inputs = {"", "   ", "{", "[", "[1,]", "[1 2]", "{\"a\":1,}", "{,}", "{\"a\"}", "{a:1}", "\"abc",
+                "\"\\x\"", "\"\\u12G4\"", "\"\\u12\"", "\"\\", "tru", "nul", "-", "1.2.3", "1+2", "+1", "01x",
+                "{} {}", "[]]", "'a'"};
+        for (String input : inputs) {
+            try {
+                JsonParser.parse(input);
+                fail("Parsed " + input);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void limitsNesting() throws IOException {
+        List<?> list = (List<?>) JsonParser.parse(nested(64));
+        assertEquals(1, list.size());
+        try {
+            JsonParser.parse(nested(65));
+            fail("Parsed 65 nested arrays");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static String nested(int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; ++i) sb.append('[');
+        for (int i = 0; i < depth; ++i) sb.append(']');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static com.souramoo.unapkm.ParallelRecompressor.BLOCK_SIZE;
+import static com.souramoo.unapkm.ZipRawReaderTest.compressibleBytes;
+import static com.souramoo.unapkm.ZipRawReaderTest.crc;
+import static com.souramoo.unapkm.ZipRawReaderTest.randomBytes;
+import static com.souramoo.unapkm.ZipRawReaderTest.readAll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ParallelRecompressorTest {
+    @Test
+    public void inflatesToSameBytesAtBlockBoundaries() throws IOException {
+        List<byte[]> entries = new ArrayList<>();
+        for (int size : new int[]{0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 3 * BLOCK_SIZE}) {
+            entries.add(compressibleBytes(size));
+        }
+        assertRecompressed(entries, 6, 4);
+    }
+
+    @Test
+    public void inflatesToSameBytesForIncompressibleData() throws IOException {
+        List<byte[]> entries = new ArrayList<>();
+        entries.add(randomBytes(2 * BLOCK_SIZE + 12345, 1));
+        entries.add(randomBytes(100, 2));
+        assertRecompressed(entries, 9, 4);
+    }
+
+    @Test
+    public void inflatesToSameBytesAtEveryLevel() throws IOException {
+        List<byte[]> entries = new ArrayList<>();
+        entries.add(compressibleBytes(BLOCK_SIZE + 40_000));
+        for (int level = 0; level <= 9; ++level) {
+            assertRecompressed(entries, level, 2);
+        }
+    }
+
+    @Test
+    public void keepsEntryOrderWithManyPendingBlocks() throws IOException {
+        List<byte[]> entries = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            // More blocks than the recompressor keeps pending
+            entries.add(i % 2 == 0 ? compressibleBytes(i * 20_000) : randomBytes(i * 1000, i));
+        }
+        assertRecompressed(entries, 1, 1);
+        assertRecompressed(entries, 1, 3);
+    }
+
+    private static void assertRecompressed(List<byte[]> entries, int level, int threadCount) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ZipRawWriter writer = new ZipRawWriter(os);
+             ParallelRecompressor recompressor = new ParallelRecompressor(writer, level, threadCount)) {
+            for (int i = 0; i < entries.size(); ++i) {
+                recompressor.putEntry(entry("entry" + i), new ByteArrayInputStream(entries.get(i)));
+            }
+            recompressor.finish();
+            writer.finish();
+        }
+        // Streamed, so that each entry must end where its deflate stream does
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(os.toByteArray()))) {
+            for (int i = 0; i < entries.size(); ++i) {
+                ZipEntry entry = zis.getNextEntry();
+                assertEquals("entry" + i, entry.getName());
+                assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+                byte[] data = readAll(zis);
+                assertArrayEquals("entry" + i + " at level " + level, entries.get(i), data);
+                assertEquals(entries.get(i).length, entry.getSize());
+                assertEquals(crc(entries.get(i)), entry.getCrc());
+            }
+            assertNull(zis.getNextEntry());
+        }
+    }
+
+    private static ZipRawReader.LocalEntry entry(String name) {
+        ZipRawReader.LocalEntry entry = new ZipRawReader.LocalEntry();
+        entry.name = name;
+        entry.nameBytes = name.getBytes();
+        entry.extra = new byte[0];
+        entry.method = ZipRawReader.METHOD_STORED;
+        return entry;
+    }
+}
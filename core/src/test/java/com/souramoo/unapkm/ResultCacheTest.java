@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static com.souramoo.unapkm.ZipRawReaderTest.randomBytes;
+import static com.souramoo.unapkm.ZipRawReaderTest.readAll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ResultCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void servesCommittedResultByContentDigest() throws IOException {
+        ResultCache cache = new ResultCache(folder.newFolder(), 1024 * 1024);
+        byte[] inputDigest = ResultCache.newDigest().digest(randomBytes(1000, 1));
+        ConversionOptions options = new ConversionOptions();
+        String key = ResultCache.getKey(inputDigest, options);
+        assertNull(cache.open(key));
+
+        byte[] converted = randomBytes(5000, 2);
+        SpoolCache.Spool spool = cache.create();
+        spool.write(converted, 0, converted.length);
+        assertNotNull(spool.commit(key));
+        try (FileInputStream is = cache.open(ResultCache.getKey(inputDigest.clone(), new ConversionOptions()))) {
+            assertNotNull(is);
+            assertArrayEquals(converted, readAll(is));
+        }
+        assertNotEquals(key, ResultCache.getKey(inputDigest,
+                new ConversionOptions().setCompressionLevel(6)));
+    }
+
+    @Test
+    public void remembersDigestsByFileIdentity() throws IOException {
+        ResultCache cache = new ResultCache(folder.newFolder(), 0);
+        byte[] digest = randomBytes(32, 1);
+        String fileId = ResultCache.getFileId(1, 2, 3, 4, 5);
+        cache.putDigest(fileId, digest);
+        assertArrayEquals(digest, cache.getDigest(ResultCache.getFileId(1, 2, 3, 4, 5)));
+        // Same inode rewritten, its status change time moved even if the modification time was restored
+        assertNull(cache.getDigest(ResultCache.getFileId(1, 2, 3, 4, 6)));
+        assertNull(cache.getDigest(ResultCache.getFileId(1, 7, 3, 4, 5)));
+
+        for (int i = 0; i < ResultCache.MAX_INDEXED_FILES; ++i) {
+            cache.putDigest(ResultCache.getFileId(1, 100 + i, 3, 4, 5), digest);
+        }
+        assertNull(cache.getDigest(fileId));
+    }
+}
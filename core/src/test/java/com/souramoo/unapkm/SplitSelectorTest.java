@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SplitSelectorTest {
+    @Test
+    public void findsConfigQualifiers() {
+        assertEquals("arm64_v8a", SplitSelector.getConfigQualifier("split_config.arm64_v8a.apk"));
+        assertEquals("xxhdpi", SplitSelector.getConfigQualifier("feature.config.xxhdpi.apk"));
+        assertEquals("en", SplitSelector.getConfigQualifier("config.en.apk"));
+        assertNull(SplitSelector.getConfigQualifier("base.apk"));
+        assertNull(SplitSelector.getConfigQualifier("split_feature.apk"));
+        assertNull(SplitSelector.getConfigQualifier("myconfig.en.apk"));
+        assertNull(SplitSelector.getConfigQualifier("split_config..apk"));
+        assertNull(SplitSelector.getConfigQualifier("split_config.en.APK"));
+        assertNull(SplitSelector.getConfigQualifier("split_config.en"));
+    }
+
+    @Test
+    public void choosesTheSmallestSufficientDensity() {
+        assertEquals("xxhdpi", SplitSelector.chooseDensity(Arrays.asList("mdpi", "xxhdpi", "xhdpi"), 420));
+        assertEquals("xhdpi", SplitSelector.chooseDensity(Arrays.asList("xxhdpi", "xhdpi", "mdpi"), 320));
+        assertEquals("mdpi", SplitSelector.chooseDensity(Arrays.asList("xhdpi", "mdpi"), 100));
+        // Otherwise the densest
+        assertEquals("xxhdpi", SplitSelector.chooseDensity(Arrays.asList("mdpi", "xxhdpi", "hdpi"), 640));
+        assertEquals("hdpi", SplitSelector.chooseDensity(Arrays.asList("nodpi", "hdpi", "anydpi"), 480));
+    }
+
+    @Test
+    public void keepsEveryDensityWhenUnknown() {
+        assertNull(SplitSelector.chooseDensity(Arrays.asList("mdpi", "xxhdpi"), 0));
+        assertNull(SplitSelector.chooseDensity(Arrays.asList("nodpi", "anydpi"), 480));
+        assertNull(SplitSelector.chooseDensity(Collections.<String>emptyList(), 480));
+    }
+
+    @Test
+    public void keepsSupportedSplitsWithoutInfo() {
+        SplitSelector selector = new SplitSelector(profile());
+        assertTrue(selector.accept("base.apk"));
+        assertTrue(selector.accept("split_feature.apk"));
+        assertTrue(selector.accept("split_config.arm64_v8a.apk"));
+        assertTrue(selector.accept("split_config.armeabi_v7a.apk"));
+        assertFalse(selector.accept("split_config.x86.apk"));
+        // The densities of the bundle are unknown
+        assertTrue(selector.accept("split_config.mdpi.apk"));
+        assertTrue(selector.accept("split_config.xxhdpi.apk"));
+        assertTrue(selector.accept("split_config.en.apk"));
+        assertTrue(selector.accept("feature.config.de.apk"));
+        assertFalse(selector.accept("split_config.fr.apk"));
+        // Not an ABI, density or language
+        assertTrue(selector.accept("split_config.feature1.apk"));
+    }
+
+    @Test
+    public void keepsTheBestSplitsWithInfo() throws IOException {
+        SplitSelector selector = new SplitSelector(profile());
+        selector.setInfo(info("{\"arches\": [\"armeabi-v7a\", \"arm64-v8a\", \"x86\"],"
+                + " \"dpis\": [\"mdpi\", \"xhdpi\", \"xxhdpi\", \"xxxhdpi\"]}"));
+        // The preferred ABI of the device
+        assertTrue(selector.accept("split_config.arm64_v8a.apk"));
+        assertFalse(selector.accept("split_config.armeabi_v7a.apk"));
+        assertFalse(selector.accept("split_config.x86.apk"));
+        assertTrue(selector.accept("split_config.xxhdpi.apk"));
+        assertFalse(selector.accept("split_config.xhdpi.apk"));
+        assertFalse(selector.accept("split_config.xxxhdpi.apk"));
+        assertTrue(selector.accept("split_config.de.apk"));
+    }
+
+    @Test
+    public void dropsAbiSplitsTheDeviceCantRun() throws IOException {
+        SplitSelector selector = new SplitSelector(profile());
+        selector.setInfo(info("{\"arches\": [\"x86\", \"x86_64\"]}"));
+        assertFalse(selector.accept("split_config.x86.apk"));
+        assertFalse(selector.accept("split_config.x86_64.apk"));
+        // No densities in the info, all are kept
+        assertTrue(selector.accept("split_config.hdpi.apk"));
+    }
+
+    @Test
+    public void emptyProfileKeepsEverything() throws IOException {
+        SplitSelector selector = new SplitSelector(new DeviceProfile());
+        selector.setInfo(info("{\"arches\": [\"x86\"], \"dpis\": [\"mdpi\"]}"));
+        for (String name : new String[]{"split_config.x86.apk", "split_config.arm64_v8a.apk",
+                "split_config.xxhdpi.apk", "split_config.ja.apk", "base.apk"}) {
+            assertTrue(name, selector.accept(name));
+        }
+    }
+
+    private static DeviceProfile profile() {
+        return new DeviceProfile()
+                .setAbis("arm64-v8a", "armeabi-v7a", "armeabi")
+                .setDensityDpi(420)
+                .setLocales("EN-us", "de");
+    }
+
+    private static ApkmInfo info(String json) throws IOException {
+        return ApkmInfo.parse(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import com.goterl.lazycode.lazysodium.LazySodium;
+import com.goterl.lazycode.lazysodium.LazySodiumJava;
+import com.goterl.lazycode.lazysodium.SodiumJava;
+
+/**
+ * lazysodium-java binding for the tests needing libsodium.
+ */
+class TestCryptoProvider implements CryptoProvider {
+    private static final TestCryptoProvider INSTANCE = new TestCryptoProvider();
+
+    private final LazySodium lazySodium = new LazySodiumJava(new SodiumJava());
+
+    static void register() {
+        UnApkm.setCryptoProvider(INSTANCE);
+    }
+
+    @Override
+    public LazySodium getLazySodium() {
+        return lazySodium;
+    }
+}
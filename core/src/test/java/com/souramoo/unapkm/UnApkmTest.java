@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static com.souramoo.unapkm.ZipRawReaderTest.compressibleBytes;
+import static com.souramoo.unapkm.ZipRawReaderTest.crc;
+import static com.souramoo.unapkm.ZipRawReaderTest.readAll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class UnApkmTest {
+    private static final byte[] INFO = ("{\"arches\": [\"arm64-v8a\", \"armeabi-v7a\"], \"dpis\": [\"xhdpi\"]}")
+            .getBytes(StandardCharsets.UTF_8);
+    private static final String[] SPLITS = {"base.apk", "split_config.arm64_v8a.apk", "split_config.armeabi_v7a.apk"};
+
+    @Test
+    public void selectsSplitsFromInfo() throws IOException {
+        for (int level : new int[]{ConversionOptions.COMPRESSION_COPY, 6}) {
+            for (boolean stored : new boolean[]{true, false}) {
+                assertEquals(Arrays.asList(ApkmInfo.ENTRY_NAME, "base.apk", "split_config.arm64_v8a.apk"),
+                        rewrite(INFO, stored, level));
+            }
+        }
+    }
+
+    @Test
+    public void passesOversizedInfoThrough() throws IOException {
+        // Larger than what is buffered, stored or inflated, the splits are then chosen by name only
+        byte[] info = compressibleBytes(3 * 1024 * 1024);
+        List<String> expected = new ArrayList<>();
+        expected.add(ApkmInfo.ENTRY_NAME);
+        expected.addAll(Arrays.asList(SPLITS));
+        for (int level : new int[]{ConversionOptions.COMPRESSION_COPY, 6}) {
+            for (boolean stored : new boolean[]{true, false}) {
+                assertEquals(expected, rewrite(info, stored, level));
+            }
+        }
+    }
+
+    /**
+     * Rewrite a bundle for a 64-bit ARM device and check the data of the entries kept.
+     *
+     * @return Names of the entries kept
+     */
+    private static List<String> rewrite(byte[] info, boolean storeInfo, int level) throws IOException {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(zip)) {
+            ZipEntry entry = new ZipEntry(ApkmInfo.ENTRY_NAME);
+            if (storeInfo) {
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(info.length);
+                entry.setCompressedSize(info.length);
+                entry.setCrc(crc(info));
+            }
+            zos.putNextEntry(entry);
+            zos.write(info);
+            for (String name : SPLITS) {
+                zos.putNextEntry(new ZipEntry(name));
+                zos.write(name.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        ConversionOptions options = new ConversionOptions()
+                .setCompressionLevel(level)
+                .setDeviceProfile(new DeviceProfile().setAbis("arm64-v8a", "armeabi-v7a"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UnApkm.rewriteZip(new ByteArrayInputStream(zip.toByteArray()), out, options);
+        List<String> names = new ArrayList<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                byte[] data = readAll(zis);
+                if (entry.getName().equals(ApkmInfo.ENTRY_NAME)) {
+                    assertArrayEquals(info, data);
+                } else assertArrayEquals(entry.getName().getBytes(StandardCharsets.UTF_8), data);
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+}
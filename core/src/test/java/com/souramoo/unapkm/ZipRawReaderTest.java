@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ZipRawReaderTest {
+    @Test
+    public void readsStoredAndDeflatedEntries() throws IOException {
+        byte[] stored = randomBytes(1000, 1);
+        byte[] deflated = compressibleBytes(200_000);
+        byte[] zip = zip(stored, deflated);
+        try (ZipRawReader reader = new ZipRawReader(new ByteArrayInputStream(zip))) {
+            ZipRawReader.LocalEntry entry = reader.getNextEntry();
+            assertEquals("stored", entry.getName());
+            assertEquals(ZipRawReader.METHOD_STORED, entry.getMethod());
+            assertFalse(entry.hasDataDescriptor());
+            assertEquals(stored.length, entry.getSize());
+            assertArrayEquals(stored, readAll(reader.getInputStream()));
+
+            entry = reader.getNextEntry();
+            assertEquals("deflated", entry.getName());
+            assertEquals(ZipRawReader.METHOD_DEFLATED, entry.getMethod());
+            assertTrue(entry.hasDataDescriptor());
+            assertArrayEquals(deflated, readAll(reader.getInputStream()));
+            // Only known from the data descriptor
+            assertEquals(deflated.length, entry.getSize());
+            assertEquals(crc(deflated), entry.getCrc());
+
+            assertNull(reader.getNextEntry());
+        }
+    }
+
+    @Test
+    public void skipsDataDescriptorsOfUnreadEntries() throws IOException {
+        byte[] first = compressibleBytes(100_000);
+        byte[] second = randomBytes(70_000, 2);
+        try (ZipRawReader reader = new ZipRawReader(new ByteArrayInputStream(zip(first, second)))) {
+            ZipRawReader.LocalEntry skipped = reader.getNextEntry();
+            ZipRawReader.LocalEntry entry = reader.getNextEntry();
+            assertEquals("deflated", entry.getName());
+            assertEquals(first.length, skipped.getSize());
+            assertEquals(crc(first), skipped.getCrc());
+            assertArrayEquals(second, readAll(reader.getInputStream()));
+            assertNull(reader.getNextEntry());
+        }
+    }
+
+    @Test
+    public void rawDataMatchesCompressedSize() throws IOException {
+        byte[] data = compressibleBytes(300_000);
+        try (ZipRawReader reader = new ZipRawReader(new ByteArrayInputStream(zip(new byte[0], data)))) {
+            reader.getNextEntry();
+            ZipRawReader.LocalEntry entry = reader.getNextEntry();
+            byte[] raw = readAll(reader.getRawInputStream());
+            assertEquals(raw.length, entry.getCompressedSize());
+            assertArrayEquals(data, inflate(raw));
+        }
+    }
+
+    @Test
+    public void readsZip64Sizes() throws IOException {
+        byte[] data = randomBytes(4096, 3);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(localHeader("big", ZipRawReader.METHOD_STORED, 0, crc(data), ZipRawReader.ZIP64_MAGIC,
+                ZipRawReader.ZIP64_MAGIC, zip64Extra(data.length, data.length)));
+        os.write(data);
+        try (ZipRawReader reader = new ZipRawReader(new ByteArrayInputStream(os.toByteArray()))) {
+            ZipRawReader.LocalEntry entry = reader.getNextEntry();
+            assertEquals(data.length, entry.getSize());
+            assertEquals(data.length, entry.getCompressedSize());
+            assertArrayEquals(data, readAll(reader.getInputStream()));
+            assertNull(reader.getNextEntry());
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void rejectsMissingZip64Extra() throws IOException {
+        byte[] header = localHeader("big", ZipRawReader.METHOD_STORED, 0, 0, ZipRawReader.ZIP64_MAGIC,
+                ZipRawReader.ZIP64_MAGIC, new byte[0]);
+        try (ZipRawReader reader = new ZipRawReader(new ByteArrayInputStream(header))) {
+            reader.getNextEntry();
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void rejectsStoredEntryWithDataDescriptor() throws IOException {
+        byte[] header = localHeader("stored", ZipRawReader.METHOD_STORED, ZipRawReader.FLAG_DATA_DESCRIPTOR, 0, 0,
+                0, new byte[0]);
+        try (ZipRawReader reader = new ZipRawReader(new ByteArrayInputStream(header))) {
+            reader.getNextEntry();
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejectsMissingDataDescriptor() throws IOException {
+        byte[] data = compressibleBytes(10_000);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(localHeader("deflated", ZipRawReader.METHOD_DEFLATED, ZipRawReader.FLAG_DATA_DESCRIPTOR, 0, 0, 0,
+                new byte[0]));
+        os.write(deflate(data));
+        try (ZipRawReader reader = new ZipRawReader(new ByteArrayInputStream(os.toByteArray()))) {
+            reader.getNextEntry();
+            readAll(reader.getRawInputStream());
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void rejectsWrongDataDescriptor() throws IOException {
+        byte[] data = compressibleBytes(10_000);
+        byte[] deflated = deflate(data);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(localHeader("deflated", ZipRawReader.METHOD_DEFLATED, ZipRawReader.FLAG_DATA_DESCRIPTOR, 0, 0, 0,
+                new byte[0]));
+        os.write(deflated);
+        os.write(ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putInt(ZipRawReader.DATA_DESCRIPTOR_SIG)
+                .putInt((int) crc(data)).putInt(deflated.length).putInt(data.length + 1).array());
+        try (ZipRawReader reader = new ZipRawReader(new ByteArrayInputStream(os.toByteArray()))) {
+            reader.getNextEntry();
+            reader.getNextEntry();
+        }
+    }
+
+    /**
+     * @return A ZIP with a stored entry followed by a deflated one, written with a data descriptor
+     */
+    static byte[] zip(byte[] stored, byte[] deflated) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(os)) {
+            ZipEntry entry = new ZipEntry("stored");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(stored.length);
+            entry.setCompressedSize(stored.length);
+            entry.setCrc(crc(stored));
+            zos.putNextEntry(entry);
+            zos.write(stored);
+            zos.putNextEntry(new ZipEntry("deflated"));
+            zos.write(deflated);
+        }
+        return os.toByteArray();
+    }
+
+    static byte[] localHeader(String name, int method, int flags, long crc, long compressedSize, long size,
+                              byte[] extra) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(30 + nameBytes.length + extra.length).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(ZipRawReader.LOCAL_HEADER_SIG)
+                .putShort((short) 45)
+                .putShort((short) flags)
+                .putShort((short) method)
+                .putShort((short) 0)
+                .putShort((short) 0x21)
+                .putInt((int) crc)
+                .putInt((int) compressedSize)
+                .putInt((int) size)
+                .putShort((short) nameBytes.length)
+                .putShort((short) extra.length)
+                .put(nameBytes)
+                .put(extra)
+                .array();
+    }
+
+    static byte[] zip64Extra(long size, long compressedSize) {
+        return ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) ZipRawReader.ZIP64_EXTRA_ID)
+                .putShort((short) 16)
+                .putLong(size)
+                .putLong(compressedSize)
+                .array();
+    }
+
+    static byte[] randomBytes(int length, long seed) {
+        byte[] b = new byte[length];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    static byte[] compressibleBytes(int length) {
+        byte[] b = new byte[length];
+        Random random = new Random(length);
+        for (int i = 0; i < length; ++i) {
+            b[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return b;
+    }
+
+    static long crc(byte[] b) {
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        return crc.getValue();
+    }
+
+    static byte[] deflate(byte[] b) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(b);
+        deflater.finish();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            os.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return os.toByteArray();
+    }
+
+    static byte[] inflate(byte[] b) throws IOException {
+        return readAll(new InflaterInputStream(new ByteArrayInputStream(b), new Inflater(true)));
+    }
+
+    static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+        return os.toByteArray();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2020 Muntashir Al-Islam
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.souramoo.unapkm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static com.souramoo.unapkm.ZipRawReaderTest.compressibleBytes;
+import static com.souramoo.unapkm.ZipRawReaderTest.crc;
+import static com.souramoo.unapkm.ZipRawReaderTest.localHeader;
+import static com.souramoo.unapkm.ZipRawReaderTest.randomBytes;
+import static com.souramoo.unapkm.ZipRawReaderTest.readAll;
+import static com.souramoo.unapkm.ZipRawReaderTest.zip;
+import static com.souramoo.unapkm.ZipRawReaderTest.zip64Extra;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ZipRawWriterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void copiesEntriesWithDataDescriptors() throws IOException {
+        byte[] stored = randomBytes(5000, 1);
+        byte[] deflated = compressibleBytes(500_000);
+        byte[] copy = rewrite(zip(stored, deflated));
+        try (ZipFile zipFile = open(copy)) {
+            assertEquals(2, zipFile.size());
+            assertArrayEquals(stored, readAll(zipFile.getInputStream(zipFile.getEntry("stored"))));
+            ZipEntry entry = zipFile.getEntry("deflated");
+            assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+            assertEquals(deflated.length, entry.getSize());
+            assertEquals(crc(deflated), entry.getCrc());
+            assertArrayEquals(deflated, readAll(zipFile.getInputStream(entry)));
+        }
+        // The local headers and data descriptors must agree with the central directory
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(copy))) {
+            assertEquals("stored", zis.getNextEntry().getName());
+            assertArrayEquals(stored, readAll(zis));
+            assertEquals("deflated", zis.getNextEntry().getName());
+            assertArrayEquals(deflated, readAll(zis));
+            assertNull(zis.getNextEntry());
+        }
+    }
+
+    @Test
+    public void writesEntriesFromData() throws IOException {
+        byte[] data = compressibleBytes(100_000);
+        byte[] deflated = ZipRawReaderTest.deflate(data);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ZipRawReader reader = new ZipRawReader(new ByteArrayInputStream(zip(new byte[0], data)));
+             ZipRawWriter writer = new ZipRawWriter(os)) {
+            reader.getNextEntry();
+            ZipRawReader.LocalEntry source = reader.getNextEntry();
+            writer.beginEntry(source, ZipRawReader.METHOD_DEFLATED);
+            // In several parts, as the recompressor writes its blocks
+            writer.writeEntryData(deflated, 0, 1000);
+            writer.writeEntryData(deflated, 1000, deflated.length - 1000);
+            writer.endEntry(crc(data), data.length);
+            writer.finish();
+        }
+        try (ZipFile zipFile = open(os.toByteArray())) {
+            ZipEntry entry = zipFile.getEntry("deflated");
+            assertEquals(deflated.length, entry.getCompressedSize());
+            assertArrayEquals(data, readAll(zipFile.getInputStream(entry)));
+        }
+    }
+
+    @Test
+    public void regeneratesZip64ExtraOnlyWhenNeeded() throws IOException {
+        byte[] data = randomBytes(4096, 2);
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        input.write(localHeader("big", ZipRawReader.METHOD_STORED, 0, crc(data), ZipRawReader.ZIP64_MAGIC,
+                ZipRawReader.ZIP64_MAGIC, zip64Extra(data.length, data.length)));
+        input.write(data);
+        byte[] copy = rewrite(input.toByteArray());
+        try (ZipRawReader reader = new ZipRawReader(new ByteArrayInputStream(copy))) {
+            ZipRawReader.LocalEntry entry = reader.getNextEntry();
+            assertEquals(0, entry.extra.length);
+            assertEquals(data.length, entry.getSize());
+        }
+        try (ZipFile zipFile = open(copy)) {
+            assertArrayEquals(data, readAll(zipFile.getInputStream(zipFile.getEntry("big"))));
+        }
+    }
+
+    @Test
+    public void writesZip64EndRecordForManyEntries() throws IOException {
+        int count = 0xFFFF + 1;
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ZipRawWriter writer = new ZipRawWriter(os)) {
+            for (int i = 0; i < count; ++i) {
+                writer.putRawEntry(emptyEntry("e" + i), new ByteArrayInputStream(new byte[0]));
+            }
+            writer.finish();
+        }
+        byte[] zip = os.toByteArray();
+        assertTrue(indexOf(zip, 0x06064b50) > 0);
+        assertTrue(indexOf(zip, 0x07064b50) > 0);
+        try (ZipFile zipFile = open(zip)) {
+            assertEquals(count, zipFile.size());
+            assertTrue(zipFile.getEntry("e" + (count - 1)) != null);
+        }
+    }
+
+    @Test
+    public void closeWithoutFinishLeavesNoCentralDirectory() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ZipRawReader reader = new ZipRawReader(new ByteArrayInputStream(zip(randomBytes(100, 3),
+                compressibleBytes(1000))));
+             ZipRawWriter writer = new ZipRawWriter(os)) {
+            ZipRawReader.LocalEntry entry = reader.getNextEntry();
+            writer.putRawEntry(entry, reader.getRawInputStream());
+            // Fails before finish()
+        }
+        byte[] zip = os.toByteArray();
+        assertEquals(-1, indexOf(zip, 0x02014b50));
+        assertEquals(-1, indexOf(zip, 0x06054b50));
+        try (ZipFile ignored = open(zip)) {
+            fail("Opened a ZIP without central directory");
+        } catch (ZipException expected) {
+        }
+    }
+
+    @Test
+    public void finishIsIdempotent() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ZipRawWriter writer = new ZipRawWriter(os);
+        writer.putRawEntry(emptyEntry("a"), new ByteArrayInputStream(new byte[0]));
+        writer.finish();
+        long written = writer.getBytesWritten();
+        writer.finish();
+        writer.close();
+        assertEquals(written, os.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsDataOfWrongSize() throws IOException {
+        ZipRawReader.LocalEntry entry = emptyEntry("a");
+        entry.compressedSize = entry.size = 10;
+        try (ZipRawWriter writer = new ZipRawWriter(new ByteArrayOutputStream())) {
+            writer.putRawEntry(entry, new ByteArrayInputStream(new byte[9]));
+        }
+    }
+
+    private byte[] rewrite(byte[] zip) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ZipRawReader reader = new ZipRawReader(new ByteArrayInputStream(zip));
+             ZipRawWriter writer = new ZipRawWriter(os)) {
+            ZipRawReader.LocalEntry entry;
+            while ((entry = reader.getNextEntry()) != null) {
+                writer.putRawEntry(entry, reader.getRawInputStream());
+            }
+            writer.finish();
+        }
+        return os.toByteArray();
+    }
+
+    private ZipFile open(byte[] zip) throws IOException {
+        File file = folder.newFile();
+        try (FileOutputStream os = new FileOutputStream(file)) {
+            os.write(zip);
+        }
+        return new ZipFile(file);
+    }
+
+    private static ZipRawReader.LocalEntry emptyEntry(String name) {
+        ZipRawReader.LocalEntry entry = new ZipRawReader.LocalEntry();
+        entry.name = name;
+        entry.nameBytes = name.getBytes();
+        entry.extra = new byte[0];
+        entry.method = ZipRawReader.METHOD_STORED;
+        return entry;
+    }
+
+    private static int indexOf(byte[] b, int signature) {
+        for (int i = 0; i + 4 <= b.length; ++i) {
+            if (ZipRawReader.getInt(b, i) == signature) return i;
+        }
+        return -1;
+    }
+}